@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.dias;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Index (product name -> path) of the local archive of a DIAS.
+ * The archive is crawled in background, up to the depth of the products (the number of levels of the local archive
+ * path format, plus two levels for the products packed in an archive folder), and the index is saved in a compressed
+ * file, from which it is loaded at the next start. The archive is crawled again periodically, while the products
+ * found by the path builders outside the index are added to it as they are found.
+ * The index is enabled by the <code>archive.catalog</code> property of the path builder and is consulted by
+ * {@link ArchiveDirectoryCache#exists(Path)} before listing the archive folders.
+ *
+ * @author Cosmin Cara
+ */
+public final class ArchiveCatalog {
+    public static final String ENABLED = "archive.catalog";
+    public static final String DEPTH = "archive.catalog.depth";
+    public static final String FOLDER = "archive.catalog.folder";
+    public static final String RESCAN_INTERVAL = "archive.catalog.rescan.hours";
+    private static final long SAVE_INTERVAL = 600000;
+    private static final String CRAWLED = "# crawled ";
+    private static final Map<Path, ArchiveCatalog> catalogs = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService crawler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "archive-catalog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Logger logger = Logger.getLogger(ArchiveCatalog.class.getName());
+
+    private final Path root;
+    private final int depth;
+    private final Path file;
+    private volatile Map<String, String> entries;
+    private volatile Map<String, String> crawling;
+    private volatile boolean dirty;
+    private volatile boolean complete;
+    private volatile long crawled;
+    private volatile long generation;
+    private final List<BiConsumer<String, String>> listeners;
+
+    /**
+     * Creates (once per archive root) the index of the given archive, if enabled by the given properties.
+     * @param root          The root of the local archive
+     * @param pathFormat    The local archive path format (used to determine the depth of the products)
+     * @param properties    The path builder properties
+     */
+    public static void register(Path root, String pathFormat, Properties properties) {
+        if (root == null || properties == null || !Boolean.parseBoolean(properties.getProperty(ENABLED, "false"))) {
+            return;
+        }
+        catalogs.computeIfAbsent(root.toAbsolutePath().normalize(), r -> new ArchiveCatalog(r, pathFormat, properties));
+    }
+
+    /**
+     * Returns the index of the given archive root, or <code>null</code> if the archive is not indexed.
+     */
+    public static ArchiveCatalog get(Path root) {
+        return root != null ? catalogs.get(root.toAbsolutePath().normalize()) : null;
+    }
+
+    /**
+     * Checks if the given path is in the index of its archive.
+     * Returns <code>null</code> if the path is not under an indexed archive or if it is not (yet) indexed, in which case
+     * the caller should check the file system.
+     */
+    static Boolean lookup(Path path) {
+        final ArchiveCatalog catalog = catalogOf(path);
+        return catalog != null && catalog.contains(path) ? Boolean.TRUE : null;
+    }
+
+    /**
+     * Adds to the index of its archive a path that was found outside the index.
+     */
+    static void found(Path path) {
+        final ArchiveCatalog catalog = catalogOf(path);
+        if (catalog != null) {
+            catalog.add(path);
+        }
+    }
+
+    private static ArchiveCatalog catalogOf(Path path) {
+        if (catalogs.isEmpty() || path == null) {
+            return null;
+        }
+        final Path absolute = path.toAbsolutePath().normalize();
+        for (ArchiveCatalog catalog : catalogs.values()) {
+            if (absolute.startsWith(catalog.root)) {
+                return catalog;
+            }
+        }
+        return null;
+    }
+
+    private ArchiveCatalog(Path root, String pathFormat, Properties properties) {
+        this.root = root;
+        int levels = 0;
+        if (pathFormat != null) {
+            for (String level : pathFormat.split("/")) {
+                if (!level.trim().isEmpty()) {
+                    levels++;
+                }
+            }
+        }
+        this.depth = Integer.parseInt(properties.getProperty(DEPTH, String.valueOf(levels + 2)));
+        final Path folder = Paths.get(properties.getProperty(FOLDER,
+                                                             Paths.get(System.getProperty("user.home"), ".sen2agri", "catalog").toString()));
+        this.file = folder.resolve(Integer.toHexString(root.toString().hashCode()) + ".idx.gz");
+        this.entries = new ConcurrentHashMap<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        final long rescanInterval = TimeUnit.HOURS.toMillis(Long.parseLong(properties.getProperty(RESCAN_INTERVAL, "24")));
+        long initialDelay = 0;
+        if (Files.exists(this.file)) {
+            try {
+                load();
+                if (this.crawled == 0) {
+                    // index saved by a previous version, without the time of the crawl
+                    this.crawled = Files.getLastModifiedTime(this.file).toMillis();
+                }
+                this.generation++;
+                this.complete = true;
+                initialDelay = Math.max(0, Files.getLastModifiedTime(this.file).toMillis() + rescanInterval - System.currentTimeMillis());
+            } catch (IOException e) {
+                logger.warning(String.format("Cannot load the archive index %s [%s]", this.file, e.getMessage()));
+            }
+        }
+        crawler.scheduleWithFixedDelay(this::crawl, initialDelay, rescanInterval, TimeUnit.MILLISECONDS);
+        crawler.scheduleWithFixedDelay(this::saveIfChanged, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+        logger.info(String.format("Archive index of %s: %d products loaded, next crawl in %d minutes",
+                                  root, this.entries.size(), TimeUnit.MILLISECONDS.toMinutes(initialDelay)));
+    }
+
+    /**
+     * Returns the path of the given product (file or folder name), or <code>null</code> if it is not indexed.
+     */
+    public Path find(String name) {
+        String relative = this.entries.get(name);
+        if (relative == null) {
+            final Map<String, String> current = this.crawling;
+            relative = current != null ? current.get(name) : null;
+        }
+        return relative != null ? this.root.resolve(relative) : null;
+    }
+
+    /**
+     * Checks if the index covers the whole archive, i.e. if it was loaded from a saved index or if a crawl completed.
+     * Until then, a product missing from the index may still be in the archive.
+     */
+    public boolean isComplete() { return this.complete; }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) when the last complete crawl of the archive started.
+     * The products published in the archive afterwards may be missing from the index.
+     */
+    public long getCrawled() { return this.crawled; }
+
+    /**
+     * Returns the number of times the whole index was replaced (loaded or crawled). The indexes derived from this one
+     * have to be rebuilt when it changes.
+     */
+    public long getGeneration() { return this.generation; }
+
+    /**
+     * Adds a listener notified (with the name and the relative path) of each entry added to the index between
+     * two crawls.
+     */
+    public void addListener(BiConsumer<String, String> listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Returns the root of the indexed archive.
+     */
+    public Path getRoot() { return this.root; }
+
+    /**
+     * Applies the given action to all the indexed entries (name and path relative to the archive root).
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        this.entries.forEach(action);
+    }
+
+    private boolean contains(Path path) {
+        final Path found = path.getFileName() != null ? find(path.getFileName().toString()) : null;
+        return found != null && found.equals(path.toAbsolutePath().normalize());
+    }
+
+    private void add(Path path) {
+        final Path absolute = path.toAbsolutePath().normalize();
+        final String relative = relativize(absolute);
+        this.entries.put(absolute.getFileName().toString(), relative);
+        final Map<String, String> current = this.crawling;
+        if (current != null) {
+            current.put(absolute.getFileName().toString(), relative);
+        }
+        this.dirty = true;
+        for (BiConsumer<String, String> listener : this.listeners) {
+            listener.accept(absolute.getFileName().toString(), relative);
+        }
+    }
+
+    private String relativize(Path path) {
+        // the index is independent of the platform separator
+        return this.root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private void crawl() {
+        final long start = System.currentTimeMillis();
+        final Map<String, String> index = new ConcurrentHashMap<>(Math.max(16, this.entries.size()));
+        this.crawling = index;
+        try {
+            Files.walkFileTree(this.root, EnumSet.noneOf(FileVisitOption.class), this.depth, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.equals(root)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    final String name = dir.getFileName().toString();
+                    index.put(name, relativize(dir));
+                    // the contents of the products are not indexed
+                    return name.endsWith(".SAFE") || name.endsWith(".SEN3")
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    index.put(file.getFileName().toString(), relativize(file));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    logger.finest(String.format("Cannot read %s [%s]", file, exc.getMessage()));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            this.entries = index;
+            this.crawled = start;
+            this.generation++;
+            this.complete = true;
+            this.dirty = true;
+            saveIfChanged();
+            logger.info(String.format("Archive index of %s: %d entries crawled in %d seconds",
+                                      this.root, index.size(), (System.currentTimeMillis() - start) / 1000));
+        } catch (Exception e) {
+            logger.warning(String.format("Cannot crawl the archive %s [%s]", this.root, e.getMessage()));
+        } finally {
+            this.crawling = null;
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(this.file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(CRAWLED)) {
+                    this.crawled = Long.parseLong(line.substring(CRAWLED.length()).trim());
+                }
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                this.entries.put(line.substring(line.lastIndexOf('/') + 1), line);
+            }
+        }
+    }
+
+    private void saveIfChanged() {
+        if (!this.dirty) {
+            return;
+        }
+        this.dirty = false;
+        final Path temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(this.file.getParent());
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(temporary)), StandardCharsets.UTF_8))) {
+                writer.write("# " + this.root + "\n");
+                writer.write(CRAWLED + this.crawled + "\n");
+                for (String relative : this.entries.values()) {
+                    writer.write(relative);
+                    writer.write('\n');
+                }
+            }
+            Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            this.dirty = true;
+            logger.warning(String.format("Cannot save the archive index %s [%s]", this.file, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.dias;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the listings of the local archive folders (tile and date folders) of a DIAS.
+ * On object-storage mounts, probing the existence of each product path is slow. Instead, the folder that should
+ * contain a product is listed once, and the products of the same tile and date are looked up in that listing.
+ * The listings expire after one minute, so that newly published products are eventually found.
+ * If the archive is indexed (see {@link ArchiveCatalog}), the index is consulted first.
+ *
+ * @author Cosmin Cara
+ */
+public final class ArchiveDirectoryCache {
+    private static final long TTL = 60000;
+    private static final int MAX_ENTRIES = 10000;
+    private static final Map<Path, Listing> listings = new ConcurrentHashMap<>();
+    private static final Logger logger = Logger.getLogger(ArchiveDirectoryCache.class.getName());
+
+    private ArchiveDirectoryCache() { }
+
+    /**
+     * Checks if the given path exists, using the (cached) listing of its parent folder.
+     */
+    public static boolean exists(Path path) {
+        if (ArchiveCatalog.lookup(path) != null) {
+            return true;
+        }
+        final Path parent = path.getParent();
+        if (parent == null) {
+            return Files.exists(path);
+        }
+        final long now = System.currentTimeMillis();
+        Listing listing = listings.get(parent);
+        if (listing == null || now - listing.time > TTL) {
+            if (listings.size() > MAX_ENTRIES) {
+                listings.values().removeIf(l -> now - l.time > TTL);
+            }
+            // concurrent probes of the same folder wait for a single listing
+            listing = listings.compute(parent, (folder, current) ->
+                    current != null && now - current.time <= TTL ? current : list(folder));
+        }
+        final boolean found = listing.names.contains(path.getFileName().toString());
+        if (found) {
+            ArchiveCatalog.found(path);
+        }
+        return found;
+    }
+
+    /**
+     * Checks if the given product, packed in an archive folder (such as <code>&lt;name&gt;.zip/&lt;name&gt;.SAFE</code>),
+     * exists. Since each product has its own archive folder, only the archive folder is looked up, in the (cached)
+     * listing of the date or tile folder containing it, the products of the same folder sharing the listing.
+     */
+    public static boolean existsPacked(Path path) {
+        final Path container = path.getParent();
+        return container != null ? exists(container) : exists(path);
+    }
+
+    /**
+     * Removes all the cached listings.
+     */
+    public static void clear() {
+        listings.clear();
+    }
+
+    private static Listing list(Path folder) {
+        if (!Files.isDirectory(folder)) {
+            return new Listing(Collections.emptySet());
+        }
+        final Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path entry : stream) {
+                names.add(entry.getFileName().toString());
+            }
+        } catch (IOException e) {
+            logger.warning(String.format("Cannot list folder %s [%s]", folder, e.getMessage()));
+        }
+        logger.finest(String.format("Listed %d entries in %s", names.size(), folder));
+        return new Listing(names);
+    }
+
+    private static class Listing {
+        private final Set<String> names;
+        private final long time;
+
+        Listing(Set<String> names) {
+            this.names = names;
+            this.time = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.dias;
+
+import org.esa.sen2agri.commons.Constants;
+import org.esa.sen2agri.entities.DataSourceConfiguration;
+import org.esa.sen2agri.entities.ProductTypes;
+import org.esa.sen2agri.entities.enums.Satellite;
+import org.esa.sen2agri.services.OfflineCatalog;
+import org.esa.sen2agri.web.beans.Query;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKTReader;
+import ro.cs.tao.datasource.param.CommonParameterNames;
+import ro.cs.tao.eodata.EOProduct;
+import ro.cs.tao.eodata.Polygon2D;
+import ro.cs.tao.eodata.util.TileExtent;
+import ro.cs.tao.products.landsat.Landsat8TileExtent;
+import ro.cs.tao.products.sentinels.Sentinel2TileExtent;
+
+import java.awt.geom.Path2D;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Offline catalog of a local DIAS archive, answering the queries of the data sources that do not fetch the products
+ * remotely (SYMLINK, COPY and CHECK fetch modes) from the index of the archive (see {@link ArchiveCatalog}).
+ * The catalog is enabled by the <code>offline.catalog</code> setting of the data source and is used only after the
+ * archive was completely indexed. Until then, the remote catalog is still queried. Since the products published after
+ * the last crawl of the archive are not indexed, the queries for acquisitions newer than the last crawl (minus the
+ * publication latency, given in hours by the <code>offline.catalog.latency.hours</code> setting) are also answered
+ * by the remote catalog.
+ * The acquisition date, the tile and the product type are read from the product names, while the footprints are
+ * the extents of the tiles (Sentinel-2 and Landsat-8) or are read from the product manifest (Sentinel-1).
+ * The products of the archive index are grouped by satellite, acquisition day and tile, in a secondary index that is
+ * rebuilt when the archive index is loaded or crawled (and updated as products are added to it), so that a query
+ * only looks at the days and tiles it covers.
+ *
+ * @author Cosmin Cara
+ */
+public class LocalArchiveCatalog implements OfflineCatalog {
+    public static final String ENABLED = "offline.catalog";
+    /** The time (in hours) after an acquisition during which its products may still be published in the archive */
+    public static final String LATENCY = "offline.catalog.latency.hours";
+    private static final String PATH_FORMAT = "local.archive.path.format";
+    private static final Pattern S2_NAME =
+            Pattern.compile("^S2[AB]_MSI(L1C|L2A)_(\\d{8}T\\d{6})_N\\d{4}_R\\d{3}_T(\\w{5})_\\d{8}T\\d{6}");
+    private static final Pattern S1_NAME =
+            Pattern.compile("^S1[AB]_\\w{2}_(\\w{3})\\w_\\w{4}_(\\d{8}T\\d{6})_\\d{8}T\\d{6}_\\d{6}_\\w{6}_\\w{4}");
+    private static final Pattern L8_NAME =
+            Pattern.compile("^LC08_(\\w{4})_(\\d{6})_(\\d{8})_\\d{8}_\\d{2}_\\w{2}");
+    private static final Pattern S1_COORDINATES = Pattern.compile("<gml:coordinates>([^<]+)</gml:coordinates>");
+    private static final Pattern S1_PASS = Pattern.compile("<s1:pass>(ASCENDING|DESCENDING)</s1:pass>");
+    private static final DateTimeFormatter NAME_DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final DateTimeFormatter NAME_DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+    /** The footprints of the tiles (package-private, for testing) */
+    static final Map<String, Optional<Geometry>> tileFootprints = new ConcurrentHashMap<>();
+    private static final Map<Path, ProductIndex> indexes = new ConcurrentHashMap<>();
+    private static final Map<String, Manifest> manifests = new ConcurrentHashMap<>();
+    private static final Logger logger = Logger.getLogger(LocalArchiveCatalog.class.getName());
+
+    @Override
+    public boolean supports(DataSourceConfiguration configuration) {
+        final Properties settings = configuration.getAdditionalSettings();
+        return settings != null && Boolean.parseBoolean(settings.getProperty(ENABLED, "false"))
+                && configuration.getLocalArchivePath() != null;
+    }
+
+    @Override
+    public List<EOProduct> query(Query query, DataSourceConfiguration configuration) {
+        final Path root = Paths.get(configuration.getLocalArchivePath());
+        ArchiveCatalog archive = ArchiveCatalog.get(root);
+        if (archive == null) {
+            // the catalog needs the archive index, regardless of the setting of the path builder
+            final Properties settings = new Properties();
+            settings.putAll(configuration.getAdditionalSettings());
+            settings.setProperty(ArchiveCatalog.ENABLED, "true");
+            ArchiveCatalog.register(root, settings.getProperty(PATH_FORMAT), settings);
+            archive = ArchiveCatalog.get(root);
+        }
+        if (archive == null || !archive.isComplete()) {
+            logger.fine(String.format("The archive %s is not indexed yet", root));
+            return null;
+        }
+        final Map<String, Object> values = query.getValues() != null ? query.getValues() : Collections.emptyMap();
+        final Criteria criteria = new Criteria(configuration.getSatellite(), values);
+        // the products published since the last crawl are not indexed: the recent acquisitions are left to the remote catalog
+        final long latency = TimeUnit.HOURS.toMillis(Long.parseLong(
+                configuration.getAdditionalSettings().getProperty(LATENCY, "72").trim()));
+        if (criteria.end == null || criteria.end.toInstant(ZoneOffset.UTC).toEpochMilli() > archive.getCrawled() - latency) {
+            logger.fine(String.format("The query interval is not covered by the index of %s (crawled on %s)",
+                                      root, new Date(archive.getCrawled())));
+            return null;
+        }
+        final List<EOProduct> products = new ArrayList<>();
+        for (IndexedProduct candidate : indexOf(archive).select(criteria)) {
+            if (!criteria.accept(candidate)) {
+                continue;
+            }
+            final EOProduct product = toProduct(candidate, archive.getRoot().resolve(candidate.relative), criteria,
+                                                configuration.getDataSourceName());
+            if (product != null) {
+                products.add(product);
+            }
+        }
+        logger.fine(String.format("%d products of %s found in the index of %s", products.size(),
+                                  configuration.getSatellite().friendlyName(), root));
+        return products;
+    }
+
+    /**
+     * Returns the secondary index of the given archive, rebuilding it if the archive index was replaced.
+     */
+    private static ProductIndex indexOf(ArchiveCatalog archive) {
+        final ProductIndex index = indexes.computeIfAbsent(archive.getRoot(), root -> {
+            final ProductIndex created = new ProductIndex();
+            archive.addListener(created::add);
+            return created;
+        });
+        index.refresh(archive);
+        return index;
+    }
+
+    private EOProduct toProduct(IndexedProduct indexed, Path path, Criteria criteria, String dataSourceName) {
+        final Satellite satellite = criteria.satellite;
+        final String name = indexed.name;
+        final String tile;
+        final LocalDateTime acquisitionDate = indexed.date;
+        final Geometry footprint;
+        final String productType;
+        String orbitDirection = null;
+        switch (satellite) {
+            case Sentinel2:
+                tile = indexed.tile;
+                // the product type as given by the remote catalog of the data source
+                final String type = "L2A".equals(indexed.type) ? Constants.S2L2A_PRODUCT_TYPE : Constants.S2L1C_PRODUCT_TYPE;
+                final String providerType = ProductTypes.Sentinel2.getValue(type, dataSourceName);
+                productType = providerType != null ? providerType : type;
+                footprint = tileFootprint(tile, Sentinel2TileExtent.getInstance());
+                break;
+            case Landsat8:
+                tile = indexed.tile;
+                productType = indexed.type;
+                footprint = tileFootprint(tile, Landsat8TileExtent.getInstance());
+                break;
+            case Sentinel1:
+            default:
+                tile = null;
+                productType = indexed.type;
+                final Manifest manifest = readManifest(name, path);
+                footprint = manifest != null ? manifest.footprint : null;
+                orbitDirection = manifest != null ? manifest.orbitDirection : null;
+                break;
+        }
+        if (footprint == null) {
+            logger.fine(String.format("Cannot determine the footprint of %s, the product will be ignored", name));
+            return null;
+        }
+        if (criteria.footprint != null && !criteria.footprint.intersects(footprint)) {
+            return null;
+        }
+        try {
+            final EOProduct product = new EOProduct();
+            product.setId(name);
+            product.setName(name);
+            // the download service and the database expect the satellite as the type of the product
+            product.setProductType(satellite.name());
+            product.addAttribute(CommonParameterNames.PRODUCT_TYPE, productType);
+            product.setAcquisitionDate(Date.from(acquisitionDate.toInstant(ZoneOffset.UTC)));
+            product.setGeometry(footprint.toText());
+            product.setLocation(path.toUri().toString());
+            if (tile != null) {
+                product.addAttribute("tiles", tile);
+            }
+            if (orbitDirection != null) {
+                product.addAttribute("orbitdirection", orbitDirection);
+            }
+            if (satellite != Satellite.Landsat8) {
+                product.addAttribute("filename", name + ".SAFE");
+            }
+            return product;
+        } catch (Exception e) {
+            logger.warning(String.format("Cannot create the product %s [%s]", name, e.getMessage()));
+            return null;
+        }
+    }
+
+    private static Geometry tileFootprint(String tile, TileExtent extent) {
+        return tileFootprints.computeIfAbsent(tile, t -> {
+            final Path2D.Double tileExtent = extent.getTileExtent(t);
+            if (tileExtent == null) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(new WKTReader().read(Polygon2D.fromPath2D(tileExtent).toWKT()));
+            } catch (Exception e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    /**
+     * Reads the footprint and the orbit direction of a Sentinel-1 product from its manifest.
+     * Only the manifests read successfully are cached, so that a product that could not be read is tried again at the
+     * next query.
+     */
+    private static Manifest readManifest(String name, Path path) {
+        return manifests.computeIfAbsent(name, n -> {
+            final Manifest values = new Manifest();
+            final Path manifest = path.resolve("manifest.safe");
+            try {
+                final String contents = new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8);
+                Matcher matcher = S1_COORDINATES.matcher(contents);
+                if (matcher.find()) {
+                    // the coordinates are given as lat,lon pairs
+                    final StringBuilder wkt = new StringBuilder("POLYGON((");
+                    final String[] points = matcher.group(1).trim().split("\\s+");
+                    for (String point : points) {
+                        final String[] latLon = point.split(",");
+                        wkt.append(latLon[1]).append(' ').append(latLon[0]).append(',');
+                    }
+                    final String[] first = points[0].split(",");
+                    wkt.append(first[1]).append(' ').append(first[0]).append("))");
+                    values.footprint = new WKTReader().read(wkt.toString());
+                }
+                matcher = S1_PASS.matcher(contents);
+                if (matcher.find()) {
+                    values.orbitDirection = matcher.group(1);
+                }
+            } catch (Exception e) {
+                logger.fine(String.format("Cannot read %s [%s]", manifest, e.getMessage()));
+            }
+            return values.footprint != null ? values : null;
+        });
+    }
+
+    private static class Manifest {
+        private Geometry footprint;
+        private String orbitDirection;
+    }
+
+    /**
+     * A product of the archive index, with the values read from its name.
+     */
+    private static class IndexedProduct {
+        private final String name;
+        private final String relative;
+        private final Satellite satellite;
+        private final String type;
+        private final LocalDateTime date;
+        private final String tile;
+
+        private IndexedProduct(String name, String relative, Satellite satellite, String type, LocalDateTime date, String tile) {
+            this.name = name;
+            this.relative = relative;
+            this.satellite = satellite;
+            this.type = type;
+            this.date = date;
+            this.tile = tile;
+        }
+
+        /**
+         * Parses the name of an entry of the archive index. Returns <code>null</code> if it is not a product name.
+         */
+        static IndexedProduct parse(String entry, String relative) {
+            try {
+                Matcher matcher = S2_NAME.matcher(entry);
+                if (matcher.find()) {
+                    return new IndexedProduct(matcher.group(), relative, Satellite.Sentinel2, matcher.group(1),
+                                              LocalDateTime.parse(matcher.group(2), NAME_DATE_TIME), matcher.group(3));
+                }
+                matcher = L8_NAME.matcher(entry);
+                if (matcher.find()) {
+                    return new IndexedProduct(matcher.group(), relative, Satellite.Landsat8, matcher.group(1),
+                                              LocalDate.parse(matcher.group(3), NAME_DATE).atStartOfDay(), matcher.group(2));
+                }
+                matcher = S1_NAME.matcher(entry);
+                if (matcher.find()) {
+                    return new IndexedProduct(matcher.group(), relative, Satellite.Sentinel1, matcher.group(1),
+                                              LocalDateTime.parse(matcher.group(2), NAME_DATE_TIME), null);
+                }
+            } catch (DateTimeParseException e) {
+                logger.finest(String.format("Invalid date in %s", entry));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The products of an archive index, by satellite, acquisition day and tile (the products without tile being
+     * grouped under an empty tile).
+     */
+    private static class ProductIndex {
+        private volatile Map<Satellite, NavigableMap<LocalDate, Map<String, Map<String, IndexedProduct>>>> products;
+        private long generation = -1;
+
+        private ProductIndex() {
+            this.products = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * Rebuilds the index if the archive index was loaded or crawled since the last build.
+         */
+        synchronized void refresh(ArchiveCatalog archive) {
+            final long current = archive.getGeneration();
+            if (current == this.generation) {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            final Map<Satellite, NavigableMap<LocalDate, Map<String, Map<String, IndexedProduct>>>> built =
+                    new ConcurrentHashMap<>();
+            archive.forEach((name, relative) -> add(built, name, relative));
+            this.products = built;
+            this.generation = current;
+            logger.fine(String.format("Product index of %s built in %d ms", archive.getRoot(),
+                                      System.currentTimeMillis() - start));
+        }
+
+        /**
+         * Adds an entry found after the last build.
+         */
+        synchronized void add(String name, String relative) {
+            add(this.products, name, relative);
+        }
+
+        List<IndexedProduct> select(Criteria criteria) {
+            final NavigableMap<LocalDate, Map<String, Map<String, IndexedProduct>>> days = this.products.get(criteria.satellite);
+            if (days == null) {
+                return Collections.emptyList();
+            }
+            NavigableMap<LocalDate, Map<String, Map<String, IndexedProduct>>> range = days;
+            if (criteria.start != null) {
+                range = range.tailMap(criteria.start.toLocalDate(), true);
+            }
+            if (criteria.end != null) {
+                range = range.headMap(criteria.end.toLocalDate(), true);
+            }
+            final List<IndexedProduct> results = new ArrayList<>();
+            for (Map<String, Map<String, IndexedProduct>> tiles : range.values()) {
+                if (criteria.tiles.isEmpty() || criteria.satellite == Satellite.Sentinel1) {
+                    tiles.values().forEach(group -> results.addAll(group.values()));
+                } else {
+                    for (String tile : criteria.tiles) {
+                        final Map<String, IndexedProduct> group = tiles.get(tile);
+                        if (group != null) {
+                            results.addAll(group.values());
+                        }
+                    }
+                }
+            }
+            return results;
+        }
+
+        private static void add(Map<Satellite, NavigableMap<LocalDate, Map<String, Map<String, IndexedProduct>>>> products,
+                                String name, String relative) {
+            final IndexedProduct product = IndexedProduct.parse(name, relative);
+            if (product == null) {
+                return;
+            }
+            // the same product may be indexed several times (for instance, name.zip/name.SAFE)
+            products.computeIfAbsent(product.satellite, s -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(product.date.toLocalDate(), d -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(product.tile != null ? product.tile : "", t -> new ConcurrentHashMap<>())
+                    .merge(product.name, product,
+                           (previous, current) -> !previous.relative.endsWith(".SAFE") && current.relative.endsWith(".SAFE")
+                                   ? current : previous);
+        }
+    }
+
+    /**
+     * The query parameters, in the form used for filtering the index.
+     */
+    private static class Criteria {
+        private final Satellite satellite;
+        private final LocalDateTime start;
+        private final LocalDateTime end;
+        private final Set<String> tiles;
+        private final String productType;
+        private final String productName;
+        private final Geometry footprint;
+
+        Criteria(Satellite satellite, Map<String, Object> values) {
+            this.satellite = satellite;
+            this.start = dateOf(values.get(CommonParameterNames.START_DATE), 0);
+            this.end = dateOf(values.get(CommonParameterNames.END_DATE), 1);
+            this.tiles = new HashSet<>();
+            final Object tileValue = values.get(CommonParameterNames.TILE);
+            if (tileValue != null) {
+                for (String tile : tileValue.toString().replace("[", "").replace("]", "").split(",")) {
+                    if (!tile.trim().isEmpty()) {
+                        this.tiles.add(tile.trim());
+                    }
+                }
+            }
+            final Object type = values.get(CommonParameterNames.PRODUCT_TYPE);
+            this.productType = type != null ? type.toString().toUpperCase() : null;
+            final Object product = values.get(CommonParameterNames.PRODUCT);
+            this.productName = product != null ? product.toString().replace(".SAFE", "") : null;
+            final Object footprintValue = values.get(CommonParameterNames.FOOTPRINT);
+            Geometry geometry = null;
+            if (footprintValue != null) {
+                try {
+                    geometry = new WKTReader().read(footprintValue instanceof Polygon2D
+                                                            ? ((Polygon2D) footprintValue).toWKT()
+                                                            : footprintValue.toString());
+                } catch (Exception e) {
+                    logger.warning(String.format("Invalid query footprint [%s]", e.getMessage()));
+                }
+            }
+            this.footprint = geometry;
+        }
+
+        /**
+         * Checks the criteria that can be verified from the product name.
+         */
+        boolean accept(IndexedProduct product) {
+            if (product.satellite != this.satellite
+                    || (this.productName != null && !product.name.startsWith(this.productName))) {
+                return false;
+            }
+            if (this.productType != null) {
+                switch (this.satellite) {
+                    case Sentinel2:
+                        // the product types differ among providers (S2MSI1C, L1C, LEVEL1C etc.)
+                        if (!this.productType.endsWith(product.type.substring(1))) {
+                            return false;
+                        }
+                        break;
+                    case Landsat8:
+                        if (this.productType.length() == 4 && !this.productType.equals(product.type)) {
+                            return false;
+                        }
+                        break;
+                    case Sentinel1:
+                    default:
+                        if (!this.productType.startsWith(product.type)) {
+                            return false;
+                        }
+                        break;
+                }
+            }
+            return (this.start == null || !product.date.isBefore(this.start))
+                    && (this.end == null || !product.date.isAfter(this.end))
+                    && (this.tiles.isEmpty() || product.tile == null || this.tiles.contains(product.tile));
+        }
+
+        /**
+         * Parses a date parameter, which is either a date or an interval (of which the given end is taken).
+         */
+        private static LocalDateTime dateOf(Object value, int index) {
+            if (value instanceof Object[]) {
+                final Object[] interval = (Object[]) value;
+                value = interval.length > index ? interval[index] : null;
+            }
+            if (value == null) {
+                return null;
+            }
+            final String text = value.toString().trim().replace('T', ' ');
+            try {
+                return text.length() >= 19
+                        ? LocalDateTime.parse(text.substring(0, 19).replace(' ', 'T'))
+                        : LocalDate.parse(text.substring(0, 10)).atStartOfDay();
+            } catch (Exception e) {
+                logger.warning(String.format("Invalid query date %s", value));
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.dias;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled form of a local archive path format (such as <code>UU/L/SS/yyyy/MM/dd</code> or
+ * <code>PPP/RRR/yyyy/MM</code>). The format is parsed once into a sequence of literals and tokens, and the compiled
+ * templates are cached by format.
+ * The tokens are the runs of the following letters, the length of the run giving the (0-padded) width of the value:
+ * <ul>
+ *     <li><code>y</code> (or <code>Y</code>), <code>M</code>, <code>d</code>: the year, month and day of the date</li>
+ *     <li><code>q</code>: the quarter of the year of the date, prefixed by <code>q</code> (for instance, q2)</li>
+ *     <li><code>U</code>, <code>L</code>, <code>S</code>: the UTM code, latitude band and square of a Sentinel-2 tile</li>
+ *     <li><code>P</code>, <code>R</code>: the path and row of a Landsat-8 tile</li>
+ * </ul>
+ * The tile letters may also be given in lower case when they form a whole level of the format (for instance,
+ * <code>uu/l/ss</code>). Any other character is copied as it is.
+ *
+ * @author Cosmin Cara
+ */
+public final class PathTemplate {
+    private static final Map<String, PathTemplate> templates = new ConcurrentHashMap<>();
+    private final Token[] tokens;
+    private final boolean hasDate;
+
+    /**
+     * Returns the compiled template of the given format.
+     */
+    public static PathTemplate compile(String format) {
+        return templates.computeIfAbsent(format, PathTemplate::new);
+    }
+
+    private PathTemplate(String format) {
+        final List<Token> tokens = new ArrayList<>();
+        boolean hasDate = false;
+        final StringBuilder literal = new StringBuilder();
+        for (String level : format.split("/")) {
+            if (level.isEmpty()) {
+                continue;
+            }
+            if (literal.length() > 0 || !tokens.isEmpty()) {
+                literal.append('/');
+            }
+            final boolean wholeLevel = level.chars().allMatch(c -> c == level.charAt(0));
+            int i = 0;
+            while (i < level.length()) {
+                char ch = level.charAt(i);
+                int end = i;
+                while (end < level.length() && level.charAt(end) == ch) {
+                    end++;
+                }
+                if (wholeLevel && "ulspr".indexOf(ch) >= 0) {
+                    ch = Character.toUpperCase(ch);
+                }
+                if ("yYMdqULSPR".indexOf(ch) >= 0) {
+                    if (literal.length() > 0) {
+                        tokens.add(new Token('\0', 0, literal.toString()));
+                        literal.setLength(0);
+                    }
+                    tokens.add(new Token(ch, end - i, null));
+                    hasDate |= "yYMdq".indexOf(ch) >= 0;
+                } else {
+                    literal.append(level, i, end);
+                }
+                i = end;
+            }
+        }
+        if (literal.length() > 0) {
+            tokens.add(new Token('\0', 0, literal.toString()));
+        }
+        this.tokens = tokens.toArray(new Token[0]);
+        this.hasDate = hasDate;
+    }
+
+    /**
+     * Resolves the template against the given root.
+     * @param root  The root path
+     * @param date  The date (may be <code>null</code> if the format has no date token)
+     * @param tile  The tile identifier (a Sentinel-2 tile or a Landsat-8 path and row; may be <code>null</code> if the
+     *              format has no tile token)
+     */
+    public Path resolve(Path root, Date date, String tile) {
+        if (this.tokens.length == 0) {
+            return root;
+        }
+        final LocalDate localDate = this.hasDate ? Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault()).toLocalDate() : null;
+        final StringBuilder builder = new StringBuilder(32);
+        for (Token token : this.tokens) {
+            switch (token.type) {
+                case 'y':
+                case 'Y':
+                    pad(builder, token.width == 2 ? localDate.getYear() % 100 : localDate.getYear(), token.width);
+                    break;
+                case 'M':
+                    pad(builder, localDate.getMonthValue(), token.width);
+                    break;
+                case 'd':
+                    pad(builder, localDate.getDayOfMonth(), token.width);
+                    break;
+                case 'q':
+                    builder.append('q');
+                    pad(builder, (localDate.getMonthValue() - 1) / 3 + 1, token.width - 1);
+                    break;
+                case 'U':
+                    pad(builder, Integer.parseInt(tile.substring(0, tile.length() - 3)), token.width);
+                    break;
+                case 'L':
+                    builder.append(tile, tile.length() - 3, tile.length() - 3 + Math.min(token.width, 1));
+                    break;
+                case 'S':
+                    builder.append(tile, tile.length() - 2, tile.length() - 2 + Math.min(token.width, 2));
+                    break;
+                case 'P':
+                    pad(builder, Integer.parseInt(tile.substring(0, 3)), token.width);
+                    break;
+                case 'R':
+                    pad(builder, Integer.parseInt(tile.substring(3)), token.width);
+                    break;
+                default:
+                    builder.append(token.literal);
+                    break;
+            }
+        }
+        return root.resolve(builder.toString());
+    }
+
+    private static void pad(StringBuilder builder, int value, int width) {
+        final String digits = String.valueOf(value);
+        for (int i = digits.length(); i < width; i++) {
+            builder.append('0');
+        }
+        builder.append(digits);
+    }
+
+    private static class Token {
+        private final char type;
+        private final int width;
+        private final String literal;
+
+        Token(char type, int width, String literal) {
+            this.type = type;
+            this.width = width;
+            this.literal = literal;
+        }
+    }
+}
@@ -16,9 +16,9 @@
 
 package org.esa.sen2agri.dias.mundi;
 
+import org.esa.sen2agri.dias.ArchiveDirectoryCache;
 import ro.cs.tao.eodata.EOProduct;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Date;
@@ -61,14 +61,14 @@ public class Sentinel1PathBuilder extends SentinelPathBuilder {
         productFolderPath = productFolderPath.resolve(this.localPathFormat);
         Path fullProductPath = productFolderPath.resolve(productName);
         logger.fine(String.format("Looking for product %s into %s", product.getName(), fullProductPath));
-        if (!this.testOnly && !Files.exists(fullProductPath)) {
+        if (!this.testOnly && !ArchiveDirectoryCache.exists(fullProductPath)) {
             date = product.getProcessingDate();
             if (date != null) {
                 productFolderPath = dateToPath(this.repositoryPath.resolve(getBucketPart(product)), date, this.localPathDatePart);
                 productFolderPath = productFolderPath.resolve(this.localPathFormat);
                 fullProductPath = productFolderPath.resolve(productName);
                 logger.fine(String.format("Alternatively looking for product %s into %s", product.getName(), fullProductPath));
-                if (!Files.exists(fullProductPath)) {
+                if (!ArchiveDirectoryCache.exists(fullProductPath)) {
                     fullProductPath = null;
                 }
             } else {
@@ -16,11 +16,12 @@
 
 package org.esa.sen2agri.dias.mundi;
 
+import org.esa.sen2agri.dias.ArchiveDirectoryCache;
+import org.esa.sen2agri.dias.PathTemplate;
 import ro.cs.tao.eodata.EOProduct;
 import ro.cs.tao.products.sentinels.Sentinel2ProductHelper;
 import ro.cs.tao.products.sentinels.SentinelProductHelper;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.logging.Logger;
@@ -74,14 +75,14 @@ public class Sentinel2PathBuilder extends SentinelPathBuilder {
                 productFolderPath = dateToPath(productFolderPath, date, this.localPathDatePart);
                 path = productFolderPath.resolve(productName);
                 logger.fine(String.format("Looking for product %s into %s", product.getName(), path));
-                if (!this.testOnly && !Files.exists(path)) {
+                if (!this.testOnly && !ArchiveDirectoryCache.exists(path)) {
                     // maybe products are grouped by processing date
                     date = product.getProcessingDate();
                     if (date != null) {
                         productFolderPath = dateToPath(tileToPath(this.repositoryPath.resolve(getBucketPart(product)), tileId), date, this.localPathDatePart);
                         path = productFolderPath.resolve(productName);
                         logger.fine(String.format("Alternatively looking for product %s into %s", product.getName(), path));
-                        if (!Files.exists(path)) {
+                        if (!ArchiveDirectoryCache.exists(path)) {
                             path = null;
                         }
                     } else {
@@ -94,62 +95,6 @@ public class Sentinel2PathBuilder extends SentinelPathBuilder {
     }
 
     private Path tileToPath(Path path, String tileId) {
-        final UTMCodeTokenizer tokenizer = new UTMCodeTokenizer(localPathFormat);
-        return path.resolve(tokenizer.getUtmCodePart(tileId))
-                    .resolve(tokenizer.getLatBandPart(tileId))
-                    .resolve(tokenizer.getSquarePart(tileId));
-    }
-
-    private class UTMCodeTokenizer {
-        private String utmCode;
-        private String latBand;
-        private String square;
-
-        UTMCodeTokenizer(String format) {
-            utmCode = "";
-            latBand = "";
-            square = "";
-            parse(format);
-        }
-
-        String getUtmCodePart(String value) {
-            return String.format(utmCode, Integer.parseInt(value.substring(0, value.length() - 3)));
-        }
-
-        String getLatBandPart(String value) {
-            return String.format(latBand, value.substring(value.length() - 3, value.length() - 2));
-        }
-
-        String getSquarePart(String value) {
-            return String.format(square, value.substring(value.length() - 2, value.length()));
-        }
-
-        @SuppressWarnings("StringConcatenationInLoop")
-        private void parse(String format) {
-            Scanner scanner = new Scanner(format);
-            scanner.useDelimiter("");
-            while (scanner.hasNext()) {
-                String ch = scanner.next();
-                switch (ch) {
-                    case "u":
-                    case "U":
-                        utmCode += ch;
-                        break;
-                    case "l":
-                    case "L":
-                        latBand += ch;
-                        break;
-                    case "s":
-                    case "S":
-                        square += ch;
-                        break;
-                    default:
-                        break;
-                }
-            }
-            utmCode = "%0" + utmCode.length() + "d";
-            latBand = "%." + latBand.length() + "s";
-            square = "%." + square.length() + "s";
-        }
+        return PathTemplate.compile(localPathFormat).resolve(path, null, tileId);
     }
 }
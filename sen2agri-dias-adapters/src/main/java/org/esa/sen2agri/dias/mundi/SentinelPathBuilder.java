@@ -16,19 +16,24 @@
 
 package org.esa.sen2agri.dias.mundi;
 
+import org.esa.sen2agri.dias.ArchiveCatalog;
+import org.esa.sen2agri.dias.PathTemplate;
 import ro.cs.tao.datasource.DefaultProductPathBuilder;
 import ro.cs.tao.eodata.EOProduct;
 
 import java.nio.file.Path;
-import java.util.Calendar;
+import java.nio.file.Paths;
+import java.util.Date;
 import java.util.Properties;
 
 abstract class SentinelPathBuilder extends DefaultProductPathBuilder {
+    private static final Path EMPTY = Paths.get("");
     String localPathDatePart;
     private String bucketPart;
 
     SentinelPathBuilder(Path repositoryPath, String localPathFormat, Properties properties) {
         super(repositoryPath, null, properties);
+        ArchiveCatalog.register(repositoryPath, localPathFormat, properties);
         this.bucketPart = localPathFormat.substring(0, localPathFormat.indexOf('/'));
     }
 
@@ -37,12 +42,14 @@ abstract class SentinelPathBuilder extends DefaultProductPathBuilder {
         this.bucketPart = localPathFormat.substring(0, localPathFormat.indexOf('/'));
     }
 
+    @Override
+    public Path dateToPath(Path root, Date date, String formatOnDisk) {
+        return formatOnDisk != null
+                ? PathTemplate.compile(formatOnDisk).resolve(root, date, null)
+                : super.dateToPath(root, date, formatOnDisk);
+    }
+
     String getBucketPart(EOProduct product) {
-        final Calendar calendar = Calendar.getInstance();
-        calendar.setTime(product.getAcquisitionDate());
-        final int year = calendar.get(Calendar.YEAR);
-        final int month = calendar.get(Calendar.MONTH) + 1;
-        final int quarter = month < 4 ? 1 : month < 7 ? 2 : month < 10 ? 3 : 4;
-        return this.bucketPart.replace("YYYY", String.valueOf(year)).replace("qq", "q" + quarter);
+        return PathTemplate.compile(this.bucketPart).resolve(EMPTY, product.getAcquisitionDate(), null).toString();
     }
 }
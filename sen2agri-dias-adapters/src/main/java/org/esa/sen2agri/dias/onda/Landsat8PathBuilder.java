@@ -16,26 +16,35 @@
 
 package org.esa.sen2agri.dias.onda;
 
+import org.esa.sen2agri.dias.ArchiveCatalog;
+import org.esa.sen2agri.dias.ArchiveDirectoryCache;
+import org.esa.sen2agri.dias.PathTemplate;
 import ro.cs.tao.datasource.DefaultProductPathBuilder;
 import ro.cs.tao.eodata.EOProduct;
 import ro.cs.tao.products.landsat.Landsat8ProductHelper;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Date;
 import java.util.Properties;
-import java.util.Scanner;
 
 public class Landsat8PathBuilder extends DefaultProductPathBuilder {
 
     public Landsat8PathBuilder(Path repositoryPath, String localPathFormat, Properties properties) {
         super(repositoryPath, localPathFormat, properties);
+        ArchiveCatalog.register(repositoryPath, localPathFormat, properties);
     }
 
     public Landsat8PathBuilder(Path repositoryPath, String localPathFormat, Properties properties, boolean testOnly) {
         super(repositoryPath, localPathFormat, properties, testOnly);
     }
 
+    @Override
+    public Path dateToPath(Path root, Date date, String formatOnDisk) {
+        return formatOnDisk != null
+                ? PathTemplate.compile(formatOnDisk).resolve(root, date, null)
+                : super.dateToPath(root, date, formatOnDisk);
+    }
+
     @Override
     public Path getProductPath(Path repositoryPath, EOProduct product) {
         Path path = null;
@@ -48,7 +57,7 @@ public class Landsat8PathBuilder extends DefaultProductPathBuilder {
             path = productFolderPath.resolve(productName.concat(".gz"))
                                     .resolve(productName);
             logger.fine(String.format("Looking for product %s into %s", product.getName(), path));
-            if (!this.testOnly && !Files.exists(path)) {
+            if (!this.testOnly && !ArchiveDirectoryCache.existsPacked(path)) {
                 // maybe products are grouped by processing date
                 date = product.getProcessingDate();
                 if (date != null) {
@@ -56,7 +65,7 @@ public class Landsat8PathBuilder extends DefaultProductPathBuilder {
                     path = productFolderPath.resolve(productName.concat(".gz"))
                                             .resolve(productName);
                     logger.fine(String.format("Alternatively looking for product %s into %s", product.getName(), path));
-                    if (!Files.exists(path)) {
+                    if (!ArchiveDirectoryCache.existsPacked(path)) {
                         path = null;
                     }
                 } else {
@@ -68,46 +77,6 @@ public class Landsat8PathBuilder extends DefaultProductPathBuilder {
     }
 
     private Path pathRowToPath(Path path, String pathRow) {
-        final PathRowTokenizer tokenizer = new PathRowTokenizer(localPathFormat);
-        return path.resolve(tokenizer.getPathPart(pathRow))
-                .resolve(tokenizer.getRowPart(pathRow));
-    }
-
-    private class PathRowTokenizer {
-        private String path;
-        private String row;
-
-        PathRowTokenizer(String format) {
-            path = "";
-            row = "";
-            parse(format);
-        }
-
-        String getPathPart(String pathRow) { return String.format(path, Integer.parseInt(pathRow.substring(0, 3))); }
-
-        String getRowPart(String pathRow) { return String.format(row, Integer.parseInt(pathRow.substring(3))); }
-
-        @SuppressWarnings("StringConcatenationInLoop")
-        private void parse(String format) {
-            Scanner scanner = new Scanner(format);
-            scanner.useDelimiter("");
-            while (scanner.hasNext()) {
-                String ch = scanner.next();
-                switch (ch) {
-                    case "p":
-                    case "P":
-                        path += ch;
-                        break;
-                    case "r":
-                    case "R":
-                        row += ch;
-                        break;
-                    default:
-                        break;
-                }
-            }
-            path = "%0" + path.length() + "d";
-            row = "%0" + row.length() + "d";
-        }
+        return PathTemplate.compile(localPathFormat).resolve(path, null, pathRow);
     }
 }
@@ -16,10 +16,12 @@
 
 package org.esa.sen2agri.dias.onda;
 
+import org.esa.sen2agri.dias.ArchiveCatalog;
+import org.esa.sen2agri.dias.ArchiveDirectoryCache;
+import org.esa.sen2agri.dias.PathTemplate;
 import ro.cs.tao.datasource.DefaultProductPathBuilder;
 import ro.cs.tao.eodata.EOProduct;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Date;
 import java.util.Properties;
@@ -28,12 +30,20 @@ public class Sentinel1PathBuilder extends DefaultProductPathBuilder {
 
     public Sentinel1PathBuilder(Path repositoryPath, String localPathFormat, Properties properties) {
         super(repositoryPath, localPathFormat, properties);
+        ArchiveCatalog.register(repositoryPath, localPathFormat, properties);
     }
 
     public Sentinel1PathBuilder(Path repositoryPath, String localPathFormat, Properties properties, boolean testOnly) {
         super(repositoryPath, localPathFormat, properties, testOnly);
     }
 
+    @Override
+    public Path dateToPath(Path root, Date date, String formatOnDisk) {
+        return formatOnDisk != null
+                ? PathTemplate.compile(formatOnDisk).resolve(root, date, null)
+                : super.dateToPath(root, date, formatOnDisk);
+    }
+
     @Override
     public Path getProductPath(Path repositoryPath, EOProduct product) {
         // Products are assumed to be organized according to the pattern defined in services.properties
@@ -43,7 +53,7 @@ public class Sentinel1PathBuilder extends DefaultProductPathBuilder {
         Path fullProductPath = productFolderPath.resolve(productName.replace(".SAFE", ".zip"))
                                                 .resolve(productName);
         logger.fine(String.format("Looking for product %s into %s", product.getName(), fullProductPath));
-        if (!this.testOnly && !Files.exists(fullProductPath)) {
+        if (!this.testOnly && !ArchiveDirectoryCache.existsPacked(fullProductPath)) {
             date = product.getProcessingDate();
             if (date != null) {
                 productFolderPath = dateToPath(this.repositoryPath, date, this.localPathFormat);
@@ -51,7 +61,7 @@ public class Sentinel1PathBuilder extends DefaultProductPathBuilder {
                 fullProductPath = productFolderPath.resolve(productName.replace(".SAFE", ".zip"))
                                                    .resolve(productName);
                 logger.fine(String.format("Alternatively looking for product %s into %s", product.getName(), fullProductPath));
-                if (!Files.exists(fullProductPath)) {
+                if (!ArchiveDirectoryCache.existsPacked(fullProductPath)) {
                     fullProductPath = null;
                 }
             } else {
@@ -16,16 +16,17 @@
 
 package org.esa.sen2agri.dias.onda;
 
+import org.esa.sen2agri.dias.ArchiveCatalog;
+import org.esa.sen2agri.dias.ArchiveDirectoryCache;
+import org.esa.sen2agri.dias.PathTemplate;
 import ro.cs.tao.datasource.DefaultProductPathBuilder;
 import ro.cs.tao.eodata.EOProduct;
 import ro.cs.tao.products.sentinels.Sentinel2ProductHelper;
 import ro.cs.tao.products.sentinels.SentinelProductHelper;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Date;
 import java.util.Properties;
-import java.util.Scanner;
 import java.util.logging.Logger;
 
 /**
@@ -40,12 +41,20 @@ public class Sentinel2PathBuilder extends DefaultProductPathBuilder {
 
     public Sentinel2PathBuilder(Path repositoryPath, String localPathFormat, Properties properties) {
         super(repositoryPath, null, properties);
+        ArchiveCatalog.register(repositoryPath, localPathFormat, properties);
     }
 
     public Sentinel2PathBuilder(Path repositoryPath, String localPathFormat, Properties properties, boolean testOnly) {
         super(repositoryPath, localPathFormat, properties, testOnly);
     }
 
+    @Override
+    public Path dateToPath(Path root, Date date, String formatOnDisk) {
+        return formatOnDisk != null
+                ? PathTemplate.compile(formatOnDisk).resolve(root, date, null)
+                : super.dateToPath(root, date, formatOnDisk);
+    }
+
     @Override
     public Path getProductPath(Path repositoryPath, EOProduct product) {
         Path path = null;
@@ -66,7 +75,7 @@ public class Sentinel2PathBuilder extends DefaultProductPathBuilder {
                 path = productFolderPath.resolve(productName.replace(".SAFE", ".zip"))
                                         .resolve(productName);
                 logger.fine(String.format("Looking for product %s into %s", product.getName(), path));
-                if (!this.testOnly && !Files.exists(path)) {
+                if (!this.testOnly && !ArchiveDirectoryCache.existsPacked(path)) {
                     // maybe products are grouped by processing date
                     date = product.getProcessingDate();
                     if (date != null) {
@@ -74,7 +83,7 @@ public class Sentinel2PathBuilder extends DefaultProductPathBuilder {
                         path = productFolderPath.resolve(productName.replace(".SAFE", ".zip"))
                                                 .resolve(productName);
                         logger.fine(String.format("Alternatively looking for product %s into %s", product.getName(), path));
-                        if (!Files.exists(path)) {
+                        if (!ArchiveDirectoryCache.existsPacked(path)) {
                             path = null;
                         }
                     } else {
@@ -87,62 +96,6 @@ public class Sentinel2PathBuilder extends DefaultProductPathBuilder {
     }
 
     private Path tileToPath(Path path, String tileId) {
-        final UTMCodeTokenizer tokenizer = new UTMCodeTokenizer(localPathFormat);
-        return path.resolve(tokenizer.getUtmCodePart(tileId))
-                    .resolve(tokenizer.getLatBandPart(tileId))
-                    .resolve(tokenizer.getSquarePart(tileId));
-    }
-
-    private class UTMCodeTokenizer {
-        private String utmCode;
-        private String latBand;
-        private String square;
-
-        UTMCodeTokenizer(String format) {
-            utmCode = "";
-            latBand = "";
-            square = "";
-            parse(format);
-        }
-
-        String getUtmCodePart(String value) {
-            return String.format(utmCode, Integer.parseInt(value.substring(0, value.length() - 3)));
-        }
-
-        String getLatBandPart(String value) {
-            return String.format(latBand, value.substring(value.length() - 3, value.length() - 2));
-        }
-
-        String getSquarePart(String value) {
-            return String.format(square, value.substring(value.length() - 2, value.length()));
-        }
-
-        @SuppressWarnings("StringConcatenationInLoop")
-        private void parse(String format) {
-            Scanner scanner = new Scanner(format);
-            scanner.useDelimiter("");
-            while (scanner.hasNext()) {
-                String ch = scanner.next();
-                switch (ch) {
-                    case "u":
-                    case "U":
-                        utmCode += ch;
-                        break;
-                    case "l":
-                    case "L":
-                        latBand += ch;
-                        break;
-                    case "s":
-                    case "S":
-                        square += ch;
-                        break;
-                    default:
-                        break;
-                }
-            }
-            utmCode = "%0" + utmCode.length() + "d";
-            latBand = "%." + latBand.length() + "s";
-            square = "%." + square.length() + "s";
-        }
+        return PathTemplate.compile(localPathFormat).resolve(path, null, tileId);
     }
 }
@@ -16,11 +16,13 @@
 
 package org.esa.sen2agri.dias.sobloo;
 
+import org.esa.sen2agri.dias.ArchiveCatalog;
+import org.esa.sen2agri.dias.ArchiveDirectoryCache;
+import org.esa.sen2agri.dias.PathTemplate;
 import ro.cs.tao.datasource.DefaultProductPathBuilder;
 import ro.cs.tao.eodata.EOProduct;
 import ro.cs.tao.products.landsat.Landsat8ProductHelper;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 
@@ -29,6 +31,7 @@ public class Landsat8PathBuilder extends DefaultProductPathBuilder {
 
     public Landsat8PathBuilder(Path repositoryPath, String localPathFormat, Properties properties) {
         super(repositoryPath, null, properties);
+        ArchiveCatalog.register(repositoryPath, localPathFormat, properties);
         List<String> tokens = Arrays.asList(localPathFormat.split("/"));
         this.localPathFormat = String.join("/", tokens.subList(0, 2));
         this.localPathDatePart = String.join("/", tokens.subList(0, 0));
@@ -56,14 +59,14 @@ public class Landsat8PathBuilder extends DefaultProductPathBuilder {
             productFolderPath = dateToPath(productFolderPath, date, this.localPathDatePart);
             path = productFolderPath.resolve(productName);
             logger.fine(String.format("Looking for product %s into %s", product.getName(), path));
-            if (!this.testOnly && !Files.exists(path)) {
+            if (!this.testOnly && !ArchiveDirectoryCache.exists(path)) {
                 // maybe products are grouped by processing date
                 date = product.getProcessingDate();
                 if (date != null) {
                     productFolderPath = dateToPath(pathRowToPath(this.repositoryPath, tileId), date, this.localPathDatePart);
                     path = productFolderPath.resolve(productName);
                     logger.fine(String.format("Alternatively looking for product %s into %s", product.getName(), path));
-                    if (!Files.exists(path)) {
+                    if (!ArchiveDirectoryCache.exists(path)) {
                         path = null;
                     }
                 } else {
@@ -75,46 +78,6 @@ public class Landsat8PathBuilder extends DefaultProductPathBuilder {
     }
 
     private Path pathRowToPath(Path path, String pathRow) {
-        final PathRowTokenizer tokenizer = new PathRowTokenizer(localPathFormat);
-        return path.resolve(tokenizer.getPathPart(pathRow))
-                .resolve(tokenizer.getRowPart(pathRow));
-    }
-
-    private class PathRowTokenizer {
-        private String path;
-        private String row;
-
-        PathRowTokenizer(String format) {
-            path = "";
-            row = "";
-            parse(format);
-        }
-
-        String getPathPart(String pathRow) { return String.format(path, Integer.parseInt(pathRow.substring(0, 3))); }
-
-        String getRowPart(String pathRow) { return String.format(row, Integer.parseInt(pathRow.substring(3))); }
-
-        @SuppressWarnings("StringConcatenationInLoop")
-        private void parse(String format) {
-            Scanner scanner = new Scanner(format);
-            scanner.useDelimiter("");
-            while (scanner.hasNext()) {
-                String ch = scanner.next();
-                switch (ch) {
-                    case "p":
-                    case "P":
-                        path += ch;
-                        break;
-                    case "r":
-                    case "R":
-                        row += ch;
-                        break;
-                    default:
-                        break;
-                }
-            }
-            path = "%0" + path.length() + "d";
-            row = "%0" + row.length() + "d";
-        }
+        return PathTemplate.compile(localPathFormat).resolve(path, null, pathRow);
     }
 }
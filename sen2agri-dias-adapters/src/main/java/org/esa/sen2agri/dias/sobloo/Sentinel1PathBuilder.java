@@ -16,10 +16,11 @@
 
 package org.esa.sen2agri.dias.sobloo;
 
+import org.esa.sen2agri.dias.ArchiveCatalog;
+import org.esa.sen2agri.dias.ArchiveDirectoryCache;
 import ro.cs.tao.datasource.DefaultProductPathBuilder;
 import ro.cs.tao.eodata.EOProduct;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Date;
@@ -31,6 +32,7 @@ public class Sentinel1PathBuilder extends DefaultProductPathBuilder {
 
     public Sentinel1PathBuilder(Path repositoryPath, String localPathFormat, Properties properties) {
         super(repositoryPath, null, properties);
+        ArchiveCatalog.register(repositoryPath, localPathFormat, properties);
         List<String> tokens = Arrays.asList(localPathFormat.split("/"));
         this.localPathFormat = String.join("/", tokens.subList(0, 3));
         this.localPathDatePart = String.join("/", tokens.subList(0, 3));
@@ -56,14 +58,14 @@ public class Sentinel1PathBuilder extends DefaultProductPathBuilder {
         productFolderPath = productFolderPath.resolve(this.localPathFormat);
         Path fullProductPath = productFolderPath.resolve(productName);
         logger.fine(String.format("Looking for product %s into %s", product.getName(), fullProductPath));
-        if (!this.testOnly && !Files.exists(fullProductPath)) {
+        if (!this.testOnly && !ArchiveDirectoryCache.exists(fullProductPath)) {
             date = product.getProcessingDate();
             if (date != null) {
                 productFolderPath = dateToPath(this.repositoryPath, date, this.localPathDatePart);
                 productFolderPath = productFolderPath.resolve(this.localPathFormat);
                 fullProductPath = productFolderPath.resolve(productName);
                 logger.fine(String.format("Alternatively looking for product %s into %s", product.getName(), fullProductPath));
-                if (!Files.exists(fullProductPath)) {
+                if (!ArchiveDirectoryCache.exists(fullProductPath)) {
                     fullProductPath = null;
                 }
             } else {
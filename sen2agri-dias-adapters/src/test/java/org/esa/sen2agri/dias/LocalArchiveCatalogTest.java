@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.dias;
+
+import org.esa.sen2agri.entities.DataSourceConfiguration;
+import org.esa.sen2agri.entities.enums.Satellite;
+import org.esa.sen2agri.web.beans.Query;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.io.WKTReader;
+import ro.cs.tao.datasource.param.CommonParameterNames;
+import ro.cs.tao.eodata.EOProduct;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link LocalArchiveCatalog} against a synthetic archive (with the <code>yyyy/MM/dd</code> layout)
+ * containing Sentinel-2, Landsat-8 and Sentinel-1 products.
+ *
+ * @author Cosmin Cara
+ */
+public class LocalArchiveCatalogTest {
+    private static final String S2_L1C = "S2A_MSIL1C_20190510T103031_N0207_R108_T31TCJ_20190510T124003";
+    private static final String S2_L2A = "S2A_MSIL2A_20190510T103031_N0212_R108_T31TCJ_20190510T134522";
+    private static final String S2_OTHER_TILE = "S2B_MSIL1C_20190515T103029_N0207_R108_T32TLQ_20190515T123456";
+    private static final String S2_JUNE = "S2B_MSIL1C_20190604T103029_N0207_R108_T31TCJ_20190604T123456";
+    private static final String L8 = "LC08_L1TP_199030_20190512_20190521_01_T1";
+    private static final String S1 = "S1A_IW_GRDH_1SDV_20190511T055942_20190511T060007_027173_030FC2_3A1B";
+    private static final String FOOTPRINT_31TCJ = "POLYGON((0 43,1 43,1 44,0 44,0 43))";
+    private static final String FOOTPRINT_32TLQ = "POLYGON((6 45,7 45,7 46,6 46,6 45))";
+    private static final String FOOTPRINT_199030 = "POLYGON((0.5 43,1.5 43,1.5 44,0.5 44,0.5 43))";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+
+    @BeforeClass
+    public static void setUpTiles() throws Exception {
+        // the tile grids are not needed by these tests
+        final WKTReader reader = new WKTReader();
+        LocalArchiveCatalog.tileFootprints.put("31TCJ", Optional.of(reader.read(FOOTPRINT_31TCJ)));
+        LocalArchiveCatalog.tileFootprints.put("32TLQ", Optional.of(reader.read(FOOTPRINT_32TLQ)));
+        LocalArchiveCatalog.tileFootprints.put("199030", Optional.of(reader.read(FOOTPRINT_199030)));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = this.folder.newFolder("archive").toPath();
+        Files.createDirectories(this.root.resolve("2019/05/10/" + S2_L1C + ".SAFE"));
+        Files.createDirectories(this.root.resolve("2019/05/10/" + S2_L2A + ".SAFE"));
+        // a packed product (name.zip/name.SAFE) is indexed once
+        Files.createDirectories(this.root.resolve("2019/05/15/" + S2_OTHER_TILE + ".zip/" + S2_OTHER_TILE + ".SAFE"));
+        Files.createDirectories(this.root.resolve("2019/06/04/" + S2_JUNE + ".SAFE"));
+        Files.createDirectories(this.root.resolve("2019/05/12/" + L8));
+        final Path s1 = Files.createDirectories(this.root.resolve("2019/05/11/" + S1 + ".SAFE"));
+        Files.write(s1.resolve("manifest.safe"),
+                    ("<xfdu><s1:pass>ASCENDING</s1:pass>" +
+                            "<gml:coordinates>43.0,0.2 43.0,0.8 43.5,0.8 43.5,0.2</gml:coordinates></xfdu>")
+                            .getBytes(StandardCharsets.UTF_8));
+        final Properties settings = new Properties();
+        settings.setProperty(ArchiveCatalog.ENABLED, "true");
+        settings.setProperty(ArchiveCatalog.FOLDER, this.folder.newFolder("index").toString());
+        ArchiveCatalog.register(this.root, "yyyy/MM/dd", settings);
+        final ArchiveCatalog archive = ArchiveCatalog.get(this.root);
+        final long limit = System.currentTimeMillis() + 30000;
+        while (!archive.isComplete() && System.currentTimeMillis() < limit) {
+            Thread.sleep(50);
+        }
+        assertTrue("The archive was not crawled", archive.isComplete());
+    }
+
+    @Test
+    public void filtersSentinel2ByDateTypeAndFootprint() {
+        final Map<String, Object> values = window("2019-05-01", "2019-05-31");
+        values.put(CommonParameterNames.PRODUCT_TYPE, "S2MSI1C");
+        values.put(CommonParameterNames.FOOTPRINT, FOOTPRINT_31TCJ);
+        final List<EOProduct> products = query(Satellite.Sentinel2, values);
+        assertEquals(Collections.singleton(S2_L1C), namesOf(products));
+        final EOProduct product = products.get(0);
+        assertEquals("31TCJ", product.getAttributeValue("tiles"));
+        // the product type is the one of the data source (S2MSI1C, L1C etc.)
+        assertTrue(product.getAttributeValue(CommonParameterNames.PRODUCT_TYPE).endsWith("1C"));
+    }
+
+    @Test
+    public void filtersSentinel2ByTile() {
+        final Map<String, Object> values = window("2019-05-01", "2019-06-30");
+        values.put(CommonParameterNames.TILE, "32TLQ");
+        assertEquals(Collections.singleton(S2_OTHER_TILE), namesOf(query(Satellite.Sentinel2, values)));
+        values.put(CommonParameterNames.TILE, "[31TCJ,32TLQ]");
+        values.put(CommonParameterNames.PRODUCT_TYPE, "S2MSI2A");
+        assertEquals(Collections.singleton(S2_L2A), namesOf(query(Satellite.Sentinel2, values)));
+    }
+
+    @Test
+    public void filtersLandsat8() {
+        final Map<String, Object> values = window("2019-05-01", "2019-05-31");
+        values.put(CommonParameterNames.FOOTPRINT, FOOTPRINT_31TCJ);
+        assertEquals(Collections.singleton(L8), namesOf(query(Satellite.Landsat8, values)));
+        values.put(CommonParameterNames.FOOTPRINT, FOOTPRINT_32TLQ);
+        assertTrue(query(Satellite.Landsat8, values).isEmpty());
+        values.remove(CommonParameterNames.FOOTPRINT);
+        values.put(CommonParameterNames.PRODUCT_TYPE, "L1GT");
+        assertTrue(query(Satellite.Landsat8, values).isEmpty());
+    }
+
+    @Test
+    public void filtersSentinel1ByManifestFootprint() {
+        final Map<String, Object> values = window("2019-05-11", "2019-05-11T23:59:59");
+        values.put(CommonParameterNames.FOOTPRINT, FOOTPRINT_31TCJ);
+        final List<EOProduct> products = query(Satellite.Sentinel1, values);
+        assertEquals(Collections.singleton(S1), namesOf(products));
+        assertEquals("ASCENDING", products.get(0).getAttributeValue("orbitdirection"));
+        values.put(CommonParameterNames.FOOTPRINT, FOOTPRINT_32TLQ);
+        assertTrue(query(Satellite.Sentinel1, values).isEmpty());
+        assertTrue(query(Satellite.Sentinel1, window("2019-05-12", "2019-05-31")).isEmpty());
+    }
+
+    @Test
+    public void leavesRecentWindowsToTheRemoteCatalog() {
+        final Map<String, Object> values = window("2019-05-01", "2099-01-01");
+        assertNull(query(Satellite.Sentinel2, values));
+    }
+
+    private List<EOProduct> query(Satellite satellite, Map<String, Object> values) {
+        final DataSourceConfiguration configuration = new DataSourceConfiguration();
+        configuration.setDataSourceName("Scientific Data Hub");
+        configuration.setSatellite(satellite);
+        configuration.setLocalArchivePath(this.root.toString());
+        final Properties settings = new Properties();
+        settings.setProperty(LocalArchiveCatalog.ENABLED, "true");
+        configuration.setAdditionalSettings(settings);
+        final Query query = new Query();
+        query.setValues(new HashMap<>(values));
+        return new LocalArchiveCatalog().query(query, configuration);
+    }
+
+    private static Map<String, Object> window(String start, String end) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put(CommonParameterNames.START_DATE, start);
+        values.put(CommonParameterNames.END_DATE, end);
+        return values;
+    }
+
+    private static Set<String> namesOf(List<EOProduct> products) {
+        return products.stream().map(EOProduct::getName).collect(Collectors.toSet());
+    }
+}
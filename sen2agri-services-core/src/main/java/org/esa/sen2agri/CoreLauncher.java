@@ -27,7 +27,6 @@ import org.springframework.scheduling.annotation.SchedulingConfigurer;
 import org.springframework.scheduling.config.IntervalTask;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import ro.cs.tao.services.commons.ServiceLauncher;
-import ro.cs.tao.utils.NetUtils;
 
 import java.util.logging.Logger;
 
@@ -52,8 +51,7 @@ public class CoreLauncher implements SchedulingConfigurer, ServiceLauncher {
     @Override
     public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
         long interval = Long.parseLong(Config.getProperty("database.config.polling", "0")) * 60000;
-        int netUtilTimeout = Integer.parseInt(Config.getProperty("network.connexions.timeout", "30")) * 1000;
-        NetUtils.setTimeout(netUtilTimeout);
+        int netUtilTimeout = Config.updateNetworkTimeout();
         Logger logger = Logger.getLogger(CoreLauncher.class.getName());
         logger.config(String.format("Network connection timeout initialized at %d seconds", netUtilTimeout / 1000));
         if (interval == 0) {
@@ -64,6 +62,11 @@ public class CoreLauncher implements SchedulingConfigurer, ServiceLauncher {
             }, interval, interval));
             logger.config(String.format("Database configuration polling initialized at %d minutes", interval / 60000));
         }
+        long snapshotInterval = Long.parseLong(Config.getProperty("database.config.snapshot.check", "30")) * 1000;
+        if (snapshotInterval > 0) {
+            taskRegistrar.addFixedRateTask(new IntervalTask(Config::checkForChanges, snapshotInterval, snapshotInterval));
+            logger.config(String.format("Configuration snapshot change check initialized at %d seconds", snapshotInterval / 1000));
+        }
         long[] ret = batchNotifier.initialize();
         logger.config(String.format("Batch notification initialized at %d minutes with message limit of %d",
                                   ret[1] / 60000, ret[0]));
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import org.esa.sen2agri.db.ConfigurationKeys;
+import org.esa.sen2agri.entities.DataSourceConfiguration;
+
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket limiting the bandwidth used by the downloads.
+ * There is a global bucket, one bucket per data source and one bucket per site, each configured (in MB/s, 0 meaning
+ * unlimited) by a setting of the <code>config</code> table:
+ * <ul>
+ *     <li><code>downloader.bandwidth.max</code> for the global limit</li>
+ *     <li><code>downloader.bandwidth.&lt;data source&gt;.max</code> for the limit of a data source (the name of the
+ *     data source being in lower case, with the spaces replaced by underscores)</li>
+ *     <li><code>downloader.bandwidth.site.max</code>, as a site setting, for the limit of a site</li>
+ * </ul>
+ * A setting may also be a time-of-day profile, such as <code>5;08:00-18:00=2;22:00-06:00=50</code>: the limit is
+ * the one of the interval containing the current time or, if none, the value without interval (unlimited if missing).
+ *
+ * The three buckets of a transfer are always taken together, so that a transfer waiting for one of them doesn't
+ * consume the budget of the others. The buckets are allowed to go into debt: the next transfer waits until the debt
+ * is paid back.
+ * The transfers performed by this application (see {@link SegmentedDownload}) are shaped as the bytes are received,
+ * through a {@link Stream}. The transfers performed by the data source plugins can only be shaped product by product:
+ * the approximate size of a product is taken before it is fetched and, once fetched, the difference to its actual size
+ * is settled, so that the limit is enforced on average (including for the products of unknown size).
+ *
+ * @author Cosmin Cara
+ */
+public class BandwidthShaper {
+    private static final Map<String, BandwidthShaper> instances = new ConcurrentHashMap<>();
+    private static final double BYTES_PER_MB = 1024 * 1024;
+    /** Maximum time (in seconds) during which unused bandwidth is accumulated */
+    private static final int BURST = 10;
+    /** The period (in milliseconds) over which the achieved throughput is computed */
+    private static final long WINDOW = 300000;
+    private static final long MAX_WAIT = 1000;
+    /** The buckets of a transfer are updated together, hence under a common lock */
+    private static final Object lock = new Object();
+    private static final Logger logger = Logger.getLogger(BandwidthShaper.class.getName());
+
+    private final String name;
+    private String profile;
+    private List<Interval> intervals;
+    private double defaultLimit;
+    private double limit;
+    private double tokens;
+    private long lastRefill;
+    private int waiting;
+    private final Deque<long[]> transfers;
+    private long transferred;
+
+    /**
+     * Waits until the given number of bytes can be fetched from the given data source, for the given site.
+     * @param configuration The data source configuration
+     * @param siteId        The site identifier
+     * @param bytes         The (approximate) number of bytes to be fetched
+     */
+    public static void acquire(DataSourceConfiguration configuration, short siteId, long bytes) throws InterruptedException {
+        take(shapersOf(configuration, siteId), bytes);
+    }
+
+    /**
+     * Records the number of bytes fetched from the given data source, for the given site, and settles the difference
+     * between them and the number of bytes acquired before the transfer.
+     * @param configuration The data source configuration
+     * @param siteId        The site identifier
+     * @param acquired      The number of bytes acquired before the transfer
+     * @param bytes         The number of bytes actually fetched
+     */
+    public static void completed(DataSourceConfiguration configuration, short siteId, long acquired, long bytes) {
+        final List<BandwidthShaper> shapers = shapersOf(configuration, siteId);
+        synchronized (lock) {
+            final long now = System.currentTimeMillis();
+            for (BandwidthShaper shaper : shapers) {
+                shaper.refill(now);
+                if (shaper.limit > 0) {
+                    shaper.tokens -= bytes - acquired;
+                }
+                shaper.record(now, bytes);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the shaper of a byte stream fetched from the given data source, for the given site.
+     */
+    public static Stream stream(DataSourceConfiguration configuration, short siteId) {
+        return new Stream(shapersOf(configuration, siteId));
+    }
+
+    /**
+     * Returns all the buckets created so far.
+     */
+    public static List<BandwidthShaper> getAll() {
+        final List<BandwidthShaper> list = new ArrayList<>(instances.values());
+        list.sort(Comparator.comparing(BandwidthShaper::getName));
+        return list;
+    }
+
+    private static List<BandwidthShaper> shapersOf(DataSourceConfiguration configuration, short siteId) {
+        final String dataSource = configuration.getDataSourceName().toLowerCase().replace(' ', '_');
+        final List<BandwidthShaper> shapers = new ArrayList<>(3);
+        shapers.add(get("global", Config.getSetting(ConfigurationKeys.DOWNLOADER_BANDWIDTH, "0")));
+        shapers.add(get(dataSource,
+                        Config.getSetting(String.format(ConfigurationKeys.DOWNLOADER_BANDWIDTH_DATASOURCE, dataSource), "0")));
+        shapers.add(get("site-" + siteId, Config.getSetting(siteId, ConfigurationKeys.DOWNLOADER_BANDWIDTH_SITE, "0")));
+        return shapers;
+    }
+
+    private static BandwidthShaper get(String name, String profile) {
+        final BandwidthShaper shaper = instances.computeIfAbsent(name, BandwidthShaper::new);
+        shaper.configure(profile);
+        return shaper;
+    }
+
+    private BandwidthShaper(String name) {
+        this.name = name;
+        this.intervals = Collections.emptyList();
+        this.transfers = new ArrayDeque<>();
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Returns the current limit, in MB/s (0 meaning unlimited).
+     */
+    public double getConfigured() {
+        synchronized (lock) {
+            refill(System.currentTimeMillis());
+            return this.limit;
+        }
+    }
+
+    /**
+     * Returns the average throughput, in MB/s, of the bytes received in the last five minutes.
+     */
+    public double getAchieved() {
+        synchronized (lock) {
+            expire(System.currentTimeMillis());
+            return this.transferred / BYTES_PER_MB / (WINDOW / 1000.0);
+        }
+    }
+
+    /**
+     * Returns the number of downloads waiting for bandwidth.
+     */
+    public int getWaiting() {
+        synchronized (lock) {
+            return this.waiting;
+        }
+    }
+
+    /**
+     * Returns the time-of-day profile of the limit.
+     */
+    public String getProfile() {
+        synchronized (lock) {
+            return this.profile;
+        }
+    }
+
+    private void configure(String profile) {
+        synchronized (lock) {
+            if (!Objects.equals(profile, this.profile)) {
+                parse(profile);
+            }
+        }
+    }
+
+    private void parse(String profile) {
+        final List<Interval> intervals = new ArrayList<>();
+        double defaultLimit = 0;
+        try {
+            for (String token : profile.split(";")) {
+                token = token.trim();
+                if (token.isEmpty()) {
+                    continue;
+                }
+                final int idx = token.indexOf('=');
+                if (idx > 0) {
+                    final String[] bounds = token.substring(0, idx).split("-");
+                    intervals.add(new Interval(LocalTime.parse(bounds[0].trim()), LocalTime.parse(bounds[1].trim()),
+                                               Double.parseDouble(token.substring(idx + 1).trim())));
+                } else {
+                    defaultLimit = Double.parseDouble(token);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warning(String.format("Invalid bandwidth setting '%s' for %s [%s]. The bandwidth will not be limited",
+                                         profile, this.name, e.getMessage()));
+            intervals.clear();
+            defaultLimit = 0;
+        }
+        this.profile = profile;
+        this.intervals = intervals;
+        this.defaultLimit = defaultLimit;
+    }
+
+    /**
+     * Waits until none of the given buckets is in debt, then takes the given number of bytes from all of them.
+     */
+    private static void take(List<BandwidthShaper> shapers, long bytes) throws InterruptedException {
+        synchronized (lock) {
+            shapers.forEach(s -> s.waiting++);
+            try {
+                while (true) {
+                    final long now = System.currentTimeMillis();
+                    long wait = 0;
+                    for (BandwidthShaper shaper : shapers) {
+                        shaper.refill(now);
+                        if (shaper.limit > 0 && shaper.tokens < 0) {
+                            wait = Math.max(wait, (long) Math.ceil(-shaper.tokens / (shaper.limit * BYTES_PER_MB / 1000.0)));
+                        }
+                    }
+                    if (wait == 0) {
+                        break;
+                    }
+                    lock.wait(Math.max(1, Math.min(wait, MAX_WAIT)));
+                }
+                for (BandwidthShaper shaper : shapers) {
+                    if (shaper.limit > 0) {
+                        shaper.tokens -= bytes;
+                    }
+                }
+            } finally {
+                shapers.forEach(s -> s.waiting--);
+            }
+        }
+    }
+
+    private void record(long now, long bytes) {
+        final long[] last = this.transfers.peekLast();
+        // the bytes received in the same second are recorded together
+        if (last != null && now - last[0] < 1000) {
+            last[1] += bytes;
+        } else {
+            this.transfers.addLast(new long[] { now, bytes });
+        }
+        this.transferred += bytes;
+        expire(now);
+    }
+
+    private void refill(long now) {
+        this.limit = currentLimit(LocalTime.now());
+        if (this.limit <= 0) {
+            this.tokens = 0;
+        } else {
+            final double rate = this.limit * BYTES_PER_MB / 1000.0;
+            this.tokens = Math.min(this.tokens + (now - this.lastRefill) * rate, BURST * 1000 * rate);
+        }
+        this.lastRefill = now;
+    }
+
+    private void expire(long now) {
+        long[] transfer;
+        while ((transfer = this.transfers.peekFirst()) != null && now - transfer[0] > WINDOW) {
+            this.transferred -= transfer[1];
+            this.transfers.pollFirst();
+        }
+    }
+
+    private double currentLimit(LocalTime time) {
+        for (Interval interval : this.intervals) {
+            if (interval.contains(time)) {
+                return interval.limit;
+            }
+        }
+        return this.defaultLimit;
+    }
+
+    /**
+     * Shaper of a byte stream: the bytes are taken from the buckets as they are received.
+     */
+    public static class Stream {
+        private final List<BandwidthShaper> shapers;
+
+        private Stream(List<BandwidthShaper> shapers) {
+            this.shapers = shapers;
+        }
+
+        /**
+         * Records the given number of received bytes, waiting (before returning) while the buckets are in debt.
+         */
+        public void received(long bytes) throws InterruptedException {
+            take(this.shapers, bytes);
+            synchronized (lock) {
+                final long now = System.currentTimeMillis();
+                this.shapers.forEach(s -> s.record(now, bytes));
+            }
+        }
+    }
+
+    private static class Interval {
+        private final LocalTime start;
+        private final LocalTime end;
+        private final double limit;
+
+        Interval(LocalTime start, LocalTime end, double limit) {
+            this.start = start;
+            this.end = end;
+            this.limit = limit;
+        }
+
+        boolean contains(LocalTime time) {
+            return start.isBefore(end)
+                    ? !time.isBefore(start) && time.isBefore(end)
+                    // the interval spans midnight
+                    : !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+}
@@ -13,48 +13,67 @@
  * You should have received a copy of the GNU General Public License along
  * with this program; if not, see http://www.gnu.org/licenses/
  */
-
 package org.esa.sen2agri.commons;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
+/**
+ * Store of the checksums of the (Sentinel-1) product rasters, used for detecting the products having the same rasters.
+ * The store is an append-only log (each line being a product followed by one or more of its checksums), indexed in
+ * memory when loaded. Adding a checksum only records it in the index and in a buffer, which is appended to the log
+ * by {@link #flush()}. The log is compacted (one line per product) periodically, when it has grown to twice the
+ * number of products, by writing a new log and replacing the old one.
+ * If the service stopped while appending, the incomplete last line is discarded at the next start.
+ *
+ * @author Cosmin Cara
+ */
 public class CheckSumManager {
     private static final CheckSumManager instance;
+    private static final long COMPACTION_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    private static final int MIN_LINES_FOR_COMPACTION = 1000;
+    private static final Logger logger = Logger.getLogger(CheckSumManager.class.getName());
     private Path fileLocation;
-    private final Map<String, Collection<String>> directMap;
-    private final Map<String, Collection<String>> inverseMap;
+    private final Map<String, Set<String>> directMap;
+    private final Map<String, Set<String>> inverseMap;
+    private final StringBuilder pending;
+    private FileChannel channel;
+    private int lines;
 
     static {
         instance = new CheckSumManager();
         String value = Config.getProperty("checksum.map.location");
         if (value != null) {
             instance.fileLocation = Paths.get(value);
-            if (Files.exists(instance.fileLocation)) {
-                try (Stream<String> lines = Files.lines(instance.fileLocation)) {
-                    lines.forEach(line -> {
-                        String[] tokens = line.split(" ");
-                        if (tokens.length > 1) {
-                            for (int i = 1; i < tokens.length; i++) {
-                                if (!instance.directMap.containsKey(tokens[i])) {
-                                    instance.directMap.put(tokens[i], new HashSet<>());
-                                }
-                                instance.directMap.get(tokens[i]).add(tokens[0]);
-                                if (!instance.inverseMap.containsKey(tokens[0])) {
-                                    instance.inverseMap.put(tokens[0], new ArrayList<>());
-                                }
-                                instance.inverseMap.get(tokens[0]).add(tokens[i]);
-                            }
-                        }
-                    });
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
+            try {
+                instance.load();
+                final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    final Thread thread = new Thread(runnable, "checksum-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                compactor.scheduleWithFixedDelay(instance::compactIfNeeded, COMPACTION_INTERVAL, COMPACTION_INTERVAL,
+                                                 TimeUnit.MILLISECONDS);
+            } catch (IOException ex) {
+                logger.severe(String.format("Cannot open the checksum store %s [%s]", value, ex.getMessage()));
+                instance.fileLocation = null;
             }
         } else {
             instance.fileLocation = null;
@@ -64,27 +83,24 @@ public class CheckSumManager {
     public static CheckSumManager getInstance() { return instance; }
 
     private CheckSumManager() {
-         this.directMap = new HashMap<>();
-         this.inverseMap = new HashMap<>();
+        this.directMap = new ConcurrentHashMap<>();
+        this.inverseMap = new ConcurrentHashMap<>();
+        this.pending = new StringBuilder();
     }
 
-    public void flush() throws IOException {
-        if (fileLocation != null) {
-            Path backup = fileLocation.getParent().resolve(fileLocation.getFileName().toString() + ".bak");
-            Files.deleteIfExists(backup);
-            if (Files.exists(fileLocation)) {
-                Files.move(fileLocation, backup);
-            } else {
-                Files.createFile(fileLocation);
-            }
-            Set<String> keys = this.inverseMap.keySet();
-            for (String key : keys) {
-                Collection<String> values = this.inverseMap.get(key);
-                if (values != null) {
-                    Files.write(fileLocation, (key + " " + String.join(" ", values) + "\n").getBytes(), StandardOpenOption.APPEND);
-                }
-            }
+    /**
+     * Appends to the log the checksums added since the previous call.
+     */
+    public synchronized void flush() throws IOException {
+        if (this.channel == null || this.pending.length() == 0) {
+            return;
         }
+        final ByteBuffer buffer = ByteBuffer.wrap(this.pending.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        this.channel.force(false);
+        this.pending.setLength(0);
     }
 
     public boolean containsChecksum(String checkSum) {
@@ -96,21 +112,136 @@ public class CheckSumManager {
     }
 
     public Collection<String> getProducts(String checksum) {
-        return this.directMap.get(checksum);
+        final Set<String> products = this.directMap.get(checksum);
+        return products != null ? new ArrayList<>(products) : null;
     }
 
     public Collection<String> getChecksums(String product) {
-        return this.inverseMap.get(product);
+        final Set<String> checksums = this.inverseMap.get(product);
+        return checksums != null ? new ArrayList<>(checksums) : null;
     }
 
+    /**
+     * Adds the given checksum of the given product.
+     * @param key   The checksum
+     * @param value The product name
+     */
     public void put(String key, String value) {
-        if (!this.directMap.containsKey(key)) {
-            this.directMap.put(key, new HashSet<>());
+        if (index(key, value)) {
+            synchronized (this) {
+                this.pending.append(value).append(' ').append(key).append('\n');
+                this.lines++;
+            }
+        }
+    }
+
+    /**
+     * Adds the checksums of a product and returns the products already having at least one of these checksums.
+     * The check and the addition are atomic, so that, of two products having the same checksums, only the second
+     * one is reported as duplicate.
+     */
+    public synchronized Set<String> register(String product, Collection<String> checksums) {
+        final Set<String> existing = new HashSet<>();
+        for (String checksum : checksums) {
+            final Set<String> products = this.directMap.get(checksum);
+            if (products != null) {
+                existing.addAll(products);
+            }
+            put(checksum, product);
+        }
+        return existing;
+    }
+
+    private boolean index(String checksum, String product) {
+        final boolean added = this.directMap.computeIfAbsent(checksum, k -> ConcurrentHashMap.newKeySet()).add(product);
+        this.inverseMap.computeIfAbsent(product, k -> ConcurrentHashMap.newKeySet()).add(checksum);
+        return added;
+    }
+
+    private void load() throws IOException {
+        final Path backup = this.fileLocation.resolveSibling(this.fileLocation.getFileName() + ".bak");
+        final Path temporary = this.fileLocation.resolveSibling(this.fileLocation.getFileName() + ".tmp");
+        // an interrupted compaction leaves the previous log intact
+        Files.deleteIfExists(temporary);
+        if (!Files.exists(this.fileLocation) && Files.exists(backup)) {
+            // left by an interrupted rewrite of the previous versions
+            Files.move(backup, this.fileLocation);
+        }
+        long validLength = 0;
+        if (Files.exists(this.fileLocation)) {
+            try (InputStream stream = new BufferedInputStream(Files.newInputStream(this.fileLocation))) {
+                final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+                long length = 0;
+                int b;
+                while ((b = stream.read()) != -1) {
+                    length++;
+                    if (b == '\n') {
+                        parse(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        line.reset();
+                        validLength = length;
+                    } else {
+                        line.write(b);
+                    }
+                }
+                if (line.size() > 0) {
+                    logger.warning(String.format("Incomplete last line of the checksum store %s was discarded",
+                                                 this.fileLocation));
+                }
+            }
+        }
+        this.channel = FileChannel.open(this.fileLocation, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.truncate(validLength);
+        this.channel.position(validLength);
+        logger.fine(String.format("Checksum store %s loaded: %d products, %d checksums",
+                                  this.fileLocation, this.inverseMap.size(), this.directMap.size()));
+    }
+
+    private void parse(String line) {
+        final String[] tokens = line.trim().split(" ");
+        if (tokens.length > 1) {
+            for (int i = 1; i < tokens.length; i++) {
+                index(tokens[i], tokens[0]);
+            }
+            this.lines++;
         }
-        this.directMap.get(key).add(value);
-        if (!this.inverseMap.containsKey(value)) {
-            this.inverseMap.put(value, new ArrayList<>());
+    }
+
+    /**
+     * Rewrites the log with one line per product, if it has grown to twice the number of products.
+     */
+    private synchronized void compactIfNeeded() {
+        if (this.channel == null || this.lines < Math.max(MIN_LINES_FOR_COMPACTION, 2 * this.inverseMap.size())) {
+            return;
+        }
+        final Path temporary = this.fileLocation.resolveSibling(this.fileLocation.getFileName() + ".tmp");
+        try {
+            flush();
+            int count = 0;
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Set<String>> entry : this.inverseMap.entrySet()) {
+                    writer.write(entry.getKey() + " " + String.join(" ", entry.getValue()) + "\n");
+                    count++;
+                }
+            }
+            try (FileChannel temporaryChannel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                temporaryChannel.force(true);
+            }
+            this.channel.close();
+            Files.move(temporary, this.fileLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.fine(String.format("Checksum store %s compacted from %d to %d lines", this.fileLocation, this.lines, count));
+            this.lines = count;
+        } catch (IOException e) {
+            logger.warning(String.format("Cannot compact the checksum store %s [%s]", this.fileLocation, e.getMessage()));
+        } finally {
+            try {
+                if (!this.channel.isOpen()) {
+                    this.channel = FileChannel.open(this.fileLocation, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.APPEND);
+                }
+            } catch (IOException e) {
+                logger.severe(String.format("Cannot reopen the checksum store %s [%s]", this.fileLocation, e.getMessage()));
+                this.channel = null;
+            }
         }
-        this.inverseMap.get(value).add(key);
     }
 }
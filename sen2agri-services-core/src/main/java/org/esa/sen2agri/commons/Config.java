@@ -32,10 +32,9 @@ import ro.cs.tao.utils.StringUtilities;
 import ro.cs.tao.utils.executors.NamedThreadPoolExecutor;
 
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 /**
@@ -46,9 +45,9 @@ public class Config {
     private static final Logger logger = Logger.getLogger(Config.class.getName());
     private static final List<DataSourceConfiguration> dataSourceConfigurations = new ArrayList<>();
     private static final Map<DataSourceConfiguration, ThreadPoolExecutor> dataSourceExecutors = Collections.synchronizedMap(new HashMap<>());
-    private static final ExecutorService backgroundWorker = Executors.newSingleThreadExecutor();
     private static PersistenceManager persistenceManager;
     private static DownloadService downloadService;
+    private static final AtomicReference<ConfigurationSnapshot> snapshot = new AtomicReference<>(ConfigurationSnapshot.empty());
     private static Properties configuration;
 
     public static Properties getFileConfiguration() { return configuration; }
@@ -93,10 +92,12 @@ public class Config {
         if (executor != null) {
             dataSourceExecutors.put(dsc, executor);
         }
+        configureWorker(dsc, Long.parseLong(Config.getSetting(ConfigurationKeys.DOWNLOADER_ACTION_TIMEOUT, "9000")));
         return dsc;
     }
 
     public static void reload() {
+        loadSnapshot(persistenceManager.getConfigurationFingerprint());
         dataSourceConfigurations.clear();
         dataSourceConfigurations.addAll(persistenceManager.getDataSourceConfigurations());
         final long timeout = Long.parseLong(Config.getSetting(ConfigurationKeys.DOWNLOADER_ACTION_TIMEOUT, "9000"));
@@ -176,32 +177,7 @@ public class Config {
                         .forEach(n -> properties.put(n.replace(dsKey + ".", ""), configuration.get(n)));
                 ds.setAdditionalSettings(properties);
             }
-            final int maxConnections = ds.getMaxConnections();
-            if (dataSourceExecutors.containsKey(ds)) {
-                final ThreadPoolExecutor executor = dataSourceExecutors.get(ds);
-                if (executor != null && !executor.isShutdown() && !executor.isTerminated()) {
-                    if (executor.getMaximumPoolSize() != maxConnections) {
-                        logger.fine(String.format("MaxConnections for datasource [%s,%s] has changed to %d, will re-initialize the executor pool",
-                                                  ds.getDataSourceName(), ds.getSatellite().friendlyName(), maxConnections));
-                        backgroundWorker.submit(() -> {
-                            executor.shutdownNow();
-                            final NamedThreadPoolExecutor poolExecutor =
-                                    new NamedThreadPoolExecutor(ds.getDataSourceName() + "-" + ds.getSatellite().friendlyName(),
-                                    maxConnections);
-                            poolExecutor.setTimeout(timeout, TimeUnit.SECONDS);
-                            dataSourceExecutors.put(ds, poolExecutor);
-                        });
-                    }
-                }
-            } else {
-                final NamedThreadPoolExecutor poolExecutor =
-                        new NamedThreadPoolExecutor(ds.getDataSourceName() + "-" + ds.getSatellite().friendlyName(),
-                        maxConnections);
-                poolExecutor.setTimeout(timeout, TimeUnit.SECONDS);
-                dataSourceExecutors.put(ds, poolExecutor);
-                logger.fine(String.format("Initialized datasource [%s,%s] with %d max connections and timeout %ds",
-                                          ds.getDataSourceName(), ds.getSatellite().friendlyName(), maxConnections, timeout));
-            }
+            configureWorker(ds, timeout);
         }
         for (DataSourceConfiguration ds : toRemove) {
             logger.fine(String.format("Datasource configuration [%s,%s] will be removed from database.",
@@ -210,6 +186,53 @@ public class Config {
         }
     }
 
+    /**
+     * Creates the worker pool of a data source or, if it already exists, adjusts its size and timeout.
+     */
+    private static void configureWorker(DataSourceConfiguration ds, long timeout) {
+        final int maxConnections = Math.max(1, ds.getMaxConnections());
+        final ThreadPoolExecutor executor = dataSourceExecutors.get(ds);
+        if (executor != null && !executor.isShutdown() && !executor.isTerminated()) {
+            // The pool is adjusted in place, so that the queued downloads are kept and the running ones can finish
+            if (executor.getMaximumPoolSize() != maxConnections) {
+                logger.fine(String.format("MaxConnections for datasource [%s,%s] has changed from %d to %d, will resize the executor pool",
+                                          ds.getDataSourceName(), ds.getSatellite().friendlyName(),
+                                          executor.getMaximumPoolSize(), maxConnections));
+                resize(executor, maxConnections);
+            }
+            if (executor instanceof NamedThreadPoolExecutor) {
+                ((NamedThreadPoolExecutor) executor).setTimeout(timeout, TimeUnit.SECONDS);
+            }
+        } else {
+            final NamedThreadPoolExecutor poolExecutor =
+                    new NamedThreadPoolExecutor(ds.getDataSourceName() + "-" + ds.getSatellite().friendlyName(),
+                    maxConnections);
+            poolExecutor.setTimeout(timeout, TimeUnit.SECONDS);
+            dataSourceExecutors.put(ds, poolExecutor);
+            logger.fine(String.format("Initialized datasource [%s,%s] with %d max connections and timeout %ds",
+                                      ds.getDataSourceName(), ds.getSatellite().friendlyName(), maxConnections, timeout));
+            if (executor != null) {
+                // the previous pool was stopped: the downloads still queued need to be picked up by the new one
+                DownloadQueue.get(ds).transferTo(poolExecutor);
+            }
+        }
+    }
+
+    /**
+     * Changes the number of threads of a pool. When the pool shrinks, the threads in excess terminate
+     * after completing their current task.
+     */
+    private static void resize(ThreadPoolExecutor executor, int size) {
+        // the core size cannot exceed the maximum size, hence the order of operations
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
     public static ThreadPoolExecutor getWorkerFor(DataSourceConfiguration dataSourceConfiguration) {
         final String name = dataSourceConfiguration.getDataSourceName() + "," + dataSourceConfiguration.getSatellite().friendlyName();
         final ThreadPoolExecutor poolExecutor = dataSourceExecutors.get(dataSourceConfiguration);
@@ -218,6 +241,22 @@ public class Config {
         return poolExecutor;
     }
 
+    /**
+     * Sets the socket timeout of the network connections, which is not lower than the (doubled, for the replayed
+     * queries) query timeout: the time allotted to a query request is enforced by its deadline, not by the socket.
+     * @return  The timeout, in milliseconds
+     */
+    public static int updateNetworkTimeout() {
+        int timeout = Integer.parseInt(getProperty("network.connexions.timeout", "30")) * 1000;
+        try {
+            timeout = Math.max(timeout, 2 * Integer.parseInt(getSetting(ConfigurationKeys.DOWNLOADER_QUERY_TIMEOUT, "90")) * 1000);
+        } catch (RuntimeException e) {
+            logger.warning(String.format("Cannot read the query timeout [%s]", e.getMessage()));
+        }
+        NetUtils.setTimeout(timeout);
+        return timeout;
+    }
+
     public static String getProperty(String name) {
         return getProperty(name, null);
     }
@@ -236,39 +275,33 @@ public class Config {
     }
 
     public static Map<String, String> getSiteSettings(short siteId) {
-        Map<String, String> retMap = getSiteConfig().get(siteId);
-        return (retMap == null) ? new HashMap<>() : retMap;
+        return getSnapshot().getSiteSettings(siteId);
     }
 
     public static String getSetting(String name, String defaultValue) {
-        final Optional<Map<String, String>> map = getSiteConfig().values().stream().filter(m -> m.containsKey(name)).findFirst();
-        Optional<String> value = map.map(m -> m.get(name));
-        if (value.isPresent()) {
-            return value.orElse(null);
+        final String value = getSnapshot().getValue(name);
+        if (value != null) {
+            return value;
         } else {
             logger.warning(String.format("Config key [%s] not found, using default value '%s'",
                                                                            name, defaultValue));
-            persistenceManager.saveSetting((short) 0, name, defaultValue);
+            storeDefault(name, defaultValue);
             return defaultValue;
         }
     }
 
     public static String getSetting(short siteId, String name, String defaultValue) {
-        List<ConfigurationItem> items = persistenceManager.getConfigurationItem(name);
-        ConfigurationItem item = null;
-        if (items != null && items.size() > 0) {
-            item = items.stream().filter(i -> (i.getSiteId() != null && i.getSiteId() == siteId))
-                    .findFirst().orElse(null);
-            if (item == null) {
-                item = items.stream().filter(i -> i.getSiteId() == null)
-                        .findFirst().orElse(null);
-            }
-        } else {
+        final ConfigurationSnapshot current = getSnapshot();
+        final String value = current.getValue(siteId, name);
+        if (value != null) {
+            return value;
+        }
+        if (current.getValue(name) == null) {
             logger.warning(String.format("Config key [%s] not found, using default value '%s'",
                                                                            name, defaultValue));
-            persistenceManager.saveSetting((short) 0, name, defaultValue);
+            storeDefault(name, defaultValue);
         }
-        return item != null ? item.getValue() : defaultValue;
+        return defaultValue;
     }
 
     /**
@@ -292,11 +325,13 @@ public class Config {
     }
 
     public static boolean getAsBoolean(String name, boolean defaultValue) {
-        return Boolean.parseBoolean(getSetting(name, String.valueOf(defaultValue)));
+        final Boolean value = getSnapshot().getValue(null, name, Boolean.class, Boolean::parseBoolean);
+        return value != null ? value : Boolean.parseBoolean(getSetting(name, String.valueOf(defaultValue)));
     }
 
     public static boolean getAsBoolean(short siteId, String name, boolean defaultValue) {
-        return Boolean.parseBoolean(getSetting(siteId, name, String.valueOf(defaultValue)));
+        final Boolean value = getSnapshot().getValue(siteId, name, Boolean.class, Boolean::parseBoolean);
+        return value != null ? value : Boolean.parseBoolean(getSetting(siteId, name, String.valueOf(defaultValue)));
     }
 
     /**
@@ -306,24 +341,27 @@ public class Config {
      * @return the boolean value or null if not present in site config
      */
     public static Boolean getAsBoolean(short siteId, String name) {
-        String val = getSetting(siteId, name, "false");
-        return val != null ? Boolean.parseBoolean(val) : null;
+        return getAsBoolean(siteId, name, false);
     }
 
     public static int getAsInteger(String name, int defaultValue) {
-        return Integer.parseInt(getSetting(name, String.valueOf(defaultValue)));
+        final Integer value = getSnapshot().getValue(null, name, Integer.class, Integer::parseInt);
+        return value != null ? value : Integer.parseInt(getSetting(name, String.valueOf(defaultValue)));
     }
 
     public static int getAsInteger(short siteId, String name, int defaultValue) {
-        return Integer.parseInt(getSetting(siteId, name, String.valueOf(defaultValue)));
+        final Integer value = getSnapshot().getValue(siteId, name, Integer.class, Integer::parseInt);
+        return value != null ? value : Integer.parseInt(getSetting(siteId, name, String.valueOf(defaultValue)));
     }
 
     public static double getAsDouble(String name, double defaultValue) {
-        return Double.parseDouble(getSetting(name, String.valueOf(defaultValue)));
+        final Double value = getSnapshot().getValue(null, name, Double.class, Double::parseDouble);
+        return value != null ? value : Double.parseDouble(getSetting(name, String.valueOf(defaultValue)));
     }
 
     public static double getAsDouble(short siteId, String name, double defaultValue) {
-        return Double.parseDouble(getSetting(siteId, name, String.valueOf(defaultValue)));
+        final Double value = getSnapshot().getValue(siteId, name, Double.class, Double::parseDouble);
+        return value != null ? value : Double.parseDouble(getSetting(siteId, name, String.valueOf(defaultValue)));
     }
 
     public static Map<Satellite, List<DataSourceConfiguration>> getQueryConfigurations() {
@@ -380,11 +418,8 @@ public class Config {
     }
 
     public static void setSetting(short siteId, String name, String value) {
-        /*final Map<String, String> commonMap = persistenceManager.getConfiguration().get(siteId);
-        if (commonMap != null) {
-            commonMap.put(name, value);
-        }*/
         persistenceManager.saveSetting(siteId, name, value);
+        snapshot.updateAndGet(current -> current.with(siteId, name, value));
     }
 
     public static boolean isFeatureEnabled(short siteId, String configKey) {
@@ -397,7 +432,44 @@ public class Config {
         return getAsBoolean((short) 0, configKey, false);
     }
 
-    private static Map<Short, Map<String, String>> getSiteConfig() {
-        return persistenceManager.getConfiguration();
+    /**
+     * Returns the current configuration snapshot. The returned instance is immutable and can be safely kept
+     * for the duration of an operation that needs a consistent view of the configuration.
+     */
+    public static ConfigurationSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Checks (with a single, cheap query) if the <code>config</code> table has changed since the current snapshot
+     * was loaded and, if so, swaps in a new snapshot.
+     */
+    public static void checkForChanges() {
+        if (persistenceManager == null) {
+            return;
+        }
+        try {
+            final String fingerprint = persistenceManager.getConfigurationFingerprint();
+            if (fingerprint == null || !fingerprint.equals(snapshot.get().getFingerprint())) {
+                loadSnapshot(fingerprint);
+            }
+        } catch (Exception e) {
+            logger.warning(String.format("Cannot check configuration changes. Reason: %s", e.getMessage()));
+        }
+    }
+
+    private static void loadSnapshot(String fingerprint) {
+        // The fingerprint is read before the rows, so that a concurrent write would trigger another reload
+        final List<ConfigurationItem> items = persistenceManager.getConfigurationItems();
+        final ConfigurationSnapshot newSnapshot = ConfigurationSnapshot.from(snapshot.get().getVersion() + 1,
+                                                                             fingerprint, items);
+        snapshot.set(newSnapshot);
+        logger.finest(String.format("Configuration snapshot v%d loaded (%d items)", newSnapshot.getVersion(), items.size()));
+    }
+
+    private static void storeDefault(String name, String defaultValue) {
+        if (defaultValue != null) {
+            setSetting((short) 0, name, defaultValue);
+        }
     }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import org.esa.sen2agri.entities.ConfigurationItem;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Immutable, in-memory view of the <code>config</code> table.
+ * Global entries (site_id is null or 0) are kept in one map, while each site only holds its own overrides.
+ * A lookup for a site first checks the site overlay and then falls back to the global map.
+ * Parsed (typed) values are memoized per snapshot, hence they are discarded together with it.
+ *
+ * @author Cosmin Cara
+ */
+public final class ConfigurationSnapshot {
+    private static final ConfigurationSnapshot EMPTY = new ConfigurationSnapshot(0, null, new HashMap<>(), new HashMap<>());
+
+    private final long version;
+    private final String fingerprint;
+    private final Map<String, String> global;
+    private final Map<Short, Map<String, String>> overlays;
+    private final Map<String, Object> typedValues;
+
+    public static ConfigurationSnapshot empty() { return EMPTY; }
+
+    /**
+     * Builds a snapshot from the rows of the <code>config</code> table.
+     * @param version       The version of the new snapshot
+     * @param fingerprint   The fingerprint of the table at the moment the rows were read
+     * @param items         The configuration rows
+     */
+    public static ConfigurationSnapshot from(long version, String fingerprint, Collection<ConfigurationItem> items) {
+        final Map<String, String> global = new HashMap<>();
+        final Map<Short, Map<String, String>> overlays = new HashMap<>();
+        if (items != null) {
+            for (ConfigurationItem item : items) {
+                final Short siteId = item.getSiteId();
+                if (siteId == null || siteId == 0) {
+                    global.put(item.getKey(), item.getValue());
+                } else {
+                    overlays.computeIfAbsent(siteId, k -> new HashMap<>()).put(item.getKey(), item.getValue());
+                }
+            }
+        }
+        return new ConfigurationSnapshot(version, fingerprint, global, overlays);
+    }
+
+    private ConfigurationSnapshot(long version, String fingerprint, Map<String, String> global,
+                                  Map<Short, Map<String, String>> overlays) {
+        this.version = version;
+        this.fingerprint = fingerprint;
+        this.global = Collections.unmodifiableMap(global);
+        final Map<Short, Map<String, String>> copy = new HashMap<>();
+        overlays.forEach((k, v) -> copy.put(k, Collections.unmodifiableMap(v)));
+        this.overlays = Collections.unmodifiableMap(copy);
+        this.typedValues = new ConcurrentHashMap<>();
+    }
+
+    public long getVersion() { return version; }
+
+    public String getFingerprint() { return fingerprint; }
+
+    /**
+     * Returns the global value of the given key or, if not globally defined, the first site value found.
+     * @param key   The configuration key
+     */
+    public String getValue(String key) {
+        String value = this.global.get(key);
+        if (value == null) {
+            value = this.overlays.values().stream()
+                    .filter(m -> m.containsKey(key))
+                    .map(m -> m.get(key))
+                    .findFirst().orElse(null);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of the given key for the given site, falling back to the global value.
+     * @param siteId    The site identifier (0 for global)
+     * @param key       The configuration key
+     */
+    public String getValue(short siteId, String key) {
+        final Map<String, String> overlay = siteId != 0 ? this.overlays.get(siteId) : null;
+        final String value = overlay != null ? overlay.get(key) : null;
+        return value != null ? value : this.global.get(key);
+    }
+
+    /**
+     * Returns the parsed value of the given key for the given site (or global, if the site is <code>null</code>).
+     * The parsed values are cached, so the parser is invoked at most once per key and type for this snapshot.
+     * @param siteId    The site identifier or <code>null</code> for a global lookup
+     * @param key       The configuration key
+     * @param type      The target type
+     * @param parser    The function that converts the raw value
+     * @return  The parsed value or <code>null</code> if the key is not defined
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getValue(Short siteId, String key, Class<T> type, Function<String, T> parser) {
+        final String cacheKey = (siteId == null ? "*" : String.valueOf(siteId)) + ":" + type.getSimpleName() + ":" + key;
+        Object value = this.typedValues.get(cacheKey);
+        if (value == null) {
+            final String raw = siteId == null ? getValue(key) : getValue(siteId, key);
+            if (raw == null) {
+                return null;
+            }
+            value = parser.apply(raw);
+            if (value != null) {
+                this.typedValues.putIfAbsent(cacheKey, value);
+            }
+        }
+        return (T) value;
+    }
+
+    /**
+     * Returns the merged (global + site) settings of a site. For site 0, only the global settings.
+     * @param siteId    The site identifier
+     */
+    public Map<String, String> getSiteSettings(short siteId) {
+        final Map<String, String> settings = new HashMap<>(this.global);
+        final Map<String, String> overlay = this.overlays.get(siteId);
+        if (overlay != null) {
+            settings.putAll(overlay);
+        }
+        return settings;
+    }
+
+    /**
+     * Returns a new snapshot, with the next version, in which the given key has the given value.
+     * @param siteId    The site identifier (0 for global)
+     * @param key       The configuration key
+     * @param value     The new value
+     */
+    public ConfigurationSnapshot with(short siteId, String key, String value) {
+        final Map<String, String> newGlobal = new HashMap<>(this.global);
+        final Map<Short, Map<String, String>> newOverlays = new HashMap<>(this.overlays);
+        if (siteId == 0) {
+            newGlobal.put(key, value);
+        } else {
+            final Map<String, String> overlay = new HashMap<>(this.overlays.getOrDefault(siteId, new HashMap<>()));
+            overlay.put(key, value);
+            newOverlays.put(siteId, overlay);
+        }
+        // The fingerprint is dropped so that the next change check reloads from the database
+        return new ConfigurationSnapshot(this.version + 1, null, newGlobal, newOverlays);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import org.esa.sen2agri.db.ConfigurationKeys;
+import org.esa.sen2agri.entities.DataSourceConfiguration;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Adaptive request controller for a remote data source.
+ * The number of concurrent requests and the delay between requests are adjusted from the observed outcomes:
+ * the concurrency limit grows additively while the requests succeed in a timely manner and is halved (while the
+ * delay is doubled) on failures or slow responses.
+ * After a number of consecutive failures, the circuit is opened and no request is allowed until a cool-down period
+ * elapses. Then a single probe request is let through: if it succeeds, the circuit is closed again, otherwise it is
+ * re-opened for a longer period.
+ *
+ * @author Cosmin Cara
+ */
+public class DataSourceThrottle {
+    public enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    private static final Map<String, DataSourceThrottle> instances = new ConcurrentHashMap<>();
+    private static final long DELAY_STEP = 500;
+    private static final Logger logger = Logger.getLogger(DataSourceThrottle.class.getName());
+
+    private final String name;
+    private int maxConcurrency;
+    private long latencyThreshold;
+    private int failureThreshold;
+    private long baseCooldown;
+    private long maxDelay;
+    private double limit;
+    private int inFlight;
+    private long delay;
+    private long lastRequest;
+    private double averageLatency;
+    private int consecutiveFailures;
+    private long successCount;
+    private long failureCount;
+    private CircuitState state;
+    private long cooldown;
+    private long openUntil;
+    private boolean probing;
+
+    /**
+     * Returns the controller of the given data source configuration, updated with the current settings.
+     */
+    public static DataSourceThrottle get(DataSourceConfiguration configuration) {
+        final String name = configuration.getDataSourceName() + "-" + configuration.getSatellite().friendlyName();
+        final DataSourceThrottle throttle = instances.computeIfAbsent(name, DataSourceThrottle::new);
+        throttle.configure(configuration.getMaxConnections(),
+                           Config.getAsInteger(ConfigurationKeys.DOWNLOADER_THROTTLE_LATENCY, 30) * 1000L,
+                           Config.getAsInteger(ConfigurationKeys.DOWNLOADER_THROTTLE_FAILURES, 5),
+                           Config.getAsInteger(ConfigurationKeys.DOWNLOADER_THROTTLE_COOLDOWN, 300) * 1000L,
+                           Config.getAsInteger(ConfigurationKeys.DOWNLOADER_THROTTLE_MAX_DELAY, 60) * 1000L);
+        return throttle;
+    }
+
+    /**
+     * Returns all the controllers created so far.
+     */
+    public static List<DataSourceThrottle> getAll() {
+        final List<DataSourceThrottle> list = new ArrayList<>(instances.values());
+        list.sort(Comparator.comparing(DataSourceThrottle::getName));
+        return list;
+    }
+
+    private DataSourceThrottle(String name) {
+        this.name = name;
+        this.state = CircuitState.CLOSED;
+    }
+
+    private synchronized void configure(int maxConcurrency, long latencyThreshold, int failureThreshold,
+                                        long cooldown, long maxDelay) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.latencyThreshold = latencyThreshold;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseCooldown = cooldown;
+        if (this.cooldown == 0) {
+            this.cooldown = cooldown;
+        }
+        this.maxDelay = maxDelay;
+        if (this.limit == 0 || this.limit > this.maxConcurrency) {
+            this.limit = this.maxConcurrency;
+        }
+    }
+
+    /**
+     * Waits for a request slot. The caller must invoke {@link #release(boolean, long)} after the request,
+     * if (and only if) this method returned <code>true</code>.
+     * @return  <code>false</code> if the circuit is open (the data source is considered unavailable)
+     */
+    public boolean acquire() throws InterruptedException {
+        final long wait;
+        synchronized (this) {
+            while (true) {
+                if (this.state == CircuitState.OPEN) {
+                    if (System.currentTimeMillis() < this.openUntil) {
+                        return false;
+                    }
+                    this.state = CircuitState.HALF_OPEN;
+                    this.probing = false;
+                    logger.info(String.format("Data source %s: probing for recovery", this.name));
+                }
+                if (this.state == CircuitState.HALF_OPEN) {
+                    if (this.probing) {
+                        return false;
+                    }
+                    this.probing = true;
+                    break;
+                }
+                if (this.inFlight < (int) this.limit) {
+                    break;
+                }
+                wait();
+            }
+            this.inFlight++;
+            final long now = System.currentTimeMillis();
+            final long next = this.lastRequest + this.delay;
+            wait = next - now;
+            this.lastRequest = Math.max(now, next);
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                // the caller will not release the slot, hence the reservation is undone
+                synchronized (this) {
+                    this.inFlight = Math.max(0, this.inFlight - 1);
+                    if (this.state == CircuitState.HALF_OPEN) {
+                        this.probing = false;
+                    }
+                    notifyAll();
+                }
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a request and frees its slot.
+     * @param success   If the request succeeded
+     * @param latency   The duration of the request (in milliseconds)
+     */
+    public synchronized void release(boolean success, long latency) {
+        this.inFlight = Math.max(0, this.inFlight - 1);
+        this.averageLatency = this.averageLatency == 0 ? latency : 0.8 * this.averageLatency + 0.2 * latency;
+        if (success) {
+            this.successCount++;
+            this.consecutiveFailures = 0;
+            if (this.state == CircuitState.HALF_OPEN) {
+                this.state = CircuitState.CLOSED;
+                this.probing = false;
+                this.cooldown = this.baseCooldown;
+                this.limit = 1;
+                logger.info(String.format("Data source %s recovered", this.name));
+            } else if (latency > this.latencyThreshold) {
+                decrease();
+            } else {
+                this.limit = Math.min(this.maxConcurrency, this.limit + 1.0 / this.limit);
+                this.delay = Math.max(0, this.delay - DELAY_STEP);
+            }
+        } else {
+            this.failureCount++;
+            this.consecutiveFailures++;
+            decrease();
+            if (this.state == CircuitState.HALF_OPEN) {
+                this.cooldown = Math.min(this.cooldown * 2, 12 * this.baseCooldown);
+                open();
+            } else if (this.state == CircuitState.CLOSED && this.consecutiveFailures >= this.failureThreshold) {
+                open();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Checks if requests can be currently made to the data source.
+     */
+    public synchronized boolean isAvailable() {
+        return this.state != CircuitState.OPEN || System.currentTimeMillis() >= this.openUntil;
+    }
+
+    public String getName() { return name; }
+
+    public synchronized CircuitState getState() { return state; }
+
+    public synchronized int getMaxConcurrency() { return maxConcurrency; }
+
+    public synchronized int getConcurrencyLimit() { return (int) limit; }
+
+    public synchronized int getInFlight() { return inFlight; }
+
+    public synchronized long getDelay() { return delay; }
+
+    public synchronized long getAverageLatency() { return (long) averageLatency; }
+
+    public synchronized int getConsecutiveFailures() { return consecutiveFailures; }
+
+    public synchronized long getSuccessCount() { return successCount; }
+
+    public synchronized long getFailureCount() { return failureCount; }
+
+    public synchronized long getOpenUntil() { return state == CircuitState.OPEN ? openUntil : 0; }
+
+    private void decrease() {
+        this.limit = Math.max(1, this.limit / 2);
+        this.delay = Math.min(this.maxDelay, this.delay == 0 ? DELAY_STEP : this.delay * 2);
+    }
+
+    private void open() {
+        this.state = CircuitState.OPEN;
+        this.probing = false;
+        this.openUntil = System.currentTimeMillis() + this.cooldown;
+        logger.warning(String.format("Data source %s is unhealthy (%d consecutive failures). No request will be made for %d seconds",
+                                     this.name, this.consecutiveFailures, this.cooldown / 1000));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import java.time.Duration;
+
+/**
+ * Time budget of an operation (such as a lookup run), together with the maximum duration of each of the remote
+ * requests performed within it.
+ * A request never gets more time than what is left of the overall budget.
+ *
+ * @author Cosmin Cara
+ */
+public final class Deadline {
+    private static final Deadline NONE = new Deadline(Long.MAX_VALUE, 0);
+
+    private final long expiresAt;
+    private final long requestTimeout;
+
+    /**
+     * Returns a deadline that never expires and does not limit the duration of requests.
+     */
+    public static Deadline none() { return NONE; }
+
+    /**
+     * Creates a deadline.
+     * @param budget            The overall time budget (if <code>null</code> or not positive, the budget is unlimited)
+     * @param requestTimeout    The maximum duration of a request (if <code>null</code> or not positive, only the
+     *                          overall budget applies)
+     */
+    public static Deadline of(Duration budget, Duration requestTimeout) {
+        final long expiresAt = budget != null && !budget.isNegative() && !budget.isZero()
+                ? System.currentTimeMillis() + budget.toMillis() : Long.MAX_VALUE;
+        return new Deadline(expiresAt,
+                            requestTimeout != null && !requestTimeout.isNegative() ? requestTimeout.toMillis() : 0);
+    }
+
+    private Deadline(long expiresAt, long requestTimeout) {
+        this.expiresAt = expiresAt;
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Returns a deadline with the same expiration, but a different maximum duration of requests.
+     */
+    public Deadline withRequestTimeout(Duration requestTimeout) {
+        return new Deadline(this.expiresAt,
+                            requestTimeout != null && !requestTimeout.isNegative() ? requestTimeout.toMillis() : 0);
+    }
+
+    public boolean isBounded() {
+        return this.expiresAt != Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= this.expiresAt;
+    }
+
+    /**
+     * Returns the remaining time (in milliseconds) or <code>Long.MAX_VALUE</code> if the budget is unlimited.
+     */
+    public long remaining() {
+        return isBounded() ? Math.max(0, this.expiresAt - System.currentTimeMillis()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the time (in milliseconds) a request started now is allowed to take,
+     * or <code>Long.MAX_VALUE</code> if there is no limit.
+     */
+    public long nextRequestTimeout() {
+        final long remaining = remaining();
+        return this.requestTimeout > 0 ? Math.min(this.requestTimeout, remaining) : remaining;
+    }
+
+    @Override
+    public String toString() {
+        return isBounded() ? String.format("Deadline{remaining=%ds}", remaining() / 1000) : "Deadline{unbounded}";
+    }
+}
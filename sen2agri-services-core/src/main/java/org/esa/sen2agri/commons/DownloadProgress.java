@@ -46,6 +46,16 @@ public class DownloadProgress extends TaskProgress {
         this.progress = progress;
     }
 
+    public DownloadProgress(String name, int siteId, String siteName, Satellite satellite, double progress) {
+        this(name);
+        this.siteId = siteId;
+        this.siteName = siteName;
+        if (satellite != null) {
+            this.satelliteName = satellite.name();
+        }
+        this.progress = progress;
+    }
+
     public String getSiteName() { return siteName; }
 
     public int getSiteId() { return siteId; }
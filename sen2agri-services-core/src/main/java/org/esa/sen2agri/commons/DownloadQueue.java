@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import org.esa.sen2agri.db.ConfigurationKeys;
+import org.esa.sen2agri.entities.DataSourceConfiguration;
+import org.esa.sen2agri.entities.Season;
+import ro.cs.tao.eodata.EOProduct;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Priority queue of the download tasks of a data source.
+ * The tasks are not submitted directly to the worker of the data source. Instead, for each queued task, the worker
+ * receives a generic task that, when executed, runs the queued task that is next at that moment.
+ * The connections of the data source are shared among the sites by deficit round robin: in each round, a site can
+ * start as many downloads as its weight (the <code>downloader.site.weight</code> setting of the site), fractional
+ * weights being accumulated from one round to the next.
+ * Inside a site, the tasks are ordered by priority, given in points (see {@link #priorityOf(EOProduct, List, int, int)}).
+ * In order for no task to starve, the priority of a task increases with one point for each
+ * <code>downloader.priority.aging</code> minutes spent in the queue.
+ *
+ * @author Cosmin Cara
+ */
+public class DownloadQueue {
+    public enum Band { HIGH, NORMAL, LOW }
+    private static final double MIN_WEIGHT = 0.1;
+
+    private static final Map<String, DownloadQueue> instances = new ConcurrentHashMap<>();
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final String name;
+    private final Map<Short, SiteQueue> sites;
+    private final Deque<SiteQueue> active;
+
+    /**
+     * Returns the queue of the given data source configuration.
+     */
+    public static DownloadQueue get(DataSourceConfiguration configuration) {
+        return instances.computeIfAbsent(configuration.getDataSourceName() + "-" + configuration.getSatellite().friendlyName(),
+                                         DownloadQueue::new);
+    }
+
+    /**
+     * Returns all the queues created so far.
+     */
+    public static List<DownloadQueue> getAll() {
+        final List<DownloadQueue> list = new ArrayList<>(instances.values());
+        list.sort(Comparator.comparing(DownloadQueue::getName));
+        return list;
+    }
+
+    /**
+     * Queues a download task for the given data source.
+     * @param configuration The data source configuration
+     * @param siteId        The site of the downloaded products
+     * @param priority      The priority (in points) of the task
+     * @param task          The download task
+     */
+    public static void submit(DataSourceConfiguration configuration, short siteId, int priority, Runnable task) {
+        final DownloadQueue queue = get(configuration);
+        queue.add(siteId, priority, task);
+        final ThreadPoolExecutor worker = Config.getWorkerFor(configuration);
+        worker.submit(queue::runNext);
+    }
+
+    /**
+     * Makes the given worker run the tasks of this queue (for example, when the previous worker of the data source
+     * was replaced).
+     */
+    public void transferTo(ThreadPoolExecutor worker) {
+        final int size = getSize();
+        for (int i = 0; i < size; i++) {
+            worker.submit(this::runNext);
+        }
+    }
+
+    /**
+     * Computes the priority (in points) of downloading a product.
+     * Recent acquisitions and acquisitions inside an active season are favoured, retried products are penalised.
+     * @param product       The product
+     * @param seasons       The enabled seasons of the site
+     * @param retries       How many times the download of the product was retried
+     * @param sitePriority  The priority of the site (the <code>downloader.site.priority</code> setting of the site)
+     */
+    public static int priorityOf(EOProduct product, List<Season> seasons, int retries, int sitePriority) {
+        int points = sitePriority - Math.min(Math.max(retries, 0), 3);
+        final Date acquisitionDate = product.getAcquisitionDate();
+        if (acquisitionDate != null) {
+            final LocalDate date = acquisitionDate.toInstant().atZone(ZoneOffset.UTC).toLocalDate();
+            final long age = ChronoUnit.DAYS.between(date, LocalDate.now());
+            points += age <= 2 ? 3 : age <= 7 ? 2 : age <= 30 ? 1 : 0;
+            if (seasons != null && seasons.stream().anyMatch(s -> !date.isBefore(s.getStartDate()) && !date.isAfter(s.getEndDate()))) {
+                points += 2;
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Returns the band of the given priority.
+     */
+    public static Band bandOf(int priority) {
+        return priority >= 4 ? Band.HIGH : priority >= 1 ? Band.NORMAL : Band.LOW;
+    }
+
+    private DownloadQueue(String name) {
+        this.name = name;
+        this.sites = new HashMap<>();
+        this.active = new ArrayDeque<>();
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Returns the number of queued tasks.
+     */
+    public synchronized int getSize() {
+        return this.sites.values().stream().mapToInt(q -> q.pending.size()).sum();
+    }
+
+    /**
+     * Returns the number of queued and running tasks of each site.
+     */
+    public synchronized List<SiteState> getSites() {
+        final List<SiteState> states = new ArrayList<>();
+        for (SiteQueue queue : this.sites.values()) {
+            if (!queue.pending.isEmpty() || queue.inFlight > 0) {
+                states.add(new SiteState(this.name, queue.siteId, queue.weight, queue.pending.size(), queue.inFlight));
+            }
+        }
+        states.sort(Comparator.comparing(SiteState::getSiteId));
+        return states;
+    }
+
+    /**
+     * Returns the number of queued tasks for each priority band.
+     */
+    public synchronized Map<Band, Integer> getDepth() {
+        final Map<Band, Integer> depth = new EnumMap<>(Band.class);
+        for (Band band : Band.values()) {
+            depth.put(band, 0);
+        }
+        for (SiteQueue queue : this.sites.values()) {
+            for (Item item : queue.pending) {
+                depth.merge(bandOf(item.priority), 1, Integer::sum);
+            }
+        }
+        return depth;
+    }
+
+    private synchronized void add(short siteId, int priority, Runnable task) {
+        final long aging = Math.max(1, Config.getAsInteger(ConfigurationKeys.DOWNLOADER_PRIORITY_AGING, 60)) * 60000L;
+        final SiteQueue queue = this.sites.computeIfAbsent(siteId, SiteQueue::new);
+        queue.weight = Math.max(MIN_WEIGHT, Config.getAsDouble(siteId, ConfigurationKeys.DOWNLOADER_SITE_WEIGHT, 1.0));
+        if (queue.pending.isEmpty()) {
+            this.active.addLast(queue);
+        }
+        queue.pending.add(new Item(siteId, priority, task, System.currentTimeMillis() - priority * aging));
+    }
+
+    private void runNext() {
+        final Item item;
+        synchronized (this) {
+            item = next();
+        }
+        if (item != null) {
+            try {
+                item.task.run();
+            } finally {
+                synchronized (this) {
+                    final SiteQueue siteQueue = this.sites.get(item.siteId);
+                    siteQueue.inFlight--;
+                    if (siteQueue.inFlight == 0 && siteQueue.pending.isEmpty()) {
+                        this.sites.remove(item.siteId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the next task, in deficit round robin order among the sites having queued tasks.
+     */
+    private Item next() {
+        SiteQueue queue;
+        while ((queue = this.active.peekFirst()) != null) {
+            if (queue.deficit < 1) {
+                // a new turn of the site
+                queue.deficit += queue.weight;
+                if (queue.deficit < 1) {
+                    // the weight is less than 1: the site accumulates its share for the next rounds
+                    this.active.addLast(this.active.pollFirst());
+                    continue;
+                }
+            }
+            final Item item = queue.pending.poll();
+            queue.deficit -= 1;
+            queue.inFlight++;
+            if (queue.pending.isEmpty()) {
+                this.active.pollFirst();
+                queue.deficit = 0;
+            } else if (queue.deficit < 1) {
+                this.active.addLast(this.active.pollFirst());
+            }
+            return item;
+        }
+        return null;
+    }
+
+    /**
+     * The number of queued and running tasks of a site, for a data source.
+     */
+    public static class SiteState {
+        private final String dataSource;
+        private final short siteId;
+        private final double weight;
+        private final int queued;
+        private final int inFlight;
+
+        SiteState(String dataSource, short siteId, double weight, int queued, int inFlight) {
+            this.dataSource = dataSource;
+            this.siteId = siteId;
+            this.weight = weight;
+            this.queued = queued;
+            this.inFlight = inFlight;
+        }
+
+        public String getDataSource() { return dataSource; }
+        public short getSiteId() { return siteId; }
+        public double getWeight() { return weight; }
+        public int getQueued() { return queued; }
+        public int getInFlight() { return inFlight; }
+    }
+
+    private static class SiteQueue {
+        private final short siteId;
+        private final PriorityQueue<Item> pending;
+        private double weight;
+        private double deficit;
+        private int inFlight;
+
+        SiteQueue(short siteId) {
+            this.siteId = siteId;
+            this.pending = new PriorityQueue<>();
+            this.weight = 1.0;
+        }
+    }
+
+    /**
+     * Since all the queued tasks age at the same rate, the order of two tasks does not change in time.
+     * Therefore the tasks are ordered by the time at which they would have been queued if their priority was 0.
+     */
+    private static class Item implements Comparable<Item> {
+        private final short siteId;
+        private final int priority;
+        private final Runnable task;
+        private final long rank;
+        private final long order;
+
+        Item(short siteId, int priority, Runnable task, long rank) {
+            this.siteId = siteId;
+            this.priority = priority;
+            this.task = task;
+            this.rank = rank;
+            this.order = sequence.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            final int result = Long.compare(this.rank, other.rank);
+            return result != 0 ? result : Long.compare(this.order, other.order);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+/**
+ * A change in the state of a download: the download started, its progress changed, or it ended.
+ * The events are numbered in the order in which they were produced, so that a client can resume from the last
+ * event it received.
+ *
+ * @author Cosmin Cara
+ */
+public class ProgressEvent {
+    public enum Type { STARTED, PROGRESS, COMPLETED, FAILED }
+
+    private final long sequence;
+    private final Type type;
+    private final String productName;
+    private final int siteId;
+    private final String siteName;
+    private final String satelliteName;
+    private final double progress;
+    private final long timestamp;
+
+    public ProgressEvent(long sequence, Type type, String productName, int siteId, String siteName,
+                         String satelliteName, double progress) {
+        this.sequence = sequence;
+        this.type = type;
+        this.productName = productName;
+        this.siteId = siteId;
+        this.siteName = siteName;
+        this.satelliteName = satelliteName;
+        this.progress = progress;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public long getSequence() { return sequence; }
+
+    public Type getType() { return type; }
+
+    public String getProductName() { return productName; }
+
+    public int getSiteId() { return siteId; }
+
+    public String getSiteName() { return siteName; }
+
+    public String getSatelliteName() { return satelliteName; }
+
+    public double getProgress() { return progress; }
+
+    public long getTimestamp() { return timestamp; }
+}
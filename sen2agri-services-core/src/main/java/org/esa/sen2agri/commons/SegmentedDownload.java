@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.DoubleConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Download of a file over HTTP in several segments (byte ranges), fetched in parallel and written at their position
+ * in a preallocated file.
+ * The state of the transfer (the file length and the number of bytes completed in each segment) is kept in a sidecar
+ * file (<code>&lt;file&gt;.parts</code>), so that a failed or interrupted transfer is resumed from where it stopped.
+ * The file is flushed to the disk before each save of the state, hence the state never claims bytes that were lost.
+ * If the server does not support byte ranges, the file is downloaded as a single stream.
+ *
+ * @author Cosmin Cara
+ */
+public class SegmentedDownload {
+    /** The additional data source setting selecting the fetch strategy ("segmented" or "stream") */
+    public static final String STRATEGY_SETTING = "fetch.strategy";
+    public static final String SEGMENTS_SETTING = "fetch.segments";
+    public static final String MIN_SEGMENT_SIZE_SETTING = "fetch.segment.min.size";
+    public static final String CONNECT_TIMEOUT_SETTING = "fetch.connect.timeout";
+    public static final String READ_TIMEOUT_SETTING = "fetch.read.timeout";
+    private static final int DEFAULT_SEGMENTS = 4;
+    private static final long DEFAULT_MIN_SEGMENT_SIZE = 32L * 1024 * 1024;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 30;
+    private static final int DEFAULT_READ_TIMEOUT = 120;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int ATTEMPTS = 3;
+    private static final long STATE_SAVE_INTERVAL = 2000;
+    private static final ExecutorService segmentExecutor = Executors.newCachedThreadPool();
+    private static final Logger logger = Logger.getLogger(SegmentedDownload.class.getName());
+
+    private final URL url;
+    private final Path target;
+    private final Path stateFile;
+    private final String authorization;
+    private final int maxSegments;
+    private final long minSegmentSize;
+    private int connectTimeout;
+    private int readTimeout;
+    private long deadline;
+    private DoubleConsumer progressListener;
+    private BandwidthShaper.Stream bandwidth;
+    private volatile boolean cancelled;
+    private boolean ranged;
+    private long length;
+    private long[] starts;
+    private AtomicLongArray completed;
+    private long lastSave;
+    private boolean probed;
+    private long remoteLength;
+    private String contentType;
+    private String remoteName;
+
+    /**
+     * Checks if the segmented strategy was selected for the given data source configuration.
+     */
+    public static boolean isSelected(Properties settings) {
+        return settings != null && "segmented".equalsIgnoreCase(settings.getProperty(STRATEGY_SETTING, "").trim());
+    }
+
+    /**
+     * Creates a download using the segment settings of a data source configuration.
+     * @param url       The source URL
+     * @param target    The destination file
+     * @param user      The user (if the server requires basic authentication)
+     * @param password  The password
+     * @param settings  The additional settings of the data source
+     */
+    public static SegmentedDownload create(URL url, Path target, String user, String password, Properties settings) {
+        int segments = DEFAULT_SEGMENTS;
+        long minSize = DEFAULT_MIN_SEGMENT_SIZE;
+        int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        int readTimeout = DEFAULT_READ_TIMEOUT;
+        if (settings != null) {
+            segments = Integer.parseInt(settings.getProperty(SEGMENTS_SETTING, String.valueOf(DEFAULT_SEGMENTS)).trim());
+            minSize = Long.parseLong(settings.getProperty(MIN_SEGMENT_SIZE_SETTING, String.valueOf(DEFAULT_MIN_SEGMENT_SIZE)).trim());
+            connectTimeout = Integer.parseInt(settings.getProperty(CONNECT_TIMEOUT_SETTING, String.valueOf(DEFAULT_CONNECT_TIMEOUT)).trim());
+            readTimeout = Integer.parseInt(settings.getProperty(READ_TIMEOUT_SETTING, String.valueOf(DEFAULT_READ_TIMEOUT)).trim());
+        }
+        final String authorization = user != null && !user.isEmpty()
+                ? "Basic " + Base64.getEncoder().encodeToString((user + ":" + (password != null ? password : ""))
+                                                                         .getBytes(StandardCharsets.UTF_8))
+                : null;
+        final SegmentedDownload download = new SegmentedDownload(url, target, authorization, segments, minSize);
+        download.setTimeouts(connectTimeout, readTimeout);
+        return download;
+    }
+
+    /**
+     * @param url               The source URL
+     * @param target            The destination file
+     * @param authorization     The value of the Authorization header (or <code>null</code>)
+     * @param maxSegments       The maximum number of segments
+     * @param minSegmentSize    The minimum size of a segment, in bytes
+     */
+    public SegmentedDownload(URL url, Path target, String authorization, int maxSegments, long minSegmentSize) {
+        this.url = url;
+        this.target = target;
+        this.stateFile = target.resolveSibling(target.getFileName() + ".parts");
+        this.authorization = authorization;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.minSegmentSize = Math.max(BUFFER_SIZE, minSegmentSize);
+        this.connectTimeout = DEFAULT_CONNECT_TIMEOUT * 1000;
+        this.readTimeout = DEFAULT_READ_TIMEOUT * 1000;
+        this.deadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * Sets the listener receiving the progress (in percents) of the download.
+     */
+    public void setProgressListener(DoubleConsumer listener) { this.progressListener = listener; }
+
+    public Path getTarget() { return target; }
+
+    /**
+     * Sets the shaper limiting the bandwidth of the transfer.
+     */
+    public void setBandwidth(BandwidthShaper.Stream bandwidth) { this.bandwidth = bandwidth; }
+
+    /**
+     * Sets the timeouts (in seconds) of establishing a connection and of reading from it.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = Math.max(1, connectTimeout) * 1000;
+        this.readTimeout = Math.max(1, readTimeout) * 1000;
+    }
+
+    /**
+     * Sets the moment (in milliseconds since the epoch) after which the download fails. The timeouts of the
+     * connections are shortened so that no request outlives it.
+     */
+    public void setDeadline(long deadline) { this.deadline = deadline; }
+
+    /**
+     * Checks if the server delivers the file as a zip archive (by the content type or by the file name announced by
+     * the server). Only such files can be fetched by this class instead of the data source plugin, since they need
+     * no further processing.
+     */
+    public boolean isArchive() throws IOException {
+        probe();
+        return (this.contentType != null && this.contentType.toLowerCase().contains("zip")) ||
+                (this.remoteName != null && this.remoteName.toLowerCase().endsWith(".zip"));
+    }
+
+    /**
+     * Stops the download. The completed segments are kept, so that a later download resumes from them.
+     */
+    public void cancel() { this.cancelled = true; }
+
+    /**
+     * Downloads the file, resuming a previous transfer if one exists.
+     * @return The downloaded file
+     * @throws IOException If the transfer failed or was cancelled, or if the resulting file does not have the expected size
+     */
+    public Path execute() throws IOException {
+        Files.createDirectories(this.target.getParent());
+        final long remoteLength = probe();
+        this.probed = false;
+        this.ranged = remoteLength >= 0;
+        if (!this.ranged) {
+            logger.fine(String.format("Server does not support byte ranges for %s, downloading as a single stream", this.url));
+            init(-1, 1);
+            fetch(0, false);
+        } else {
+            if (!resume(remoteLength)) {
+                init(remoteLength, (int) Math.max(1, Math.min(this.maxSegments, remoteLength / this.minSegmentSize)));
+                try (FileChannel channel = FileChannel.open(this.target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                    if (remoteLength > 0) {
+                        // preallocate the file, so that each segment is written at its position
+                        channel.write(ByteBuffer.allocate(1), remoteLength - 1);
+                    }
+                }
+                saveState();
+            }
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < this.starts.length; i++) {
+                final int segment = i;
+                futures.add(segmentExecutor.submit(() -> { fetch(segment, true); return null; }));
+            }
+            IOException error = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.cancelled = true;
+                    error = new IOException("Download interrupted");
+                } catch (ExecutionException e) {
+                    this.cancelled = true;
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+            saveState();
+            if (error != null) {
+                throw error;
+            }
+            // the file was preallocated, hence its size says nothing about the bytes actually received
+            final long actual = completedBytes();
+            if (actual != remoteLength) {
+                throw new IOException(String.format("Size mismatch for %s: expected %d bytes, got %d",
+                                                    this.target, remoteLength, actual));
+            }
+        }
+        Files.deleteIfExists(this.stateFile);
+        return this.target;
+    }
+
+    /**
+     * Returns the length of the remote file, or -1 if the server does not support byte ranges.
+     * The server is asked only once; the answer is reused until the download starts.
+     */
+    private long probe() throws IOException {
+        if (this.probed) {
+            return this.remoteLength;
+        }
+        final HttpURLConnection connection = open(0, 0);
+        try {
+            final int code = connection.getResponseCode();
+            if (code >= 400) {
+                throw new IOException(String.format("Server returned HTTP %d for %s", code, this.url));
+            }
+            this.contentType = connection.getContentType();
+            this.remoteName = remoteNameOf(connection);
+            this.remoteLength = -1;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                final String range = connection.getHeaderField("Content-Range");
+                if (range != null && range.contains("/") && !range.endsWith("/*")) {
+                    this.remoteLength = Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+                }
+            }
+            this.probed = true;
+            return this.remoteLength;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private String remoteNameOf(HttpURLConnection connection) {
+        final String disposition = connection.getHeaderField("Content-Disposition");
+        if (disposition != null) {
+            final int index = disposition.toLowerCase().indexOf("filename=");
+            if (index >= 0) {
+                String name = disposition.substring(index + 9).trim();
+                final int end = name.indexOf(';');
+                if (end >= 0) {
+                    name = name.substring(0, end).trim();
+                }
+                return name.replace("\"", "");
+            }
+        }
+        final String path = this.url.getPath();
+        return path != null ? path.substring(path.lastIndexOf('/') + 1) : null;
+    }
+
+    private long completedBytes() {
+        long done = 0;
+        for (int i = 0; i < this.completed.length(); i++) {
+            done += this.completed.get(i);
+        }
+        return done;
+    }
+
+    private void init(long length, int segments) {
+        this.length = length;
+        this.starts = new long[segments];
+        this.completed = new AtomicLongArray(segments);
+        if (length > 0) {
+            final long size = length / segments;
+            for (int i = 0; i < segments; i++) {
+                this.starts[i] = i * size;
+            }
+        }
+    }
+
+    private long endOf(int segment) {
+        return segment < this.starts.length - 1 ? this.starts[segment + 1] - 1 : this.length - 1;
+    }
+
+    /**
+     * Downloads the remaining part of a segment, retrying (from the last byte written) on failure.
+     */
+    private void fetch(int segment, boolean ranged) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+            if (this.cancelled) {
+                throw new IOException("Download cancelled");
+            }
+            final long from = ranged ? this.starts[segment] + this.completed.get(segment) : 0;
+            final long to = ranged ? endOf(segment) : -1;
+            if (ranged && from > to) {
+                return;
+            }
+            try {
+                transfer(segment, from, to, ranged);
+                return;
+            } catch (IOException e) {
+                lastError = e;
+                logger.warning(String.format("Segment %d of %s failed (attempt %d of %d) [%s]",
+                                             segment, this.url, attempt, ATTEMPTS, e.getMessage()));
+                if (!ranged) {
+                    break;
+                }
+            }
+        }
+        throw lastError;
+    }
+
+    private void transfer(int segment, long from, long to, boolean ranged) throws IOException {
+        final HttpURLConnection connection = ranged ? open(from, to) : open(-1, -1);
+        try {
+            final int code = connection.getResponseCode();
+            if (ranged ? code != HttpURLConnection.HTTP_PARTIAL : code != HttpURLConnection.HTTP_OK) {
+                throw new IOException(String.format("Server returned HTTP %d for %s", code, this.url));
+            }
+            if (!ranged) {
+                this.length = connection.getContentLengthLong();
+            }
+            try (InputStream in = connection.getInputStream();
+                 FileChannel channel = ranged
+                         ? FileChannel.open(this.target, StandardOpenOption.WRITE)
+                         : FileChannel.open(this.target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                long position = from;
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    if (this.cancelled) {
+                        throw new IOException("Download cancelled");
+                    }
+                    if (System.currentTimeMillis() > this.deadline) {
+                        throw new IOException(String.format("Download of %s timed out", this.url));
+                    }
+                    final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+                    this.completed.addAndGet(segment, read);
+                    progress();
+                    if (this.bandwidth != null) {
+                        try {
+                            this.bandwidth.received(read);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Download interrupted");
+                        }
+                    }
+                }
+                // a connection closed early by the server ends the stream without an error
+                final long expected = ranged ? to + 1 : this.length;
+                if (expected >= 0 && position != expected) {
+                    throw new IOException(String.format("Transfer of %s ended at byte %d instead of %d",
+                                                        this.url, position, expected));
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(long from, long to) throws IOException {
+        final long remaining = this.deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new IOException(String.format("Download of %s timed out", this.url));
+        }
+        final HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+        connection.setConnectTimeout((int) Math.min(this.connectTimeout, remaining));
+        connection.setReadTimeout((int) Math.min(this.readTimeout, remaining));
+        if (this.authorization != null) {
+            connection.setRequestProperty("Authorization", this.authorization);
+        }
+        if (from >= 0) {
+            connection.setRequestProperty("Range", String.format("bytes=%d-%d", from, to));
+        }
+        return connection;
+    }
+
+    private void progress() throws IOException {
+        final long done = completedBytes();
+        if (this.progressListener != null && this.length > 0) {
+            this.progressListener.accept(100.0 * done / this.length);
+        }
+        if (this.ranged && System.currentTimeMillis() - this.lastSave > STATE_SAVE_INTERVAL) {
+            saveState();
+        }
+    }
+
+    /**
+     * Restores the state of a previous transfer of the same file.
+     * @return <code>false</code> if there is no usable previous state
+     */
+    private boolean resume(long remoteLength) {
+        if (!Files.isRegularFile(this.stateFile) || !Files.isRegularFile(this.target)) {
+            return false;
+        }
+        try {
+            final Properties state = new Properties();
+            try (InputStream in = Files.newInputStream(this.stateFile)) {
+                state.load(in);
+            }
+            final long length = Long.parseLong(state.getProperty("length"));
+            final int segments = Integer.parseInt(state.getProperty("segments"));
+            if (length != remoteLength || Files.size(this.target) != remoteLength || !this.url.toString().equals(state.getProperty("url"))) {
+                return false;
+            }
+            this.length = length;
+            this.starts = new long[segments];
+            this.completed = new AtomicLongArray(segments);
+            for (int i = 0; i < segments; i++) {
+                this.starts[i] = Long.parseLong(state.getProperty("segment." + i + ".start"));
+                this.completed.set(i, Long.parseLong(state.getProperty("segment." + i + ".completed")));
+            }
+            logger.fine(String.format("Resuming download of %s from %s", this.url, this.stateFile));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.warning(String.format("Cannot read download state %s [%s]", this.stateFile, e.getMessage()));
+            return false;
+        }
+    }
+
+    private synchronized void saveState() throws IOException {
+        final Properties state = new Properties();
+        state.setProperty("url", this.url.toString());
+        state.setProperty("length", String.valueOf(this.length));
+        state.setProperty("segments", String.valueOf(this.starts.length));
+        // the counters are read before flushing the file: the bytes they count were already written
+        for (int i = 0; i < this.starts.length; i++) {
+            state.setProperty("segment." + i + ".start", String.valueOf(this.starts[i]));
+            state.setProperty("segment." + i + ".completed", String.valueOf(this.completed.get(i)));
+        }
+        try (FileChannel channel = FileChannel.open(this.target, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+        final Path temp = this.stateFile.resolveSibling(this.stateFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream out = Channels.newOutputStream(channel)) {
+            state.store(out, null);
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(temp, this.stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.lastSave = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import org.esa.sen2agri.entities.Site;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import ro.cs.tao.eodata.Polygon2D;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Parsed form of the extent of a site, shared by the scheduler, the lookup jobs and the import operations.
+ * The instances are cached by site identifier and are replaced when the extent of the site changes.
+ *
+ * @author Cosmin Cara
+ */
+public final class SiteGeometry {
+    /** Maximum number of points of the footprint sent to the remote data sources */
+    private static final int MAX_QUERY_POINTS = 1000;
+    /** Initial tolerance (in degrees) used to simplify the query footprint */
+    private static final double SIMPLIFY_TOLERANCE = 0.0005;
+    private static final Map<Short, SiteGeometry> cache = new ConcurrentHashMap<>();
+    private static final Logger logger = Logger.getLogger(SiteGeometry.class.getName());
+
+    private final int extentHash;
+    private final String extent;
+    private final Geometry geometry;
+    private final PreparedGeometry prepared;
+    private Polygon2D queryFootprint;
+
+    /**
+     * Returns the parsed extent of the given site.
+     */
+    public static SiteGeometry of(Site site) {
+        final int hash = site.getExtent() != null ? site.getExtent().hashCode() : 0;
+        SiteGeometry siteGeometry = cache.get(site.getId());
+        if (siteGeometry == null || siteGeometry.extentHash != hash) {
+            siteGeometry = new SiteGeometry(site, hash);
+            cache.put(site.getId(), siteGeometry);
+        }
+        return siteGeometry;
+    }
+
+    /**
+     * Removes the cached extent of the given site.
+     */
+    public static void invalidate(short siteId) {
+        cache.remove(siteId);
+    }
+
+    /**
+     * Removes the cached extents of the sites not in the given list.
+     */
+    public static void retain(Collection<Site> sites) {
+        cache.keySet().removeIf(id -> sites.stream().noneMatch(s -> s.getId() == id));
+    }
+
+    private SiteGeometry(Site site, int extentHash) {
+        this.extentHash = extentHash;
+        this.extent = site.getExtent();
+        Geometry geometry = null;
+        if (site.getExtent() != null) {
+            try {
+                geometry = new WKTReader().read(site.getExtent());
+            } catch (Exception e) {
+                logger.severe(String.format("Invalid geometry for site %s [%s]", site.getShortName(), site.getExtent()));
+            }
+        }
+        this.geometry = geometry != null && !geometry.isEmpty() ? geometry : null;
+        this.prepared = this.geometry != null ? PreparedGeometryFactory.prepare(this.geometry) : null;
+    }
+
+    /**
+     * Checks if the site has a valid, non-empty, extent.
+     */
+    public boolean isValid() { return this.geometry != null; }
+
+    /**
+     * Returns the extent of the site (or <code>null</code> if not valid). The instance is shared and should not be modified.
+     */
+    public Geometry getGeometry() { return this.geometry; }
+
+    /**
+     * Returns the prepared form of the extent, for repeated spatial predicates (or <code>null</code> if not valid).
+     */
+    public PreparedGeometry getPrepared() { return this.prepared; }
+
+    public Envelope getEnvelope() { return this.geometry != null ? this.geometry.getEnvelopeInternal() : new Envelope(); }
+
+    public int getPolygonCount() { return this.geometry != null ? this.geometry.getNumGeometries() : 0; }
+
+    /**
+     * Checks if the given geometry intersects the site extent. If the extent is not valid, the method returns <code>true</code>.
+     */
+    public boolean intersects(Geometry other) {
+        return this.prepared == null || this.prepared.intersects(other);
+    }
+
+    /**
+     * Returns the footprint to be used in remote queries. If the site extent has too many points, the footprint
+     * is a simplified form that still covers the extent. If the extent could not be parsed, the footprint is the
+     * raw extent, as read by {@link Polygon2D#fromWKT(String)}, or <code>null</code> if this fails too.
+     */
+    public synchronized Polygon2D getQueryFootprint() {
+        if (this.queryFootprint == null && this.geometry == null && this.extent != null) {
+            try {
+                this.queryFootprint = Polygon2D.fromWKT(this.extent);
+            } catch (Exception e) {
+                logger.severe(String.format("Cannot create a query footprint from the extent [%s]: %s",
+                                            this.extent, e.getMessage()));
+            }
+        }
+        if (this.queryFootprint == null && this.geometry != null) {
+            Geometry footprint = this.geometry;
+            double tolerance = SIMPLIFY_TOLERANCE;
+            while (footprint.getNumPoints() > MAX_QUERY_POINTS && tolerance < 1.0) {
+                // the buffer ensures that the simplified footprint (which deviates by at most the tolerance from the
+                // buffered one) still covers the original extent
+                footprint = TopologyPreservingSimplifier.simplify(this.geometry.buffer(tolerance), tolerance);
+                tolerance *= 2;
+            }
+            if (footprint != this.geometry) {
+                logger.fine(String.format("Query footprint simplified from %d to %d points",
+                                          this.geometry.getNumPoints(), footprint.getNumPoints()));
+            }
+            this.queryFootprint = Polygon2D.fromWKT(footprint.toText());
+        }
+        return this.queryFootprint;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import ro.cs.tao.Tuple;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * In-memory index of a tile grid (such as the Sentinel-2 MGRS grid or the Landsat WRS-2 grid).
+ * The grid is loaded once from a compact binary file (which is memory-mapped, if requested) or, if such a file does
+ * not exist, it is retrieved from a source (usually the database) and then written to the file for the next loads.
+ * The tile geometries are decoded only when first needed, while their envelopes are kept in a spatial index.
+ *
+ * The binary format is: magic, version, tile count, followed, for each tile, by the name (length and UTF-8 bytes),
+ * the EPSG code of its UTM zone, the UTM bounds (xMin, yMin, xMax, yMax), the WGS84 envelope
+ * (minX, maxX, minY, maxY) and the WKB geometry (length and bytes).
+ *
+ * @author Cosmin Cara
+ */
+public final class TileGridIndex {
+    private static final int MAGIC = 0x54475249;
+    private static final int VERSION = 1;
+    private static final Logger logger = Logger.getLogger(TileGridIndex.class.getName());
+
+    private final ByteBuffer buffer;
+    private final String[] names;
+    private final Map<String, Integer> positions;
+    private final int[] epsgCodes;
+    private final int[] utmBounds;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final AtomicReferenceArray<Geometry> geometries;
+    private final STRtree index;
+
+    /**
+     * A tile of the grid, as retrieved from the grid source.
+     */
+    public static class Tile {
+        private final String name;
+        private final int epsgCode;
+        private final int[] utmBounds;
+        private final byte[] wkb;
+
+        /**
+         * @param name      The tile identifier
+         * @param epsgCode  The EPSG code of the UTM projection of the tile (0 if not applicable)
+         * @param utmBounds The bounds of the tile in its UTM projection, as {xMin, yMin, xMax, yMax} (may be null)
+         * @param wkb       The WGS84 geometry of the tile, in WKB format
+         */
+        public Tile(String name, int epsgCode, int[] utmBounds, byte[] wkb) {
+            this.name = name;
+            this.epsgCode = epsgCode;
+            this.utmBounds = utmBounds;
+            this.wkb = wkb;
+        }
+    }
+
+    /**
+     * Loads the grid from the given file or, if the file does not exist or cannot be read, from the given source.
+     * @param file      The grid file (if <code>null</code>, the grid is kept only in memory)
+     * @param mapped    If <code>true</code>, the file is memory-mapped instead of being read in the heap
+     * @param source    The source of the grid tiles
+     */
+    public static TileGridIndex load(Path file, boolean mapped, Supplier<List<Tile>> source) {
+        if (file != null && Files.isRegularFile(file)) {
+            try {
+                final TileGridIndex grid = new TileGridIndex(read(file, mapped));
+                logger.fine(String.format("Tile grid loaded from %s (%d tiles)", file, grid.size()));
+                return grid;
+            } catch (IOException | RuntimeException e) {
+                logger.warning(String.format("Cannot read tile grid file %s [%s]. The grid will be rebuilt",
+                                             file, e.getMessage()));
+            }
+        }
+        final List<Tile> tiles = source.get();
+        final byte[] data;
+        try {
+            data = encode(tiles);
+        } catch (IOException | ParseException e) {
+            throw new IllegalArgumentException(String.format("Invalid tile grid [%s]", e.getMessage()));
+        }
+        if (file != null && !tiles.isEmpty()) {
+            try {
+                Files.createDirectories(file.getParent());
+                final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(temp, data);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                logger.fine(String.format("Tile grid written to %s (%d tiles)", file, tiles.size()));
+            } catch (IOException e) {
+                logger.warning(String.format("Cannot write tile grid file %s [%s]", file, e.getMessage()));
+            }
+        }
+        return new TileGridIndex(ByteBuffer.wrap(data));
+    }
+
+    private TileGridIndex(ByteBuffer data) {
+        this.buffer = data.asReadOnlyBuffer();
+        final ByteBuffer view = data.duplicate();
+        if (view.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a tile grid file");
+        }
+        final int version = view.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException(String.format("Unsupported tile grid version %d", version));
+        }
+        final int count = view.getInt();
+        this.names = new String[count];
+        this.positions = new HashMap<>(count * 2);
+        this.epsgCodes = new int[count];
+        this.utmBounds = new int[4 * count];
+        this.offsets = new int[count];
+        this.lengths = new int[count];
+        this.geometries = new AtomicReferenceArray<>(count);
+        this.index = new STRtree();
+        for (int i = 0; i < count; i++) {
+            final byte[] name = new byte[view.getShort() & 0xFFFF];
+            view.get(name);
+            this.names[i] = new String(name, StandardCharsets.UTF_8);
+            this.positions.put(this.names[i], i);
+            this.epsgCodes[i] = view.getInt();
+            for (int j = 0; j < 4; j++) {
+                this.utmBounds[4 * i + j] = view.getInt();
+            }
+            this.index.insert(new Envelope(view.getDouble(), view.getDouble(), view.getDouble(), view.getDouble()), i);
+            this.lengths[i] = view.getInt();
+            this.offsets[i] = view.position();
+            view.position(view.position() + this.lengths[i]);
+        }
+        if (count > 0) {
+            this.index.build();
+        }
+    }
+
+    public int size() { return this.names.length; }
+
+    public boolean contains(String tile) { return this.positions.containsKey(tile); }
+
+    /**
+     * Returns the WGS84 geometry of the given tile, or <code>null</code> if the tile is not part of the grid.
+     * The returned instance is shared and should not be modified.
+     */
+    public Geometry getGeometry(String tile) {
+        final Integer position = this.positions.get(tile);
+        return position != null ? geometry(position) : null;
+    }
+
+    /**
+     * Returns the UTM projection of the given tile (as "EPSG:code"), or <code>null</code> if not known.
+     */
+    public String getCrs(String tile) {
+        final Integer position = this.positions.get(tile);
+        return position != null && this.epsgCodes[position] != 0 ? "EPSG:" + this.epsgCodes[position] : null;
+    }
+
+    /**
+     * Returns the bounds of the given tile in its UTM projection, as {xMin, yMin, xMax, yMax},
+     * or <code>null</code> if not known.
+     */
+    public int[] getUtmBounds(String tile) {
+        final Integer position = this.positions.get(tile);
+        return position != null && this.epsgCodes[position] != 0
+                ? Arrays.copyOfRange(this.utmBounds, 4 * position, 4 * position + 4) : null;
+    }
+
+    /**
+     * Returns the tiles that intersect the given WGS84 geometry, together with the fraction of the tile area
+     * covered by the geometry. Only the tiles for which this fraction exceeds the given minimum are returned.
+     */
+    public List<Tuple<String, Double>> getIntersectingTiles(Geometry geometry, double minCoverage) {
+        final List<Tuple<String, Double>> results = new ArrayList<>();
+        if (geometry == null || geometry.isEmpty() || size() == 0) {
+            return results;
+        }
+        final PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometry);
+        for (Object item : this.index.query(geometry.getEnvelopeInternal())) {
+            final int position = (Integer) item;
+            final Geometry tile = geometry(position);
+            if (tile == null || !prepared.intersects(tile)) {
+                continue;
+            }
+            final double coverage = prepared.covers(tile)
+                    ? 1.0 : tile.intersection(geometry).getArea() / tile.getArea();
+            if (coverage > minCoverage) {
+                results.add(new Tuple<>(this.names[position], coverage));
+            }
+        }
+        results.sort(Comparator.comparing(Tuple::getKeyOne));
+        return results;
+    }
+
+    private Geometry geometry(int position) {
+        Geometry geometry = this.geometries.get(position);
+        if (geometry == null) {
+            final byte[] wkb = new byte[this.lengths[position]];
+            final ByteBuffer view = this.buffer.duplicate();
+            view.position(this.offsets[position]);
+            view.get(wkb);
+            try {
+                geometry = new WKBReader().read(wkb);
+            } catch (ParseException e) {
+                logger.warning(String.format("Invalid geometry for tile %s [%s]", this.names[position], e.getMessage()));
+                return null;
+            }
+            this.geometries.compareAndSet(position, null, geometry);
+        }
+        return geometry;
+    }
+
+    private static ByteBuffer read(Path file, boolean mapped) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (mapped) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static byte[] encode(List<Tile> tiles) throws IOException, ParseException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tiles.size());
+            final WKBReader reader = new WKBReader();
+            for (Tile tile : tiles) {
+                final byte[] name = tile.name.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(tile.utmBounds != null ? tile.epsgCode : 0);
+                for (int j = 0; j < 4; j++) {
+                    out.writeInt(tile.utmBounds != null ? tile.utmBounds[j] : 0);
+                }
+                final Envelope envelope = reader.read(tile.wkb).getEnvelopeInternal();
+                out.writeDouble(envelope.getMinX());
+                out.writeDouble(envelope.getMaxX());
+                out.writeDouble(envelope.getMinY());
+                out.writeDouble(envelope.getMaxY());
+                out.writeInt(tile.wkb.length);
+                out.write(tile.wkb);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
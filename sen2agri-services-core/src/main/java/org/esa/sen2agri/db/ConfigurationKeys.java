@@ -31,6 +31,28 @@ public final class ConfigurationKeys {
     public static final String DOWNLOADER_QUERY_TIMEOUT = "downloader.query.timeout";
     public static final String DOWNLOADER_ACTION_TIMEOUT = "downloader.timeout";
     public static final String DOWNLOADER_QUERY_DELAY = "downloader.query.delay";
+    public static final String DOWNLOADER_QUERY_PARALLEL = "downloader.query.parallel";
+    public static final String DOWNLOADER_LOOKUP_BUFFER = "downloader.lookup.buffer.size";
+    public static final String DOWNLOADER_LOOKUP_BUDGET = "downloader.lookup.budget";
+    public static final String DOWNLOADER_QUERY_CACHE_ENABLED = "downloader.query.cache.enabled";
+    public static final String DOWNLOADER_QUERY_CACHE_TTL = "downloader.query.cache.ttl";
+    public static final String DOWNLOADER_QUERY_CACHE_SIZE = "downloader.query.cache.size";
+    public static final String DOWNLOADER_QUERY_CACHE_LATENCY = "downloader.query.cache.latency";
+    public static final String DOWNLOADER_QUERY_RETRY_DELAY = "downloader.query.retry.delay";
+    public static final String DOWNLOADER_THROTTLE_LATENCY = "downloader.throttle.latency";
+    public static final String DOWNLOADER_THROTTLE_FAILURES = "downloader.throttle.failures";
+    public static final String DOWNLOADER_THROTTLE_COOLDOWN = "downloader.throttle.cooldown";
+    public static final String DOWNLOADER_THROTTLE_MAX_DELAY = "downloader.throttle.max.delay";
+    public static final String DOWNLOADER_PRIORITY_AGING = "downloader.priority.aging";
+    public static final String DOWNLOADER_SITE_PRIORITY = "downloader.site.priority";
+    public static final String DOWNLOADER_SITE_WEIGHT = "downloader.site.weight";
+    public static final String DOWNLOADER_PROGRESS_INTERVAL = "downloader.progress.interval";
+    public static final String DOWNLOADER_PROGRESS_THRESHOLD = "downloader.progress.threshold";
+    public static final String DOWNLOADER_BANDWIDTH = "downloader.bandwidth.max";
+    public static final String DOWNLOADER_BANDWIDTH_DATASOURCE = "downloader.bandwidth.%s.max";
+    public static final String DOWNLOADER_BANDWIDTH_SITE = "downloader.bandwidth.site.max";
+    public static final String DOWNLOADER_LOCAL_PARALLELISM = "downloader.local.parallelism";
+    public static final String DOWNLOADER_VERIFICATION_PARALLELISM = "downloader.verification.parallelism";
     public static final String SKIP_EXISTING_PRODUCTS = "downloader.skip.existing";
     public static final String SCHEDULED_LOOKUP_ENABLED = "scheduled.lookup.enabled";
     public static final String SCHEDULED_RETRY_ENABLED = "scheduled.retry.enabled";
@@ -15,10 +15,12 @@
  */
 package org.esa.sen2agri.db;
 
+import org.esa.sen2agri.commons.TileGridIndex;
 import org.esa.sen2agri.entities.*;
 import org.esa.sen2agri.entities.converters.ActivityStatusConverter;
 import org.esa.sen2agri.entities.enums.Satellite;
 import org.esa.sen2agri.entities.enums.Status;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
@@ -73,6 +75,25 @@ class NonMappedEntitiesRepository {
         return siteTiles;
     }
 
+    /**
+     * Computes a cheap fingerprint of the <code>config</code> table (row count and a sum of row hashes),
+     * which changes whenever a row is inserted, updated or deleted.
+     */
+    String getConfigurationFingerprint() {
+        DataSource dataSource = persistenceManager.getDataSource();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        try (Connection conn = dataSource.getConnection()) {
+            List<String> result = jdbcTemplate.query(
+                    connection -> connection.prepareStatement("SELECT COUNT(*), COALESCE(SUM(hashtext(CONCAT(id, ':', key, ':', value, ':', site_id))), 0) " +
+                                                                      "FROM public.config"),
+                    (resultSet, i) -> resultSet.getLong(1) + "-" + resultSet.getLong(2));
+            return result.size() == 1 ? result.get(0) : null;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     List<ProductCount> getEstimatedProductCount(int siteId, int satelliteId) {
         DataSource dataSource = persistenceManager.getDataSource();
         JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
@@ -383,6 +404,46 @@ class NonMappedEntitiesRepository {
                 }));
     }
 
+    /**
+     * Retrieves the whole tile grid of the given satellite, with the tile geometries in WKB format.
+     * For S2 tiles, the bounds in the UTM projection of each tile are retrieved as well.
+     */
+    List<TileGridIndex.Tile> getTileGrid(Satellite satellite) {
+        final String sql;
+        switch (satellite) {
+            case Sentinel2:
+                sql = "WITH Transformed AS (" +
+                        "SELECT TILE_ID, EPSG_CODE, ST_ASBINARY(GEOM) AS WKB, ST_TRANSFORM(GEOM, EPSG_CODE) AS GEOM FROM shape_tiles_s2) " +
+                        "SELECT TILE_ID, EPSG_CODE, WKB, ST_X(ST_POINTN(ST_EXTERIORRING(GEOM), 4))::INT AS xMin, ST_Y(ST_POINTN(ST_EXTERIORRING(GEOM), 4))::INT AS yMin, " +
+                        "ST_X(ST_POINTN(ST_EXTERIORRING(GEOM), 2))::INT AS xMax, ST_Y(ST_POINTN(ST_EXTERIORRING(GEOM), 2))::INT AS yMax " +
+                        "FROM Transformed";
+                break;
+            case Landsat8:
+                sql = "SELECT LPAD(PR::VARCHAR, 6, '0') AS TILE_ID, 0 AS EPSG_CODE, ST_ASBINARY(GEOM) AS WKB, " +
+                        "0 AS xMin, 0 AS yMin, 0 AS xMax, 0 AS yMax FROM shape_tiles_l8";
+                break;
+            default:
+                return new ArrayList<>();
+        }
+        DataSource dataSource = persistenceManager.getDataSource();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        try (Connection conn = dataSource.getConnection()) {
+            return jdbcTemplate.query(
+                    connection -> connection.prepareStatement(sql),
+                    (rs, i) -> {
+                        final int epsgCode = rs.getInt("EPSG_CODE");
+                        return new TileGridIndex.Tile(rs.getString("TILE_ID"), epsgCode,
+                                                      epsgCode != 0 ? new int[] {
+                                                              rs.getInt("xMin"), rs.getInt("yMin"), rs.getInt("xMax"), rs.getInt("yMax")
+                                                      } : null,
+                                                      rs.getBytes("WKB"));
+                    });
+        } catch (SQLException | DataAccessException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
     List<Map.Entry<LocalDateTime, Path>> getPreviousAsymmetricFilteredProducts(int siteId, int productType, String utmTile,
                                                                                String polarisation, int orbit, LocalDateTime acquisitionDate, int daysBack) {
         DataSource dataSource = persistenceManager.getDataSource();
@@ -16,10 +16,15 @@
 package org.esa.sen2agri.db;
 
 import org.esa.sen2agri.commons.Config;
+import org.esa.sen2agri.commons.SiteGeometry;
+import org.esa.sen2agri.commons.TileGridIndex;
 import org.esa.sen2agri.entities.*;
 import org.esa.sen2agri.entities.enums.Satellite;
 import org.esa.sen2agri.entities.enums.Status;
 import org.esa.sen2agri.entities.enums.TileProcessingStatus;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.domain.PageRequest;
@@ -34,11 +39,13 @@ import ro.cs.tao.datasource.param.DataSourceParameter;
 
 import javax.sql.DataSource;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -73,6 +80,7 @@ public class PersistenceManager {
     private DownloadProductTileRepository downloadProductTileRepository;
     private NonMappedEntitiesRepository nonMappedEntitiesRepository;
     private StepRepository stepRepository;
+    private final Map<Satellite, TileGridIndex> tileGrids = new ConcurrentHashMap<>();
 
     /**
      * Instance of the DB configuration
@@ -479,6 +487,15 @@ public class PersistenceManager {
         return configRepository.getByKeyStartingWith(key);
     }
 
+    @Transactional(readOnly = true)
+    public List<ConfigurationItem> getConfigurationItems() {
+        return StreamSupport.stream(configRepository.findAll().spliterator(), false).collect(Collectors.toList());
+    }
+
+    public String getConfigurationFingerprint() {
+        return getNonMappedEntitiesRepository().getConfigurationFingerprint();
+    }
+
     public Map<Short, Map<String, String>> getConfiguration() {
         Map<Short, Map<String, String>> propertiesMap = new HashMap<>();
         // get enabled sites
@@ -610,11 +627,47 @@ public class PersistenceManager {
     }
 
     public List<S2Tile> getIntersectingS2Tiles(String extent, double minIntersection) {
-        return getNonMappedEntitiesRepository().getIntersectingTiles(extent, minIntersection);
+        final TileGridIndex grid = getTileGrid(Satellite.Sentinel2);
+        if (grid.size() == 0) {
+            return getNonMappedEntitiesRepository().getIntersectingTiles(extent, minIntersection);
+        }
+        final Geometry geometry;
+        try {
+            geometry = new WKTReader().read(extent);
+        } catch (ParseException e) {
+            Logger.getLogger(PersistenceManager.class.getName()).warning(String.format("Invalid geometry [%s]", extent));
+            return new ArrayList<>();
+        }
+        return getIntersectingS2Tiles(grid, geometry, minIntersection);
     }
 
     public List<S2Tile> getIntersectingS2Tiles(short siteId, double minIntersection) {
-        return getNonMappedEntitiesRepository().getIntersectingTiles(siteId, minIntersection);
+        final TileGridIndex grid = getTileGrid(Satellite.Sentinel2);
+        if (grid.size() == 0) {
+            return getNonMappedEntitiesRepository().getIntersectingTiles(siteId, minIntersection);
+        }
+        final Site site = getSiteById(siteId);
+        return site != null ? getIntersectingS2Tiles(grid, SiteGeometry.of(site).getGeometry(), minIntersection) : new ArrayList<>();
+    }
+
+    private List<S2Tile> getIntersectingS2Tiles(TileGridIndex grid, Geometry geometry, double minIntersection) {
+        return grid.getIntersectingTiles(geometry, minIntersection).stream()
+                .map(t -> new S2Tile(t.getKeyOne(), grid.getCrs(t.getKeyOne()), grid.getUtmBounds(t.getKeyOne())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the tile grid of the given satellite. The grid is loaded only once, from the file configured by the
+     * <code>tile.grid.location</code> property or, if the file does not exist, from the database.
+     */
+    public TileGridIndex getTileGrid(Satellite satellite) {
+        return tileGrids.computeIfAbsent(satellite, s -> {
+            final String location = Config.getProperty("tile.grid.location");
+            return TileGridIndex.load(location != null && !location.trim().isEmpty() ?
+                                              Paths.get(location).resolve(s.friendlyName() + ".grid") : null,
+                                      Boolean.parseBoolean(Config.getProperty("tile.grid.mmap", "true")),
+                                      () -> getNonMappedEntitiesRepository().getTileGrid(s));
+        });
     }
 
     public List<Map.Entry<LocalDateTime, Path>> getPreviousAsymmetricFilteredProducts(int siteId, int productType, String utmTile,
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.scheduling;
+
+import org.esa.sen2agri.commons.SiteGeometry;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Spatial filter of the products found by a lookup, against the footprint of the site and (optionally) against
+ * a set of tiles.
+ * The site and tile footprints are parsed (and prepared) only once per lookup, the tiles are kept in a spatial index
+ * and the exact intersection area is computed only for the tiles whose envelopes allow the minimum coverage.
+ *
+ * @author Cosmin Cara
+ */
+class FootprintFilter {
+    /** Minimum fraction of a tile that a product has to cover in order to be kept */
+    private static final double MIN_TILE_COVERAGE = 0.05;
+
+    private final SiteGeometry siteFootprint;
+    private final Function<String, Geometry> tileResolver;
+    private final Map<String, Geometry> tileFootprints;
+    private STRtree tileIndex;
+
+    /**
+     * @param siteFootprint The extent of the site of the lookup
+     * @param tileResolver  The function that gives the footprint of a tile (or <code>null</code> if the tiles of the
+     *                      lookup satellite have no known footprints)
+     */
+    FootprintFilter(SiteGeometry siteFootprint, Function<String, Geometry> tileResolver) {
+        this.siteFootprint = siteFootprint;
+        this.tileResolver = tileResolver;
+        this.tileFootprints = new HashMap<>();
+    }
+
+    /**
+     * Checks if the site footprint could be parsed. If not, no product or tile is discarded by the site checks.
+     */
+    boolean hasSiteFootprint() { return this.siteFootprint.isValid(); }
+
+    /**
+     * Checks if the footprints of the tiles can be determined.
+     */
+    boolean hasTileFootprints() { return this.tileResolver != null; }
+
+    /**
+     * Returns the footprint of the given tile, or <code>null</code> if the footprint is not known.
+     * The footprint is resolved only once.
+     */
+    Geometry getTileFootprint(String tile) {
+        if (this.tileResolver == null) {
+            return null;
+        }
+        Geometry footprint = this.tileFootprints.get(tile);
+        if (footprint == null && (footprint = this.tileResolver.apply(tile)) != null) {
+            this.tileFootprints.put(tile, footprint);
+        }
+        return footprint;
+    }
+
+    /**
+     * Checks if the given footprint intersects the site footprint.
+     */
+    boolean intersectsSite(Geometry footprint) {
+        return this.siteFootprint.intersects(footprint);
+    }
+
+    /**
+     * Sets the tiles that the products have to cover (at least one of them, in a proportion of at least 5%).
+     */
+    void setTileFilter(Collection<String> tiles) {
+        this.tileIndex = null;
+        if (tiles == null || tiles.isEmpty() || this.tileResolver == null) {
+            return;
+        }
+        final STRtree index = new STRtree();
+        for (String tile : tiles) {
+            final Geometry footprint = getTileFootprint(tile);
+            if (footprint != null && footprint.getArea() > 0) {
+                index.insert(footprint.getEnvelopeInternal(), new IndexedTile(footprint));
+            }
+        }
+        if (index.size() > 0) {
+            index.build();
+            this.tileIndex = index;
+        }
+    }
+
+    boolean hasTileFilter() { return this.tileIndex != null; }
+
+    /**
+     * Checks if the given footprint covers enough of at least one of the filter tiles.
+     * If no tile filter was set, the method returns <code>true</code>.
+     */
+    boolean coversTiles(Geometry footprint) {
+        if (this.tileIndex == null) {
+            return true;
+        }
+        final Envelope envelope = footprint.getEnvelopeInternal();
+        for (Object item : this.tileIndex.query(envelope)) {
+            if (((IndexedTile) item).isCoveredBy(footprint, envelope)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class IndexedTile {
+        private final Geometry footprint;
+        private final PreparedGeometry prepared;
+        private final Envelope envelope;
+        private final double minArea;
+
+        IndexedTile(Geometry footprint) {
+            this.footprint = footprint;
+            this.prepared = PreparedGeometryFactory.prepare(footprint);
+            this.envelope = footprint.getEnvelopeInternal();
+            this.minArea = MIN_TILE_COVERAGE * footprint.getArea();
+        }
+
+        boolean isCoveredBy(Geometry other, Envelope otherEnvelope) {
+            // The intersection cannot be larger than the intersection of the envelopes or than the other geometry
+            if (this.envelope.intersection(otherEnvelope).getArea() < this.minArea || other.getArea() < this.minArea ||
+                    !this.prepared.intersects(other)) {
+                return false;
+            }
+            if (this.prepared.coveredBy(other)) {
+                return true;
+            }
+            if (this.prepared.covers(other)) {
+                // the other geometry is entirely inside the tile, and it was already checked to be large enough
+                return true;
+            }
+            return this.footprint.intersection(other).getArea() >= this.minArea;
+        }
+    }
+}
@@ -18,7 +18,12 @@ package org.esa.sen2agri.scheduling;
 import org.esa.sen2agri.commons.Commands;
 import org.esa.sen2agri.commons.Config;
 import org.esa.sen2agri.commons.Constants;
+import org.esa.sen2agri.commons.DataSourceThrottle;
+import org.esa.sen2agri.commons.Deadline;
+import org.esa.sen2agri.commons.DownloadQueue;
 import org.esa.sen2agri.commons.ProcessingTopic;
+import org.esa.sen2agri.commons.SiteGeometry;
+import org.esa.sen2agri.commons.TileGridIndex;
 import org.esa.sen2agri.db.ConfigurationKeys;
 import org.esa.sen2agri.entities.*;
 import org.esa.sen2agri.entities.enums.OrbitType;
@@ -41,10 +46,8 @@ import ro.cs.tao.eodata.util.TileExtent;
 import ro.cs.tao.messaging.Message;
 import ro.cs.tao.products.landsat.Landsat8TileExtent;
 import ro.cs.tao.products.sentinels.Sentinel2TileExtent;
-import ro.cs.tao.serialization.GeometryAdapter;
 import ro.cs.tao.utils.ExceptionUtils;
 import ro.cs.tao.utils.FileUtilities;
-import ro.cs.tao.utils.NetUtils;
 import ro.cs.tao.utils.Triple;
 
 import java.awt.geom.Path2D;
@@ -54,10 +57,17 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -67,6 +77,8 @@ public class LookupJob extends DownloadJob {
 
     private static final Map<Tuple<String, String>, Integer> runningJobs = Collections.synchronizedMap(new HashMap<>());
     private static final Object sharedLock = new Object();
+    // shared by all the lookups, so that the local archive is probed by a bounded number of threads
+    private static ThreadPoolExecutor localResolver;
 
     public LookupJob() {
         super();
@@ -231,6 +243,12 @@ public class LookupJob extends DownloadJob {
 
     private void lookupAndDownload(Site site, LocalDateTime start, LocalDateTime end, String path,
                                    DataSourceConfiguration queryConfiguration, DataSourceConfiguration downloadConfiguration) {
+        final DataSourceThrottle throttle = DataSourceThrottle.get(queryConfiguration);
+        if (!throttle.isAvailable()) {
+            logger.warning(String.format(MESSAGE, site.getName(), queryConfiguration.getSatellite().name(),
+                                         String.format("Data source %s is unavailable, lookup postponed", throttle.getName())));
+            return;
+        }
         final Query query = new Query();
         query.setUser(queryConfiguration.getUser());
         query.setPassword(queryConfiguration.getPassword());
@@ -249,14 +267,17 @@ public class LookupJob extends DownloadJob {
             params.put(CommonParameterNames.START_DATE, startDate);
             params.put(CommonParameterNames.END_DATE, endDate);
         }
-        int polygons;
-        try {
-            polygons = new WKTReader().read(site.getExtent()).getNumGeometries();
-        } catch (ParseException e) {
-            polygons = 1;
-            ExceptionUtils.getStackTrace(logger, e);
+        // The site and tile footprints are parsed once and reused by all the spatial checks of this lookup
+        final SiteGeometry siteGeometry = SiteGeometry.of(site);
+        final FootprintFilter footprints = new FootprintFilter(siteGeometry, getTileResolver(satellite));
+        final int polygons = siteGeometry.getPolygonCount();
+        final Polygon2D queryFootprint = siteGeometry.getQueryFootprint();
+        if (queryFootprint == null) {
+            logger.severe(String.format(MESSAGE, site.getShortName(), satellite.name(),
+                                        String.format("Invalid site extent, lookup skipped [%s]", site.getExtent())));
+            return;
         }
-        params.put(CommonParameterNames.FOOTPRINT, Polygon2D.fromWKT(site.getExtent()));
+        params.put(CommonParameterNames.FOOTPRINT, queryFootprint);
         if (satellite == Satellite.Sentinel2) {
             params.put(CommonParameterNames.PRODUCT_TYPE,
                        //useESAL2A(site) ? Constants.S2L2A_PRODUCT_TYPE : Constants.S2L1C_PRODUCT_TYPE);
@@ -268,7 +289,7 @@ public class LookupJob extends DownloadJob {
         if (tiles != null && tiles.size() > 0) {
             int initialSize = tiles.size();
             logger.finest(String.format("Validating %s tile filter for site %s", satellite.friendlyName(), site.getShortName()));
-            validateTiles(site, tiles, satellite);
+            validateTiles(site, tiles, footprints);
             logger.finest(String.format("%s %s tiles were discarded. Filter has %d tiles.",
                                         tiles.size() == initialSize ? "No" : initialSize - tiles.size(),
                                         satellite.friendlyName(),
@@ -307,65 +328,16 @@ public class LookupJob extends DownloadJob {
             }
         }
         query.setValues(params);
+        final Tuple<String, String> key = new Tuple<>(site.getName(), satellite.friendlyName());
+        ProductPipeline pipeline = null;
         try {
             final Path failedQueriesPath = Paths.get(path).resolve("failed_queries");
             FileUtilities.ensureExists(failedQueriesPath);
             logger.fine(String.format(MESSAGE, site.getName(), satellite.name(),
                     String.format("Performing query for interval %s - %s", start.toString(), end.toString())));
-            final Tuple<String, String> key = new Tuple<>(site.getName(), satellite.friendlyName());
-            runningJobs.put(key, 0);
-            // Invoke the downloadService via this method to control the number of connections
-            ThreadPoolExecutor worker = Config.getWorkerFor(queryConfiguration);
-            // Invoke the downloadService via this method to control the number of connections
-            final int defaultTimeout = Integer.parseInt(Config.getSetting(ConfigurationKeys.DOWNLOADER_QUERY_TIMEOUT, "90")) * 1000;
-            NetUtils.setTimeout(defaultTimeout);
-            logger.finest(String.format("Query timeout is set to %d s", defaultTimeout));
-            //final long timeout = defaultTimeout * polygons;
-            if (polygons > 1) {
-                logger.finest(String.format("The site %s footprint has %d geometries", site.getShortName(), polygons));
-            }
-            final QueryHandler queryHandler = new QueryHandler(site.getId(), failedQueriesPath);
-            downloadService.addQueryListener(site.getId(), queryHandler);
-            final Future<List<EOProduct>> future = worker.submit(() -> downloadService.query(site.getId(), query, queryConfiguration));
-            List<EOProduct> results;
-            try {
-                results = future.get();
-            } catch (ExecutionException ex) {
-                logger.warning(String.format("At least one query failed for site %s (reason: %s). It was saved in '%s' and will be retried later.",
-                                             site.getShortName(), ex.getMessage(), failedQueriesPath));
-                results = new ArrayList<>();
-            }
-            // Retry previously failed queries, but with a double timeout
-            NetUtils.setTimeout(2 * defaultTimeout);
-            final List<Query> queryList = queryHandler.list(satellite, LocalDateTime.now().minusHours(1));
-            if (queryList.size() > 0) {
-                final Set<String> names = results.stream().map(EOData::getName).collect(Collectors.toSet());
-                for (Query q : queryList) {
-                    final Future<List<EOProduct>> f = worker.submit(() -> downloadService.query(site.getId(), q, queryConfiguration));
-                    try {
-                        final List<EOProduct> eoProducts = f.get();
-                        eoProducts.removeIf(p -> names.contains(p.getName()));
-                        results.addAll(eoProducts);
-                    } catch (ExecutionException ex) {
-                        logger.warning(String.format("Query failed for site %s (reason: %s). It will be retried later.",
-                                site.getShortName(), ex.getMessage()));
-                    }
-                }
-            }
-            downloadService.removeQueryListeners(site.getId());
-            NetUtils.setTimeout(defaultTimeout);
-            filterByTiles(satellite, tiles, results);
-            // For S2, the product extent is not the same as the UTM tile extent, hence the site footprint may not intersect
-            // the data area of the product => we need to discard such products
-            final int initialResultsCount = results.size();
-            validateProducts(site, results);
-            logger.finest(String.format("%s %s products were discarded.",
-                                        results.size() == initialResultsCount ? "No" : initialResultsCount - results.size(),
-                                        satellite.friendlyName()));
-            saveProductCount(site.getId(), satellite, start, end, results.size());
-            logger.info(String.format(MESSAGE, site.getName(), satellite.name(),
-                                      String.format("Found %d products for site %s and satellite %s",
-                                                    results.size(), site.getShortName(), satellite.friendlyName())));
+            // The lookup itself counts as one pending item, so that the job is not considered finished
+            // while results are still being received
+            runningJobs.put(key, 1);
             final String forceStartKey = String.format(ConfigurationKeys.DOWNLOADER_SENSOR_FORCE_START, satellite.friendlyName());
             if (Config.getAsBoolean(site.getId(), forceStartKey, false)) {
                 // one-time forced lookup, therefore remove all products that have a NOK status
@@ -385,69 +357,253 @@ public class LookupJob extends DownloadJob {
             // Check for already downloaded products with status (2, 5, 6, 7).
             // If such products exist for other sites, they will be "duplicated" for the current site
             final boolean skipExisting = Boolean.parseBoolean(Config.getSetting(ConfigurationKeys.SKIP_EXISTING_PRODUCTS, "false"));
-            if (skipExisting && results.size() > 0) {
-                final List<DownloadProduct> withoutOrbitDirection = persistenceManager.getProductsWithoutOrbitDirection(site.getId(), Satellite.Sentinel1.value());
-                if (withoutOrbitDirection != null && withoutOrbitDirection.size() > 0) {
-                    logger.info(String.format("Found %d products in database without orbit direction. Attempting to set it.",
-                                              withoutOrbitDirection.size()));
-                    for (DownloadProduct product : withoutOrbitDirection) {
-                        EOProduct found = results.stream()
-                                .filter(r -> r.getName().equals(product.getProductName().replace(".SAFE", "")))
-                                .findFirst().orElse(null);
-                        if (found != null && found.getAttributeValue("orbitdirection") != null) {
-                            product.setOrbitType(OrbitType.valueOf(found.getAttributeValue("orbitdirection")));
-                            persistenceManager.save(product);
+            final List<DownloadProduct> withoutOrbitDirection = skipExisting ?
+                    persistenceManager.getProductsWithoutOrbitDirection(site.getId(), Satellite.Sentinel1.value()) : null;
+            if (withoutOrbitDirection != null && withoutOrbitDirection.size() > 0) {
+                logger.info(String.format("Found %d products in database without orbit direction. Attempting to set it.",
+                                          withoutOrbitDirection.size()));
+            }
+            // if the satellite is not the primary one, and there is a tile filter defined for the primary one,
+            // filter the results by the intersection of the primary satellite tiles
+            if (satellite != getPrimarySensor()) {
+                footprints.setTileFilter(tiles);
+            }
+            // used to prioritize the downloads of the products acquired during the seasons
+            final List<Season> seasons = persistenceManager.getEnabledSeasons(site.getId());
+            final Set<String> names = ConcurrentHashMap.newKeySet();
+            final AtomicInteger foundCount = new AtomicInteger(0);
+            final AtomicInteger submittedCount = new AtomicInteger(0);
+            // Each page of results goes through filtering, validation and de-duplication and then its products are
+            // submitted for download, without waiting for the other pages or queries.
+            pipeline = new ProductPipeline(site.getShortName() + "-" + satellite.friendlyName(),
+                                           Config.getAsInteger(ConfigurationKeys.DOWNLOADER_LOOKUP_BUFFER, 4), logger)
+                    .stage("filter", page -> {
+                        final int initialResultsCount = page.size();
+                        validateProducts(site, page, footprints);
+                        logger.finest(String.format("%s %s products were discarded.",
+                                                    page.size() == initialResultsCount ? "No" : initialResultsCount - page.size(),
+                                                    satellite.friendlyName()));
+                        return page;
+                    })
+                    .stage("deduplicate", page -> {
+                        page.removeIf(p -> !names.add(p.getName()));
+                        foundCount.addAndGet(page.size());
+                        if (skipExisting) {
+                            excludeExisting(site, page, withoutOrbitDirection);
                         }
-                    }
-                    withoutOrbitDirection.clear();
-                }
-                final List<String> existing = persistenceManager.getOtherSitesProducts(site.getId(),
-                        results.stream()
-                                .map(EOData::getName)
-                                .collect(Collectors.toSet()));
-                if (existing != null && existing.size() > 0) {
-                    logger.info(String.format("The following products have already been downloaded for other sites and will not be re-downloaded: %s",
-                                              String.join(",", existing)));
-                    results.removeIf(r -> existing.contains(r.getName()));
-                    persistenceManager.attachToSite(site, existing);
-                }
+                        return page;
+                    })
+                    .sink("submit", page -> {
+                        submittedCount.addAndGet(page.size());
+                        submitDownloads(site, page, tiles, path, downloadConfiguration, seasons);
+                    });
+            pipeline.start();
+            final ProductPipeline productPipeline = pipeline;
+            // Invoke the downloadService via this method to control the number of connections
+            final ThreadPoolExecutor worker = Config.getWorkerFor(queryConfiguration);
+            // Each request gets its own timeout, bound by the overall time budget of this lookup run
+            final int defaultTimeout = Integer.parseInt(Config.getSetting(ConfigurationKeys.DOWNLOADER_QUERY_TIMEOUT, "90"));
+            // the socket timeout follows the query timeout, which may have changed since the previous lookup
+            Config.updateNetworkTimeout();
+            final int budget = Config.getAsInteger(ConfigurationKeys.DOWNLOADER_LOOKUP_BUDGET, 120);
+            final Deadline deadline = Deadline.of(Duration.ofMinutes(budget), Duration.ofSeconds(defaultTimeout));
+            logger.finest(String.format("Query timeout is set to %d s, lookup time budget is %d minutes", defaultTimeout, budget));
+            //final long timeout = defaultTimeout * polygons;
+            if (polygons > 1) {
+                logger.finest(String.format("The site %s footprint has %d geometries", site.getShortName(), polygons));
             }
-            final int resultsSize = results.size();
-            logger.fine(String.format("Actual products to download for site %s and satellite %s: %d",
-                                      site.getShortName(), satellite.friendlyName(), resultsSize));
-            if (resultsSize > 0) {
-                worker = Config.getWorkerFor(downloadConfiguration);
-                runningJobs.put(key, resultsSize);
-                final FetchMode fetchMode = downloadConfiguration.getFetchMode();
-                for (int i = 0; i < resultsSize; i++) {
-                    final List<EOProduct> subList = results.subList(i, i + 1);
-                    final DownloadTask downloadTask = new DownloadTask(logger, site, satellite, subList,
-                            () -> {
-                                Instant startTime = Instant.now();
-                                downloadService.download(site.getId(), subList, tiles, path, downloadConfiguration);
-                                long seconds = Duration.between(startTime, Instant.now()).getSeconds();
-                                if (fetchMode == FetchMode.SYMLINK && seconds > 10) {
-                                    sendNotification(ProcessingTopic.PROCESSING_ATTENTION.value(),
-                                                     String.format("Lookup site \"%s\"", site.getName()),
-                                                     String.format("Symlink creation took %d seconds", seconds));
-                                }
-                            }, LookupJob.this::downloadCompleted);
-                    if (fetchMode == FetchMode.SYMLINK || fetchMode == FetchMode.CHECK) {
-                        downloadTask.run();
-                    } else {
-                        worker.submit(downloadTask);
-                    }
+            final QueryHandler queryHandler = new QueryHandler(site.getId(), failedQueriesPath);
+            downloadService.addQueryListener(site.getId(), queryHandler);
+            // The queries that failed previously are replayed (with a double timeout) alongside this one, so that they
+            // are queued on the data source worker before the downloads resulting from this lookup.
+            final Deadline retryDeadline = deadline.withRequestTimeout(Duration.ofSeconds(2 * defaultTimeout));
+            final List<Query> queryList = queryHandler.list(satellite);
+            final Future<?> future = worker.submit(() -> {
+                downloadService.query(site.getId(), query, queryConfiguration, deadline, productPipeline::push);
+                return null;
+            });
+            final List<Future<?>> retries = new ArrayList<>();
+            for (Query q : queryList) {
+                retries.add(worker.submit(() -> {
+                    downloadService.query(site.getId(), q, queryConfiguration, retryDeadline, productPipeline::push);
+                    return null;
+                }));
+            }
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                logger.warning(String.format("At least one query failed for site %s (reason: %s). It was saved in '%s' and will be retried later.",
+                                             site.getShortName(), ex.getMessage(), failedQueriesPath));
+            }
+            for (Future<?> f : retries) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    logger.warning(String.format("Query failed for site %s (reason: %s). It will be retried later.",
+                            site.getShortName(), ex.getMessage()));
                 }
             }
+            downloadService.removeQueryListeners(site.getId());
+            if (deadline.isExpired()) {
+                logger.warning(String.format(MESSAGE, site.getName(), satellite.name(),
+                                             "Lookup time budget exceeded, the unfinished queries will be retried later"));
+            }
+            pipeline.complete();
+            saveProductCount(site.getId(), satellite, start, end, foundCount.get());
+            logger.info(String.format(MESSAGE, site.getName(), satellite.name(),
+                                      String.format("Found %d products for site %s and satellite %s",
+                                                    foundCount.get(), site.getShortName(), satellite.friendlyName())));
+            logger.fine(String.format("Actual products to download for site %s and satellite %s: %d",
+                                      site.getShortName(), satellite.friendlyName(), submittedCount.get()));
         } catch (Throwable e) {
+            if (pipeline != null) {
+                pipeline.abort();
+            }
             final String message = ExceptionUtils.getStackTrace(logger, e);
             logger.severe(message);
             sendNotification(ProcessingTopic.PROCESSING_ATTENTION.value(),
                              String.format("Lookup site \"%s\"", site.getName()),
                              message);
+        } finally {
+            updateRunningJobs(key, -1);
         }
     }
 
+    /**
+     * Removes from the given products the ones already downloaded for other sites (and attaches them to this site).
+     * Products without orbit direction in the database get it from the matching query results.
+     */
+    private void excludeExisting(Site site, List<EOProduct> products, List<DownloadProduct> withoutOrbitDirection) {
+        if (withoutOrbitDirection != null && withoutOrbitDirection.size() > 0) {
+            final Iterator<DownloadProduct> iterator = withoutOrbitDirection.iterator();
+            while (iterator.hasNext()) {
+                final DownloadProduct product = iterator.next();
+                EOProduct found = products.stream()
+                        .filter(r -> r.getName().equals(product.getProductName().replace(".SAFE", "")))
+                        .findFirst().orElse(null);
+                if (found != null && found.getAttributeValue("orbitdirection") != null) {
+                    product.setOrbitType(OrbitType.valueOf(found.getAttributeValue("orbitdirection")));
+                    persistenceManager.save(product);
+                    iterator.remove();
+                }
+            }
+        }
+        final List<String> existing = persistenceManager.getOtherSitesProducts(site.getId(),
+                products.stream()
+                        .map(EOData::getName)
+                        .collect(Collectors.toSet()));
+        if (existing != null && existing.size() > 0) {
+            logger.info(String.format("The following products have already been downloaded for other sites and will not be re-downloaded: %s",
+                                      String.join(",", existing)));
+            products.removeIf(r -> existing.contains(r.getName()));
+            persistenceManager.attachToSite(site, existing);
+        }
+    }
+
+    private void submitDownloads(Site site, List<EOProduct> products, Set<String> tiles, String path,
+                                 DataSourceConfiguration downloadConfiguration, List<Season> seasons) {
+        final Satellite satellite = downloadConfiguration.getSatellite();
+        final int sitePriority = Config.getAsInteger(site.getId(), ConfigurationKeys.DOWNLOADER_SITE_PRIORITY, 0);
+        updateRunningJobs(new Tuple<>(site.getName(), satellite.friendlyName()), products.size());
+        final FetchMode fetchMode = downloadConfiguration.getFetchMode();
+        final boolean local = fetchMode == FetchMode.SYMLINK || fetchMode == FetchMode.CHECK;
+        final Map<String, List<DownloadTask>> localGroups = new LinkedHashMap<>();
+        for (int i = 0; i < products.size(); i++) {
+            final List<EOProduct> subList = products.subList(i, i + 1);
+            final DownloadTask downloadTask = new DownloadTask(logger, site, satellite, subList,
+                    () -> {
+                        Instant startTime = Instant.now();
+                        // the budget of a download starts when it is actually executed, not when it is queued
+                        final Deadline downloadDeadline =
+                                Deadline.of(Duration.ofSeconds(Config.getAsInteger(ConfigurationKeys.DOWNLOADER_ACTION_TIMEOUT, 9000)), null);
+                        downloadService.download(site.getId(), subList, tiles, path, downloadConfiguration, downloadDeadline);
+                        long seconds = Duration.between(startTime, Instant.now()).getSeconds();
+                        if (fetchMode == FetchMode.SYMLINK && seconds > 10) {
+                            sendNotification(ProcessingTopic.PROCESSING_ATTENTION.value(),
+                                             String.format("Lookup site \"%s\"", site.getName()),
+                                             String.format("Symlink creation took %d seconds", seconds));
+                        }
+                    }, LookupJob.this::downloadCompleted);
+            if (local) {
+                localGroups.computeIfAbsent(localGroupOf(subList.get(0)), k -> new ArrayList<>()).add(downloadTask);
+            } else {
+                DownloadQueue.submit(downloadConfiguration, site.getId(),
+                                     DownloadQueue.priorityOf(subList.get(0), seasons, 0, sitePriority), downloadTask);
+            }
+        }
+        if (local) {
+            resolveLocally(site, satellite, localGroups);
+        }
+    }
+
+    /**
+     * Executes the tasks of the products found in the local archive (SYMLINK and CHECK fetch modes) and waits for them.
+     * The products of the same tile and acquisition day are resolved in the same folder of the archive, hence they
+     * are processed sequentially (and the folder is listed once), while the groups are processed in parallel.
+     */
+    private void resolveLocally(Site site, Satellite satellite, Map<String, List<DownloadTask>> groups) {
+        if (groups.isEmpty()) {
+            return;
+        }
+        final int parallelism = Math.max(1, Config.getAsInteger(ConfigurationKeys.DOWNLOADER_LOCAL_PARALLELISM, 4));
+        if (parallelism == 1 || groups.size() == 1) {
+            groups.values().forEach(tasks -> tasks.forEach(DownloadTask::run));
+            return;
+        }
+        logger.fine(String.format("Resolving %d groups of local products for site %s and satellite %s using at most %d threads",
+                                  groups.size(), site.getShortName(), satellite.friendlyName(), parallelism));
+        final ExecutorService executor = getLocalResolver(parallelism);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (List<DownloadTask> tasks : groups.values()) {
+            futures.add(executor.submit(() -> tasks.forEach(DownloadTask::run)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.warning(String.format("Cannot resolve local products of site %s and satellite %s [%s]",
+                                                 site.getShortName(), satellite.friendlyName(), e.getMessage()));
+                }
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService getLocalResolver(int parallelism) {
+        synchronized (sharedLock) {
+            if (localResolver == null) {
+                final AtomicInteger counter = new AtomicInteger();
+                localResolver = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                                                       new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "local-resolver-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                localResolver.allowCoreThreadTimeOut(true);
+            } else if (localResolver.getMaximumPoolSize() != parallelism) {
+                // the core size cannot exceed the maximum size, hence the order of operations
+                if (parallelism > localResolver.getMaximumPoolSize()) {
+                    localResolver.setMaximumPoolSize(parallelism);
+                    localResolver.setCorePoolSize(parallelism);
+                } else {
+                    localResolver.setCorePoolSize(parallelism);
+                    localResolver.setMaximumPoolSize(parallelism);
+                }
+            }
+            return localResolver;
+        }
+    }
+
+    private String localGroupOf(EOProduct product) {
+        final String tiles = product.getAttributeValue("tiles");
+        final Date acquisitionDate = product.getAcquisitionDate();
+        return (tiles != null ? tiles : "") + "_" +
+                (acquisitionDate != null ? acquisitionDate.toInstant().truncatedTo(ChronoUnit.DAYS) : product.getName());
+    }
+
     private TileExtent getExtentHelper(Satellite satellite) {
         final TileExtent extentHelper;
         switch (satellite) {
@@ -470,53 +626,6 @@ public class LookupJob extends DownloadJob {
                                                        Config.getSetting("primary.sensor", "S2"));
     }
 
-    private void filterByTiles(final Satellite satellite, final Set<String> tiles, final List<EOProduct> results) {
-        final List<Geometry> tileExtents = getTilesGeometries(tiles, satellite);
-        if (tileExtents.size() > 0) {
-            // if the satellite is not the primary one, and there is a tile filter defined for the primary one,
-            // filter the results by the intersection of the primary satellite tiles
-            final WKTReader reader = new WKTReader();
-            final Iterator<EOProduct> productIterator = results.iterator();
-            while (productIterator.hasNext()) {
-                final EOProduct current = productIterator.next();
-                try {
-                    final Geometry footprint = reader.read(current.getGeometry());
-                    if (tileExtents.stream().noneMatch(e -> computeIntersection(e, footprint) >= 0.05)) {
-                        logger.fine(String.format("Product %s was excluded because it intersects at all or very little the defined %s tiles",
-                                                  current.getName(), getPrimarySensor().name()));
-                        productIterator.remove();
-                    }
-                } catch (Exception e) {
-                    ExceptionUtils.getStackTrace(logger, e);
-                }
-            }
-        }
-    }
-
-    private List<Geometry> getTilesGeometries(Set<String> tiles, Satellite satellite) {
-        final List<Geometry> extents = new ArrayList<>();
-        final TileExtent extentHelper;
-        if (tiles != null && tiles.size() > 0 && satellite != getPrimarySensor()
-            && (extentHelper = getExtentHelper(satellite)) != null) {
-            final WKTReader reader = new WKTReader();
-            Polygon2D envelope;
-            for (String tile : tiles) {
-                envelope = Polygon2D.fromPath2D(extentHelper.getTileExtent(tile));
-                try {
-                    extents.add(reader.read(envelope.toWKT(8)));
-                } catch (ParseException e) {
-                    ExceptionUtils.getStackTrace(logger, e);
-                }
-            }
-        }
-        return extents;
-    }
-
-    private double computeIntersection(final Geometry g1, final Geometry g2) {
-        final Geometry intersection = g1.intersection(g2);
-        return intersection.isEmpty() ? 0.0 : intersection.getArea() / g1.getArea();
-    }
-
     private void saveProductCount(short siteId, Satellite satellite, LocalDateTime start, LocalDateTime end, int count) {
         final ProductCount productCount = new ProductCount();
         productCount.setSiteId(siteId);
@@ -527,62 +636,68 @@ public class LookupJob extends DownloadJob {
         persistenceManager.save(productCount);
     }
 
-    private void validateTiles(Site site, Set<String> tiles, Satellite satellite) {
+    private void validateTiles(Site site, Set<String> tiles, FootprintFilter footprints) {
         if (tiles == null || tiles.size() == 0) {
             return;
         }
-        final TileExtent extentHelper = getExtentHelper(satellite);
-        if (extentHelper != null) {
-            final WKTReader reader = new WKTReader();
-            Geometry siteFootprint;
-            try {
-                siteFootprint = reader.read(site.getExtent());
-            } catch (ParseException e) {
-                logger.severe(String.format("Invalid geometry for site %s [%s]", site.getShortName(), site.getExtent()));
-                return;
-            }
+        if (footprints.hasTileFootprints() && footprints.hasSiteFootprint()) {
             Iterator<String> iterator = tiles.iterator();
             while (iterator.hasNext()) {
                 String tile = iterator.next();
-                Path2D.Double tileExtent = extentHelper.getTileExtent(tile);
-                if (tileExtent == null) {
+                Geometry tileFootprint = footprints.getTileFootprint(tile);
+                if (tileFootprint == null) {
                     logger.warning(String.format("No spatial footprint found for tile '%s'. Tile will be discarded.", tile));
                     iterator.remove();
-                } else {
-                    Polygon2D tilePolygon = Polygon2D.fromPath2D(tileExtent);
-                    if (tilePolygon == null) {
-                        logger.warning(String.format("Invalid spatial footprint found for tile '%s'. Tile will be discarded.", tile));
-                        iterator.remove();
-                    } else {
-                        try {
-                            Geometry tileFootprint = reader.read(tilePolygon.toWKT(8));
-                            if (!siteFootprint.intersects(tileFootprint)) {
-                                logger.warning(String.format("Tile '%s' does not intersect the footprint of site '%s'. Tile will be discarded.",
-                                                             tile, site.getShortName()));
-                                iterator.remove();
-                            }
-                        } catch (ParseException e) {
-                            logger.severe(String.format("Invalid geometry for tile %s [%s]. Tile will be discarded", tile, e.getMessage()));
-                            iterator.remove();
-                        }
-                    }
+                } else if (!footprints.intersectsSite(tileFootprint)) {
+                    logger.warning(String.format("Tile '%s' does not intersect the footprint of site '%s'. Tile will be discarded.",
+                                                 tile, site.getShortName()));
+                    iterator.remove();
                 }
             }
         }
     }
 
-    private void validateProducts(Site site, List<EOProduct> products) {
-        if (products == null || products.size() == 0) {
-            return;
+    /**
+     * Returns the function that gives the footprint of a tile of the given satellite. The footprint is taken from
+     * the tile grid index and, for tiles not found in the index, from the tile extent helper of the satellite.
+     */
+    private Function<String, Geometry> getTileResolver(Satellite satellite) {
+        final TileExtent extentHelper = getExtentHelper(satellite);
+        if (extentHelper == null) {
+            return null;
         }
-        final GeometryAdapter adapter = new GeometryAdapter();
-        Geometry siteFootprint;
-        try {
-            siteFootprint = adapter.marshal(site.getExtent());
-        } catch (Exception e) {
-            logger.severe(String.format("Invalid geometry for site %s [%s]", site.getShortName(), site.getExtent()));
+        final TileGridIndex grid = persistenceManager.getTileGrid(satellite);
+        return tile -> {
+            final Geometry footprint = grid.getGeometry(tile);
+            if (footprint != null) {
+                return footprint;
+            }
+            final Path2D.Double tileExtent = extentHelper.getTileExtent(tile);
+            final Polygon2D tilePolygon = tileExtent != null ? Polygon2D.fromPath2D(tileExtent) : null;
+            if (tilePolygon == null) {
+                return null;
+            }
+            try {
+                return new WKTReader().read(tilePolygon.toWKT(8));
+            } catch (ParseException e) {
+                logger.severe(String.format("Invalid geometry for tile %s [%s]", tile, e.getMessage()));
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Discards the products that do not intersect the site footprint or, if a tile filter is set, that intersect
+     * at all or very little the filter tiles.
+     * For S2, the product extent is not the same as the UTM tile extent, hence the site footprint may not intersect
+     * the data area of the product => we need to discard such products.
+     */
+    private void validateProducts(Site site, List<EOProduct> products, FootprintFilter footprints) {
+        if (products == null || products.size() == 0 ||
+                (!footprints.hasSiteFootprint() && !footprints.hasTileFilter())) {
             return;
         }
+        final WKTReader reader = new WKTReader();
         final Iterator<EOProduct> iterator = products.iterator();
         while (iterator.hasNext()) {
             final EOProduct product = iterator.next();
@@ -591,20 +706,31 @@ public class LookupJob extends DownloadJob {
             if (geometry == null) {
                 logger.warning(String.format("No spatial footprint found for product '%s'. Product will be discarded.", name));
                 iterator.remove();
-            } else {
-                Geometry productFootprint;
-                try {
-                    productFootprint = adapter.marshal(geometry);
-                    if (!siteFootprint.intersects(productFootprint)) {
-                        logger.warning(String.format("Product '%s' does not intersect the footprint of site '%s'. It will be discarded.",
-                                name, site.getShortName()));
-                        iterator.remove();
-                    }
-                } catch (Exception e) {
-                    logger.severe(String.format("Invalid geometry for product %s [%s]. Product will be discarded",
-                            name, e.getMessage()));
+                continue;
+            }
+            final Geometry productFootprint;
+            try {
+                productFootprint = reader.read(geometry);
+            } catch (Exception e) {
+                logger.severe(String.format("Invalid geometry for product %s [%s]. Product will be discarded",
+                                            name, e.getMessage()));
+                iterator.remove();
+                continue;
+            }
+            try {
+                if (!footprints.coversTiles(productFootprint)) {
+                    logger.fine(String.format("Product %s was excluded because it intersects at all or very little the defined %s tiles",
+                                              name, getPrimarySensor().name()));
                     iterator.remove();
+                    continue;
                 }
+            } catch (Exception e) {
+                ExceptionUtils.getStackTrace(logger, e);
+            }
+            if (!footprints.intersectsSite(productFootprint)) {
+                logger.warning(String.format("Product '%s' does not intersect the footprint of site '%s'. It will be discarded.",
+                                             name, site.getShortName()));
+                iterator.remove();
             }
         }
     }
@@ -613,6 +739,18 @@ public class LookupJob extends DownloadJob {
         runningJobs.remove(new Tuple<>(site.getName(), sat.friendlyName()));
     }
 
+    private void updateRunningJobs(Tuple<String, String> jobKey, int delta) {
+        synchronized (sharedLock) {
+            final Integer previousCount = runningJobs.get(jobKey);
+            final int current = (previousCount != null ? previousCount : 0) + delta;
+            if (current > 0) {
+                runningJobs.put(jobKey, current);
+            } else {
+                runningJobs.remove(jobKey);
+            }
+        }
+    }
+
     private void downloadCompleted(Triple<String, String, String> key) {
         synchronized (sharedLock) {
             final String site = key.getKeyOne();
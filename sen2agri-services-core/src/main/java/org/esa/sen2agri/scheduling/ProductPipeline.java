@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.scheduling;
+
+import ro.cs.tao.eodata.EOProduct;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Chain of processing stages for pages of products, connected by bounded buffers.
+ * Each stage runs on its own thread and handles a page as soon as the previous stage has produced it.
+ * When the buffer of a stage is full, the upstream stage (and ultimately the producer) blocks until it is drained.
+ *
+ * @author Cosmin Cara
+ */
+class ProductPipeline {
+    private static final List<EOProduct> END = new ArrayList<>(0);
+    /** Every stage holds a thread for the lifetime of its pipeline, hence the threads are not queued, but capped */
+    private static final int MAX_STAGE_THREADS = 96;
+    private static final ThreadPoolExecutor stageExecutor;
+
+    static {
+        final AtomicInteger counter = new AtomicInteger();
+        stageExecutor = new ThreadPoolExecutor(0, MAX_STAGE_THREADS, 60, TimeUnit.SECONDS,
+                                               new SynchronousQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "pipeline-stage-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final String name;
+    private final int bufferSize;
+    private final Logger logger;
+    private final List<Stage> stages;
+    private final List<Future<?>> running;
+    private volatile boolean closed;
+
+    ProductPipeline(String name, int bufferSize, Logger logger) {
+        this.name = name;
+        this.bufferSize = Math.max(1, bufferSize);
+        this.logger = logger;
+        this.stages = new ArrayList<>();
+        this.running = new ArrayList<>();
+    }
+
+    /**
+     * Appends a stage that transforms (usually filters) a page of products.
+     */
+    ProductPipeline stage(String stageName, UnaryOperator<List<EOProduct>> function) {
+        if (!this.running.isEmpty()) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        final Stage stage = new Stage(stageName, function);
+        if (!this.stages.isEmpty()) {
+            this.stages.get(this.stages.size() - 1).next = stage;
+        }
+        this.stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Appends the terminal stage that consumes the pages of products.
+     */
+    ProductPipeline sink(String stageName, Consumer<List<EOProduct>> consumer) {
+        return stage(stageName, page -> {
+            consumer.accept(page);
+            return null;
+        });
+    }
+
+    void start() {
+        if (this.stages.isEmpty()) {
+            throw new IllegalStateException("Pipeline has no stages");
+        }
+        try {
+            for (Stage stage : this.stages) {
+                this.running.add(stageExecutor.submit(stage));
+            }
+        } catch (RejectedExecutionException e) {
+            // a partially started pipeline would block its producer
+            abort();
+            throw new IllegalStateException(String.format("Pipeline %s cannot be started, %d stage threads are in use",
+                                                          this.name, stageExecutor.getActiveCount()));
+        }
+    }
+
+    /**
+     * Hands over a page of products to the first stage, blocking while its buffer is full.
+     * @return  <code>false</code> if the pipeline was closed or the calling thread was interrupted
+     */
+    boolean push(List<EOProduct> page) {
+        if (this.closed) {
+            return false;
+        }
+        if (page == null || page.isEmpty()) {
+            return true;
+        }
+        try {
+            this.stages.get(0).input.put(new ArrayList<>(page));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Signals the end of input and waits for all the stages to drain their buffers.
+     */
+    void complete() throws InterruptedException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.stages.get(0).input.put(END);
+        for (Future<?> future : this.running) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                logger.severe(String.format("Pipeline %s: stage failed [%s]", this.name, e.getCause().getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Stops all the stages, discarding the buffered pages.
+     */
+    void abort() {
+        this.closed = true;
+        for (Stage stage : this.stages) {
+            stage.input.clear();
+        }
+        this.running.forEach(f -> f.cancel(true));
+    }
+
+    private class Stage implements Runnable {
+        private final String stageName;
+        private final UnaryOperator<List<EOProduct>> function;
+        private final BlockingQueue<List<EOProduct>> input;
+        private Stage next;
+
+        private Stage(String stageName, UnaryOperator<List<EOProduct>> function) {
+            this.stageName = stageName;
+            this.function = function;
+            this.input = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<EOProduct> page;
+                while ((page = this.input.take()) != END) {
+                    List<EOProduct> output = null;
+                    try {
+                        output = this.function.apply(page);
+                    } catch (RuntimeException e) {
+                        logger.warning(String.format("Pipeline %s: stage '%s' failed for a page of %d products [%s]",
+                                                     name, this.stageName, page.size(), e.getMessage()));
+                    }
+                    if (this.next != null && output != null && !output.isEmpty()) {
+                        this.next.input.put(output);
+                    }
+                }
+                if (this.next != null) {
+                    this.next.input.put(END);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -16,10 +16,12 @@
 package org.esa.sen2agri.scheduling;
 
 import org.esa.sen2agri.commons.Config;
+import org.esa.sen2agri.commons.DownloadQueue;
 import org.esa.sen2agri.commons.ProcessingTopic;
 import org.esa.sen2agri.db.ConfigurationKeys;
 import org.esa.sen2agri.entities.DataSourceConfiguration;
 import org.esa.sen2agri.entities.DownloadProduct;
+import org.esa.sen2agri.entities.Season;
 import org.esa.sen2agri.entities.Site;
 import org.esa.sen2agri.entities.converters.ProductConverter;
 import org.esa.sen2agri.entities.enums.Satellite;
@@ -44,7 +46,6 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * @author Cosmin Cara
@@ -154,8 +155,10 @@ public class RetryJob extends DownloadJob {
                     this.persistenceManager.save(p);
                 });
                 final List<EOProduct> newProductList = new ArrayList<>();
+                final Map<String, Integer> retries = new HashMap<>();
                 for (DownloadProduct dbProduct : productsToRetry) {
                     final EOProduct product = converter.convertToEntityAttribute(dbProduct);
+                    retries.put(product.getName(), (int) dbProduct.getNbRetries());
                     if (canFilterByProduct) {
                         try {
                             final Query query = new Query();
@@ -182,12 +185,15 @@ public class RetryJob extends DownloadJob {
                         newProductList.add(product);
                     }
                 }
-                final ThreadPoolExecutor worker = Config.getWorkerFor(downloadCfg);
+                final List<Season> seasons = persistenceManager.getEnabledSeasons(site.getId());
+                final int sitePriority = Config.getAsInteger(site.getId(), ConfigurationKeys.DOWNLOADER_SITE_PRIORITY, 0);
                 final int resultsSize = newProductList.size();
                 runningJobs.put(key, resultsSize);
                 for (int i = 0; i < resultsSize; i++) {
                     final List<EOProduct> subList = newProductList.subList(i, i + 1);
-                    worker.submit(
+                    DownloadQueue.submit(downloadCfg, site.getId(),
+                                         DownloadQueue.priorityOf(subList.get(0), seasons,
+                                                                  retries.getOrDefault(subList.get(0).getName(), 0), sitePriority),
                             new DownloadTask(logger, site, downloadCfg.getSatellite(), subList,
                                              () -> {
                                                  Instant startTime = Instant.now();
@@ -236,8 +242,10 @@ public class RetryJob extends DownloadJob {
                         this.persistenceManager.save(p);
                     });
                     final List<EOProduct> newProductList = new ArrayList<>();
+                    final Map<String, Integer> retries = new HashMap<>();
                     for (DownloadProduct dbProduct : lastChanceProducts) {
                         final EOProduct product = converter.convertToEntityAttribute(dbProduct);
+                        retries.put(product.getName(), (int) dbProduct.getNbRetries());
                         if (canFilterByProduct) {
                             try {
                                 final Query query = new Query();
@@ -262,7 +270,8 @@ public class RetryJob extends DownloadJob {
                             newProductList.add(product);
                         }
                     }
-                    final ThreadPoolExecutor worker = Config.getWorkerFor(downloadCfg);
+                    final List<Season> seasons = persistenceManager.getEnabledSeasons(site.getId());
+                    final int sitePriority = Config.getAsInteger(site.getId(), ConfigurationKeys.DOWNLOADER_SITE_PRIORITY, 0);
                     final int resultsSize = newProductList.size();
                     synchronized (sharedLock) {
                         final Tuple<String, String> key = new Tuple<>(site.getName(), downloadCfg.getSatellite().friendlyName());
@@ -270,7 +279,9 @@ public class RetryJob extends DownloadJob {
                     }
                     for (int i = 0; i < resultsSize; i++) {
                         final List<EOProduct> subList = newProductList.subList(i, i + 1);
-                        worker.submit(
+                        DownloadQueue.submit(downloadCfg, site.getId(),
+                                             DownloadQueue.priorityOf(subList.get(0), seasons,
+                                                                      retries.getOrDefault(subList.get(0).getName(), 0), sitePriority),
                                 new DownloadTask(logger, site, downloadCfg.getSatellite(), subList,
                                                  () -> {
                                                      Instant startTime = Instant.now();
@@ -15,7 +15,10 @@
  */
 package org.esa.sen2agri.services;
 
+import org.esa.sen2agri.commons.Deadline;
 import org.esa.sen2agri.commons.DownloadProgress;
+import org.esa.sen2agri.commons.DownloadQueue;
+import org.esa.sen2agri.commons.ProgressEvent;
 import org.esa.sen2agri.entities.DataSourceConfiguration;
 import org.esa.sen2agri.web.beans.Query;
 import ro.cs.tao.datasource.ProductStatusListener;
@@ -24,6 +27,7 @@ import ro.cs.tao.eodata.EOProduct;
 import java.text.ParseException;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Interface defining methods to control the downloader service.
@@ -52,6 +56,21 @@ public interface DownloadService {
      */
     List<EOProduct> query(short siteId, Query queryObject, DataSourceConfiguration configuration) throws ParseException;
 
+    /**
+     * Performs a query, based on the given configuration, for the given site, handing over each page of results
+     * to the given consumer as soon as it is retrieved.
+     * The consumer may block (for example, when its buffer is full), in which case the query is paused.
+     * Each remote request is bound by the given deadline; the requests not completed in time are cancelled.
+     * @param siteId        The site identifier
+     * @param queryObject   The query parameters
+     * @param configuration The data source configuration
+     * @param deadline      The time budget of the query and the maximum duration of each request
+     * @param pageConsumer  The consumer of result pages
+     * @throws ParseException   If the query parameters are not of the expected type
+     */
+    void query(short siteId, Query queryObject, DataSourceConfiguration configuration,
+               Deadline deadline, Consumer<List<EOProduct>> pageConsumer) throws ParseException;
+
     /**
      * Retrieves the given list of products to a specific path, based on the given configuration.
      * @param siteId        The site identifier
@@ -62,12 +81,46 @@ public interface DownloadService {
      */
     List<EOProduct> download(short siteId, List<EOProduct> products, Set<String> tiles, String targetPath,
                              DataSourceConfiguration configuration);
+
+    /**
+     * Retrieves the given list of products to a specific path, based on the given configuration.
+     * If the download is not completed before the deadline, it is cancelled.
+     * @param siteId        The site identifier
+     * @param products      The list of products to be retrieved
+     * @param targetPath    The destination path (where the products will be downloaded)
+     * @param configuration The data source configuration
+     * @param deadline      The time budget of the download
+     * @return      The list of products, updated with the new location information, if the download was successful.
+     */
+    List<EOProduct> download(short siteId, List<EOProduct> products, Set<String> tiles, String targetPath,
+                             DataSourceConfiguration configuration, Deadline deadline);
     /**
      * Returns information about the downloads in progress for a specific site.
      * If the <code>siteId</code> parameter value is 0, it returns information about all the downloads in progress.
      * @param siteId    The site identifier
      */
     List<DownloadProgress> getDownloadsInProgress(short siteId);
+    /**
+     * Returns the download events of a specific site produced after the given event.
+     * If the given event is no longer available (or if <code>after</code> is negative), one start event is returned
+     * for each download in progress.
+     * If the <code>siteId</code> parameter value is 0, it returns the events of all the sites.
+     * @param siteId    The site identifier
+     * @param after     The sequence number of the last event received by the caller
+     */
+    List<ProgressEvent> getProgressEvents(short siteId, long after);
+    /**
+     * Adds a listener that periodically receives the new download events.
+     */
+    void addProgressListener(Consumer<List<ProgressEvent>> listener);
+
+    void removeProgressListener(Consumer<List<ProgressEvent>> listener);
+    /**
+     * Returns, for each data source, the number of downloads queued and running for the given site.
+     * If the <code>siteId</code> parameter value is 0, it returns information about all the sites.
+     * @param siteId    The site identifier
+     */
+    List<DownloadQueue.SiteState> getDownloadQueueState(short siteId);
     /**
      * Stops the downloads and marks the downloader disabled for the specific site.
      * If the <code>siteId</code> parameter value is 0, it stops all the downloads and marks the downloader as
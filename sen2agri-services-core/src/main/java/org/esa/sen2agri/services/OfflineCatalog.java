@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.services;
+
+import org.esa.sen2agri.entities.DataSourceConfiguration;
+import org.esa.sen2agri.web.beans.Query;
+import ro.cs.tao.eodata.EOProduct;
+
+import java.util.List;
+
+/**
+ * A catalog answering the queries of a data source from a locally mounted archive, instead of the remote catalog of
+ * the data source. The implementations are discovered by {@link java.util.ServiceLoader}.
+ *
+ * @author Cosmin Cara
+ */
+public interface OfflineCatalog {
+    /**
+     * Checks if this catalog can answer the queries of the given data source configuration.
+     */
+    boolean supports(DataSourceConfiguration configuration);
+    /**
+     * Returns the products of the local archive matching the given query, or <code>null</code> if the catalog cannot
+     * answer it (for instance, if the archive is not indexed yet), in which case the remote catalog is queried.
+     *
+     * @param query         The query (with the same parameters as for the remote catalog)
+     * @param configuration The data source configuration
+     */
+    List<EOProduct> query(Query query, DataSourceConfiguration configuration);
+}
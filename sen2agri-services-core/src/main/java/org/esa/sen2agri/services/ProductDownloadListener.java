@@ -18,9 +18,11 @@ package org.esa.sen2agri.services;
 import org.esa.sen2agri.commons.CheckSumManager;
 import org.esa.sen2agri.commons.Config;
 import org.esa.sen2agri.commons.Constants;
+import org.esa.sen2agri.db.ConfigurationKeys;
 import org.esa.sen2agri.db.PersistenceManager;
 import org.esa.sen2agri.entities.DownloadProduct;
 import org.esa.sen2agri.entities.HighLevelProduct;
+import org.esa.sen2agri.entities.Site;
 import org.esa.sen2agri.entities.converters.ProductConverter;
 import org.esa.sen2agri.entities.enums.*;
 import ro.cs.tao.datasource.ProductStatusListener;
@@ -32,20 +34,30 @@ import ro.cs.tao.products.sentinels.Sentinel1MetadataInspector;
 import ro.cs.tao.serialization.GeometryAdapter;
 import ro.cs.tao.utils.ExceptionUtils;
 
-import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
  * @author Cosmin Cara
  */
 public class ProductDownloadListener implements ProductStatusListener {
+    private static final String PENDING_VERIFICATION = "Pending duplicate verification";
+    private static final int MAX_PENDING_VERIFICATIONS = 100;
+    // shared by all the listeners, since the verification reads the product from disk
+    private static ExecutorService verificationExecutor;
 
     private PersistenceManager persistenceManager;
     private boolean checkMd5;
@@ -105,6 +117,61 @@ public class ProductDownloadListener implements ProductStatusListener {
 
     @Override
     public void downloadCompleted(EOProduct product) {
+        // the verification is submitted outside the lock, since a saturated executor runs it on this thread
+        final String pendingPath = markCompleted(product);
+        if (pendingPath != null) {
+            getVerificationExecutor().execute(() -> verifyDuplicate(product, pendingPath));
+        }
+    }
+
+    /**
+     * Re-submits the duplicate verification of the Sentinel-1 products left pending by a previous run
+     * (for example, if the services were stopped before the verification completed), provided that their files
+     * are still on disk. Otherwise the products would be downloaded again.
+     * The database is queried on the verification executor, so that the caller is not delayed.
+     */
+    public void resumePendingVerifications() {
+        if (!this.checkMd5) {
+            return;
+        }
+        getVerificationExecutor().execute(() -> {
+            int resumed = 0;
+            try {
+                for (Site site : persistenceManager.getAllSites()) {
+                    final List<DownloadProduct> pending = persistenceManager.getProducts(site.getId(),
+                                                                                         Satellite.Sentinel1.value(),
+                                                                                         Status.DOWNLOADING,
+                                                                                         PENDING_VERIFICATION);
+                    for (DownloadProduct dbProduct : pending) {
+                        final String path = dbProduct.getFullPath();
+                        if (path == null || !Files.exists(Paths.get(path))) {
+                            logger.warning(String.format("Product %s is pending verification, but it was not found at %s",
+                                                         dbProduct.getProductName(), path));
+                            continue;
+                        }
+                        final EOProduct product = new EOProduct();
+                        product.setName(dbProduct.getProductName().replace(".SAFE", ""));
+                        product.setProductType(Satellite.Sentinel1.name());
+                        product.addAttribute("site", String.valueOf(site.getId()));
+                        getVerificationExecutor().execute(() -> verifyDuplicate(product, path));
+                        resumed++;
+                    }
+                }
+            } catch (Exception ex) {
+                logger.warning(String.format("Cannot resume the pending duplicate verifications: %s",
+                                             ExceptionUtils.getStackTrace(logger, ex)));
+            }
+            if (resumed > 0) {
+                logger.info(String.format("Resumed the duplicate verification of %d products", resumed));
+            }
+        });
+    }
+
+    /**
+     * Marks the product as downloaded and returns the path of the product if its duplicate verification is pending,
+     * or <code>null</code> otherwise.
+     */
+    private String markCompleted(EOProduct product) {
         synchronized (this.lock) {
             try {
                 DownloadProduct dbProduct = getDbProduct(product);
@@ -118,7 +185,7 @@ public class ProductDownloadListener implements ProductStatusListener {
                         dbProduct.setTiles(tiles.split(","));
                     }
                     dbProduct.setStatusId(Status.DOWNLOADED);
-                    boolean duplicate = false;
+                    boolean verify = false;
                     try {
                         final String path = product.getLocation();
                         Path productPath;
@@ -127,32 +194,7 @@ public class ProductDownloadListener implements ProductStatusListener {
                             productPath = Paths.get(new URI(path)).resolve(dbProduct.getProductName());
                         } else {
                             // hack for Sentinel-1 to exclude products with the same MD5 sums for the rasters
-                            if (this.checkMd5 && Satellite.Sentinel1.name().equals(product.getProductType())) {
-                                MetadataInspector inspector = new Sentinel1MetadataInspector();
-                                try {
-                                    MetadataInspector.Metadata metadata = inspector.getMetadata(Paths.get(path));
-                                    Set<String> md5 = metadata.getControlSums();
-                                    Set<String> existingProducts = new HashSet<>();
-                                    if (md5.size() > 0) {
-                                        final CheckSumManager verifier = CheckSumManager.getInstance();
-                                        md5.forEach(m -> {
-                                            if (verifier.containsChecksum(m)) {
-                                                existingProducts.addAll(verifier.getProducts(m));
-                                            }
-                                            verifier.put(m, product.getName());
-                                        });
-                                        duplicate = existingProducts.size() >= 1;
-                                        if (duplicate) {
-                                            logger.warning(String.format("Product %s has equal rasters with products %s",
-                                                    product.getName(), String.join(",", existingProducts)));
-                                        }
-                                        verifier.flush();
-                                    }
-                                } catch (IOException e) {
-                                    logger.severe(String.format("Cannot open product %s metadata. Reason: %s",
-                                            product.getName(), ExceptionUtils.getStackTrace(logger, e)));
-                                }
-                            }
+                            verify = this.checkMd5 && Satellite.Sentinel1.name().equals(product.getProductType());
                             productPath = Paths.get(new URI(path));
                         }
                         dbProduct.setFullPath(productPath.toString());
@@ -163,9 +205,15 @@ public class ProductDownloadListener implements ProductStatusListener {
                     }
                     dbProduct.setTimestamp(LocalDateTime.now());
                     dbProduct.setStatusReason(null);
-                    if (!duplicate) {
+                    if (verify) {
+                        // the product is not available until its rasters are verified
+                        dbProduct.setStatusId(Status.DOWNLOADING);
+                        dbProduct.setStatusReason(PENDING_VERIFICATION);
                         persistenceManager.save(dbProduct);
+                        logger.info(String.format("Download completed [%s], pending duplicate verification", product.getName()));
+                        return product.getLocation();
                     }
+                    persistenceManager.save(dbProduct);
                     logger.info(String.format("Download completed [%s]", product.getName()));
                     // For Sentinel-2 L2A products, we need to "transfer" them into db product table
                     if (Constants.S2L2A_PRODUCT_TYPE.equals(product.getAttributeValue(CommonParameterNames.PRODUCT_TYPE))) {
@@ -214,6 +262,81 @@ public class ProductDownloadListener implements ProductStatusListener {
             } catch (Exception ex) {
                 logger.warning(String.format("Exception in downloadCompleted: %s", ExceptionUtils.getStackTrace(logger, ex)));
             }
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the rasters of a downloaded Sentinel-1 product are equal (by their MD5 checksums) to the rasters of
+     * an already downloaded product, then marks the product as downloaded or, if duplicate, as ignored.
+     * It runs outside the listener lock, so that the other download events are not blocked while the product
+     * metadata is read.
+     */
+    private void verifyDuplicate(EOProduct product, String path) {
+        Set<String> existingProducts = Collections.emptySet();
+        try {
+            MetadataInspector inspector = new Sentinel1MetadataInspector();
+            MetadataInspector.Metadata metadata = inspector.getMetadata(Paths.get(path));
+            Set<String> md5 = metadata.getControlSums();
+            if (md5 != null && md5.size() > 0) {
+                final CheckSumManager verifier = CheckSumManager.getInstance();
+                existingProducts = verifier.register(product.getName(), md5);
+                // a product verified before a restart is not a duplicate of itself
+                existingProducts.remove(product.getName());
+                if (existingProducts.size() >= 1) {
+                    logger.warning(String.format("Product %s has equal rasters with products %s",
+                            product.getName(), String.join(",", existingProducts)));
+                }
+                verifier.flush();
+            }
+        } catch (Exception e) {
+            logger.severe(String.format("Cannot open product %s metadata. Reason: %s",
+                    product.getName(), ExceptionUtils.getStackTrace(logger, e)));
+        }
+        synchronized (this.lock) {
+            try {
+                DownloadProduct dbProduct = getDbProduct(product);
+                if (dbProduct == null) {
+                    logger.warning(String.format("Product %s was verified, but it was not found in the database",
+                            product.getName()));
+                    return;
+                }
+                if (existingProducts.isEmpty()) {
+                    dbProduct.setStatusId(Status.DOWNLOADED);
+                    dbProduct.setStatusReason(null);
+                } else {
+                    dbProduct.setStatusId(Status.IGNORED);
+                    dbProduct.setStatusReason(String.format("Duplicate of %s", String.join(",", existingProducts)));
+                }
+                dbProduct.setTimestamp(LocalDateTime.now());
+                persistenceManager.save(dbProduct);
+                logger.info(String.format("Duplicate verification completed [%s]: %s", product.getName(),
+                        existingProducts.isEmpty() ? "downloaded" : "duplicate"));
+            } catch (Exception ex) {
+                logger.warning(String.format("Exception in verifyDuplicate: %s", ExceptionUtils.getStackTrace(logger, ex)));
+            }
+        }
+    }
+
+    private static ExecutorService getVerificationExecutor() {
+        synchronized (ProductDownloadListener.class) {
+            if (verificationExecutor == null) {
+                final int threads = Math.max(1, Config.getAsInteger(ConfigurationKeys.DOWNLOADER_VERIFICATION_PARALLELISM, 2));
+                final AtomicInteger counter = new AtomicInteger();
+                // when the queue is full, the verification runs on the submitting thread, which slows down the producer
+                final ThreadPoolExecutor executor =
+                        new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<>(MAX_PENDING_VERIFICATIONS),
+                                               runnable -> {
+                                                   final Thread thread = new Thread(runnable, "duplicate-verification-" + counter.incrementAndGet());
+                                                   thread.setDaemon(true);
+                                                   return thread;
+                                               },
+                                               new ThreadPoolExecutor.CallerRunsPolicy());
+                executor.allowCoreThreadTimeOut(true);
+                verificationExecutor = executor;
+            }
+            return verificationExecutor;
         }
     }
 
@@ -18,6 +18,7 @@ package org.esa.sen2agri.services;
 import org.esa.sen2agri.commons.Commands;
 import org.esa.sen2agri.commons.Config;
 import org.esa.sen2agri.commons.ProcessingTopic;
+import org.esa.sen2agri.commons.SiteGeometry;
 import org.esa.sen2agri.db.ConfigurationKeys;
 import org.esa.sen2agri.db.PersistenceManager;
 import org.esa.sen2agri.entities.DataSourceConfiguration;
@@ -30,7 +31,6 @@ import org.quartz.*;
 import org.quartz.impl.StdSchedulerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import ro.cs.tao.eodata.Polygon2D;
 import ro.cs.tao.messaging.Message;
 import ro.cs.tao.messaging.Notifiable;
 import ro.cs.tao.spi.ServiceRegistryManager;
@@ -66,7 +66,9 @@ public class ScheduleManager  extends Notifiable {
         logger = Logger.getLogger(ScheduleManager.class.getName());
         Config.setPersistenceManager(persistenceManager);
         Config.setDownloadService(service);
-        service.setProductStatusListener(new ProductDownloadListener(persistenceManager));
+        final ProductDownloadListener productListener = new ProductDownloadListener(persistenceManager);
+        service.setProductStatusListener(productListener);
+        productListener.resumePendingVerifications();
         scheduler = StdSchedulerFactory.getDefaultScheduler();
         scheduler.getListenerManager().addTriggerListener(new TriggerListener() {
             private final Map<JobKey, Date> lastFireTimes = new HashMap<>();
@@ -178,7 +180,9 @@ public class ScheduleManager  extends Notifiable {
 
     private List<Site> getEnabledSites() {
         final List<Site> enabledSites = persistenceManager.getEnabledSites();
-        enabledSites.removeIf(s -> s.getExtent() == null || Polygon2D.fromWKT(s.getExtent()).getNumPoints() == 0);
+        enabledSites.removeIf(s -> !SiteGeometry.of(s).isValid());
+        // drop the parsed extents of the sites that are no longer enabled
+        SiteGeometry.retain(enabledSites);
         short forcedSiteId = Short.parseShort(Config.getProperty(getClass().getSimpleName() + ".forced.site", "0"));
         if (forcedSiteId != 0) {
             logger.config(String.format("This instance of services is forced to process only the site with id '%d'",
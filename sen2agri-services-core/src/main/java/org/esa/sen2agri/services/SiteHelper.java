@@ -18,6 +18,7 @@ package org.esa.sen2agri.services;
 
 import org.esa.sen2agri.commons.Config;
 import org.esa.sen2agri.commons.Constants;
+import org.esa.sen2agri.commons.SiteGeometry;
 import org.esa.sen2agri.db.ConfigurationKeys;
 import org.esa.sen2agri.db.PersistenceManager;
 import org.esa.sen2agri.entities.DataSourceConfiguration;
@@ -91,7 +92,12 @@ public class SiteHelper {
                            start.format(DateTimeFormatter.ofPattern(Constants.FULL_DATE_FORMAT)),
                            end.format(DateTimeFormatter.ofPattern(Constants.FULL_DATE_FORMAT)) });
         //params.put(ParameterHelper.getFootprintParamName(satellite), Polygon2D.fromWKT(site.getExtent()));
-        params.put(CommonParameterNames.FOOTPRINT, Polygon2D.fromWKT(site.getExtent()));
+        final Polygon2D footprint = SiteGeometry.of(site).getQueryFootprint();
+        if (footprint == null) {
+            throw new IllegalArgumentException(String.format("Invalid extent for site %s [%s]",
+                                                             site.getShortName(), site.getExtent()));
+        }
+        params.put(CommonParameterNames.FOOTPRINT, footprint);
         //String tileParamName = ParameterHelper.getTileParamName(satellite);
         if (tiles != null && tiles.size() > 0) {
             String tileList;
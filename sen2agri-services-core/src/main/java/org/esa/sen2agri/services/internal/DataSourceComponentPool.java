@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.services.internal;
+
+import org.esa.sen2agri.entities.enums.Satellite;
+import ro.cs.tao.datasource.DataSourceComponent;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Pool of data source components, keyed by site, satellite, data source and user.
+ * A component is leased for the duration of an operation (query or download) and then returned to the pool, so that
+ * it (and its authenticated session) can be reused by the next operation with the same key.
+ * At most <code>capacity</code> components are kept per key. If more are concurrently needed, the extra ones
+ * are discarded when released.
+ *
+ * @author Cosmin Cara
+ */
+class DataSourceComponentPool {
+    private final ConcurrentHashMap<Key, Slot> slots;
+    private final ConcurrentHashMap<Short, Set<Key>> siteIndex;
+    private final ConcurrentHashMap<DataSourceComponent, Key> owners;
+
+    DataSourceComponentPool() {
+        this.slots = new ConcurrentHashMap<>();
+        this.siteIndex = new ConcurrentHashMap<>();
+        this.owners = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Leases a component for the given key, creating it if no idle one exists.
+     * The component must be given back by {@link #release(DataSourceComponent)}.
+     * @param key       The pool key
+     * @param capacity  The maximum number of components kept for the key
+     * @param factory   Creates a new component
+     */
+    DataSourceComponent lease(Key key, int capacity, Supplier<DataSourceComponent> factory) {
+        final Slot slot = this.slots.computeIfAbsent(key, k -> {
+            this.siteIndex.computeIfAbsent(k.siteId, s -> ConcurrentHashMap.newKeySet()).add(k);
+            return new Slot();
+        });
+        slot.capacity = Math.max(1, capacity);
+        DataSourceComponent component = slot.idle.pollFirst();
+        if (component == null) {
+            component = factory.get();
+        }
+        slot.leased.add(component);
+        this.owners.put(component, key);
+        return component;
+    }
+
+    /**
+     * Gives back a leased component. The component is reset (in case it was cancelled while leased) and kept for reuse,
+     * unless the key already has enough idle components.
+     */
+    void release(DataSourceComponent component) {
+        final Key key = component != null ? this.owners.get(component) : null;
+        final Slot slot = key != null ? this.slots.get(key) : null;
+        if (slot == null || !slot.leased.remove(component)) {
+            return;
+        }
+        component.resume();
+        if (slot.leased.size() + slot.idle.size() < slot.capacity) {
+            slot.idle.offerFirst(component);
+        } else {
+            this.owners.remove(component);
+        }
+    }
+
+    /**
+     * Applies the given action to the leased components of a site (all sites if <code>siteId</code> is 0),
+     * optionally restricted to a satellite.
+     */
+    void forEachLeased(short siteId, Satellite satellite, Consumer<DataSourceComponent> action) {
+        forEachSlot(siteId, satellite, (key, slot) -> slot.leased.forEach(action));
+    }
+
+    /**
+     * Applies the given action to all the components (leased or idle) of a site (all sites if <code>siteId</code> is 0),
+     * optionally restricted to a satellite.
+     */
+    void forEach(short siteId, Satellite satellite, Consumer<DataSourceComponent> action) {
+        forEachSlot(siteId, satellite, (key, slot) -> {
+            slot.leased.forEach(action);
+            slot.idle.forEach(action);
+        });
+    }
+
+    private void forEachSlot(short siteId, Satellite satellite, BiConsumer<Key, Slot> action) {
+        final Set<Key> keys = siteId > 0 ? this.siteIndex.getOrDefault(siteId, Collections.emptySet()) : this.slots.keySet();
+        for (Key key : keys) {
+            if (satellite == null || satellite == key.satellite) {
+                final Slot slot = this.slots.get(key);
+                if (slot != null) {
+                    action.accept(key, slot);
+                }
+            }
+        }
+    }
+
+    private static class Slot {
+        private final ConcurrentLinkedDeque<DataSourceComponent> idle = new ConcurrentLinkedDeque<>();
+        private final Set<DataSourceComponent> leased = ConcurrentHashMap.newKeySet();
+        private volatile int capacity = 1;
+    }
+
+    static final class Key {
+        private final short siteId;
+        private final Satellite satellite;
+        private final String dataSourceName;
+        private final String user;
+
+        Key(short siteId, Satellite satellite, String dataSourceName, String user) {
+            this.siteId = siteId;
+            this.satellite = satellite;
+            this.dataSourceName = dataSourceName;
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return siteId == key.siteId && satellite == key.satellite &&
+                    Objects.equals(dataSourceName, key.dataSourceName) && Objects.equals(user, key.user);
+        }
+
+        @Override
+        public int hashCode() { return Objects.hash(siteId, satellite, dataSourceName, user); }
+    }
+}
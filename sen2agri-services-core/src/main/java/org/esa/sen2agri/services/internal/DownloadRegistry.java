@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.services.internal;
+
+import org.esa.sen2agri.commons.DownloadProgress;
+import org.esa.sen2agri.commons.ProgressEvent;
+import org.esa.sen2agri.entities.enums.Satellite;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the active downloads, indexed by product name.
+ * The products are registered (with their site and satellite) when their download is submitted, and become visible
+ * as in progress when the data source signals the start of their download.
+ * The progress updates are only recorded (the latest value of a product replacing the previous ones) and are applied
+ * by {@link #publish(double)}, which is invoked periodically and which also rebuilds the snapshot (grouped by site)
+ * returned to the readers. Therefore, neither the progress updates nor the reads need locking.
+ * Each publication also produces the events (start, progress, end) since the previous one. The last
+ * {@link #MAX_EVENTS} events are kept, so that a client can resume from the last event it received.
+ *
+ * @author Cosmin Cara
+ */
+class DownloadRegistry {
+    private static final int MAX_EVENTS = 1024;
+    private static final Logger logger = Logger.getLogger(DownloadRegistry.class.getName());
+    private final ConcurrentHashMap<String, Entry> byName;
+    private final ConcurrentHashMap<String, Double> pendingProgress;
+    private final ConcurrentLinkedQueue<Entry> ended;
+    private final ArrayDeque<ProgressEvent> events;
+    private final List<Consumer<List<ProgressEvent>>> listeners;
+    private volatile Map<Short, List<DownloadProgress>> snapshot;
+    private volatile boolean changed;
+    private long sequence;
+
+    DownloadRegistry() {
+        this.byName = new ConcurrentHashMap<>();
+        this.pendingProgress = new ConcurrentHashMap<>();
+        this.ended = new ConcurrentLinkedQueue<>();
+        this.events = new ArrayDeque<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.snapshot = Collections.emptyMap();
+    }
+
+    /**
+     * Registers a product whose download was submitted.
+     */
+    void register(String productName, short siteId, String siteName, Satellite satellite) {
+        this.byName.put(productName, new Entry(productName, siteId, siteName, satellite));
+        this.changed = true;
+    }
+
+    /**
+     * Marks the start of the download of a product. If the product was not registered (i.e. it is not downloaded
+     * by this service), it is tracked without site and satellite.
+     */
+    void started(String productName) {
+        final Entry entry = this.byName.computeIfAbsent(productName, name -> new Entry(name, (short) 0, null, null));
+        this.pendingProgress.remove(productName);
+        entry.progress = 0;
+        entry.started = true;
+        this.changed = true;
+    }
+
+    /**
+     * Records the progress of a product. The progress is applied at the next publication.
+     */
+    void update(String productName, double progress) {
+        this.pendingProgress.put(productName, progress);
+    }
+
+    /**
+     * Marks the end of the transfer of a product. A registered product is kept until its download is finalized
+     * (see {@link #remove(String, boolean)}), while a product that was not registered is removed.
+     */
+    void finished(String productName) {
+        final Entry entry = this.byName.get(productName);
+        if (entry == null || entry.siteId == 0) {
+            remove(productName, false);
+        } else {
+            entry.finished = true;
+            this.changed = true;
+        }
+    }
+
+    void remove(String productName, boolean failed) {
+        final Entry entry = this.byName.remove(productName);
+        if (entry != null) {
+            entry.failed = failed;
+            this.ended.offer(entry);
+            this.changed = true;
+        }
+        this.pendingProgress.remove(productName);
+    }
+
+    void clear() {
+        for (String productName : new ArrayList<>(this.byName.keySet())) {
+            remove(productName, true);
+        }
+    }
+
+    /**
+     * Returns the downloads in progress of a site (of all sites if <code>siteId</code> is 0), as of the last publication.
+     */
+    List<DownloadProgress> getInProgress(short siteId) {
+        final Map<Short, List<DownloadProgress>> current = this.snapshot;
+        if (siteId > 0) {
+            return new ArrayList<>(current.getOrDefault(siteId, Collections.emptyList()));
+        }
+        final List<DownloadProgress> all = new ArrayList<>();
+        current.values().forEach(all::addAll);
+        return all;
+    }
+
+    /**
+     * Returns the events of a site (of all sites if <code>siteId</code> is 0) produced after the given one.
+     * If the given event is no longer kept (or if <code>after</code> is negative), the current state is returned instead,
+     * as one {@link ProgressEvent.Type#STARTED} event for each download in progress.
+     */
+    synchronized List<ProgressEvent> getEvents(short siteId, long after) {
+        final List<ProgressEvent> results = new ArrayList<>();
+        final ProgressEvent oldest = this.events.peekFirst();
+        if (after >= 0 && after <= this.sequence && (oldest == null || oldest.getSequence() <= after + 1)) {
+            for (ProgressEvent event : this.events) {
+                if (event.getSequence() > after && (siteId <= 0 || event.getSiteId() == siteId)) {
+                    results.add(event);
+                }
+            }
+        } else {
+            for (Entry entry : this.byName.values()) {
+                if (entry.announced && !entry.finished && (siteId <= 0 || entry.siteId == siteId)) {
+                    results.add(entry.event(this.sequence, ProgressEvent.Type.STARTED));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Adds a listener that receives the events produced at each publication.
+     */
+    void addListener(Consumer<List<ProgressEvent>> listener) {
+        this.listeners.add(listener);
+    }
+
+    void removeListener(Consumer<List<ProgressEvent>> listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Applies the progress updates recorded since the previous call and, if anything changed, publishes a new snapshot
+     * and the corresponding events.
+     * @param threshold The minimum change of the progress of a download for which an event is produced
+     */
+    void publish(double threshold) {
+        int updates = 0;
+        for (String productName : this.pendingProgress.keySet()) {
+            final Double progress = this.pendingProgress.remove(productName);
+            if (progress == null) {
+                continue;
+            }
+            final Entry entry = this.byName.get(productName);
+            if (entry != null) {
+                entry.progress = progress;
+                updates++;
+            } else {
+                logger.warning(String.format("Received progress for %s, but it was not previously added. Progress will be ignored.",
+                                             productName));
+            }
+        }
+        if (updates == 0 && !this.changed) {
+            return;
+        }
+        this.changed = false;
+        final Map<Short, List<DownloadProgress>> current = new HashMap<>();
+        final List<ProgressEvent> produced = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : this.byName.values()) {
+                if (!entry.started || entry.finished) {
+                    continue;
+                }
+                current.computeIfAbsent(entry.siteId, k -> new ArrayList<>()).add(entry.snapshot());
+                if (!entry.announced) {
+                    entry.announced = true;
+                    produced.add(append(entry, ProgressEvent.Type.STARTED));
+                } else if (Math.abs(entry.progress - entry.announcedProgress) >= threshold) {
+                    produced.add(append(entry, ProgressEvent.Type.PROGRESS));
+                }
+            }
+            Entry entry;
+            while ((entry = this.ended.poll()) != null) {
+                if (entry.announced) {
+                    produced.add(append(entry, entry.failed ? ProgressEvent.Type.FAILED : ProgressEvent.Type.COMPLETED));
+                }
+            }
+        }
+        this.snapshot = current;
+        if (!produced.isEmpty()) {
+            for (Consumer<List<ProgressEvent>> listener : this.listeners) {
+                try {
+                    listener.accept(produced);
+                } catch (Exception e) {
+                    logger.warning(String.format("Progress listener failed [%s]", e.getMessage()));
+                }
+            }
+        }
+    }
+
+    private ProgressEvent append(Entry entry, ProgressEvent.Type type) {
+        entry.announcedProgress = entry.progress;
+        final ProgressEvent event = entry.event(++this.sequence, type);
+        this.events.addLast(event);
+        if (this.events.size() > MAX_EVENTS) {
+            this.events.pollFirst();
+        }
+        return event;
+    }
+
+    private static class Entry {
+        private final String productName;
+        private final short siteId;
+        private final String siteName;
+        private final Satellite satellite;
+        private volatile double progress;
+        private volatile boolean started;
+        private volatile boolean finished;
+        private volatile boolean failed;
+        // guarded by the registry lock
+        private boolean announced;
+        private double announcedProgress;
+
+        Entry(String productName, short siteId, String siteName, Satellite satellite) {
+            this.productName = productName;
+            this.siteId = siteId;
+            this.siteName = siteName;
+            this.satellite = satellite;
+        }
+
+        DownloadProgress snapshot() {
+            return new DownloadProgress(this.productName, this.siteId, this.siteName, this.satellite, this.progress);
+        }
+
+        ProgressEvent event(long sequence, ProgressEvent.Type type) {
+            return new ProgressEvent(sequence, type, this.productName, this.siteId, this.siteName,
+                                     this.satellite != null ? this.satellite.name() : null, this.progress);
+        }
+    }
+}
@@ -24,10 +24,12 @@ import org.esa.sen2agri.entities.Site;
 import org.esa.sen2agri.entities.converters.SatelliteConverter;
 import org.esa.sen2agri.entities.enums.Satellite;
 import org.esa.sen2agri.services.DownloadService;
+import org.esa.sen2agri.services.OfflineCatalog;
 import org.esa.sen2agri.services.QueryListener;
 import org.esa.sen2agri.services.SensorProgress;
 import org.esa.sen2agri.services.SiteHelper;
 import org.esa.sen2agri.web.beans.Query;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import ro.cs.tao.EnumUtils;
@@ -37,6 +39,7 @@ import ro.cs.tao.datasource.converters.ConversionException;
 import ro.cs.tao.datasource.param.CommonParameterNames;
 import ro.cs.tao.datasource.param.DataSourceParameter;
 import ro.cs.tao.datasource.param.QueryParameter;
+import ro.cs.tao.datasource.remote.FetchMode;
 import ro.cs.tao.eodata.EOProduct;
 import ro.cs.tao.eodata.enums.ProductStatus;
 import ro.cs.tao.messaging.Message;
@@ -49,12 +52,25 @@ import ro.cs.tao.messaging.progress.SubActivityProgressMessage;
 import ro.cs.tao.security.SystemPrincipal;
 import ro.cs.tao.utils.DateUtils;
 
+import java.io.IOException;
 import java.lang.reflect.Array;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Cosmin Cara
@@ -62,14 +78,39 @@ import java.util.stream.Collectors;
 @Service("downloadService")
 public class DownloadServiceImpl extends Notifiable implements DownloadService {
 
-    private static final Map<String, DownloadProgress> downloadsInProgress = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static final DownloadRegistry downloadsInProgress = new DownloadRegistry();
     //private static final Map<String, Key<Site, Satellite>> infoCache = Collections.synchronizedMap(new HashMap<>());
     private static final Map<Short, Long> estimatedProductCount = Collections.synchronizedMap(new HashMap<>());
-    private final Map<Tuple<Short, Satellite>, List<DataSourceComponent>> querySiteDataSources;
-    private final Map<Tuple<Short, Satellite>, List<DataSourceComponent>> dwnSiteDataSources;
+    private final DataSourceComponentPool queryComponents;
+    private final DataSourceComponentPool downloadComponents;
+    private final Map<SegmentedDownload, Tuple<Short, Satellite>> segmentedDownloads;
     private ProductStatusListener productStatusListener;
+    private QueryResultCache queryCache;
     private static final int DEFAULT_PRODUCTS_PER_PAGE_NO = 50;
     private static final DateFormat formatter = DateUtils.getFormatterAtUTC(Constants.FULL_DATE_FORMAT);
+    private static final int MAX_QUERY_THREADS = 32;
+    private static final ThreadPoolExecutor subQueryExecutor = boundedPool("sub-query", new LinkedBlockingQueue<>());
+    // the requests are not queued: when all the threads are busy (for instance, with requests to a slow data source),
+    // a new request fails instead of adding to the load of the data source
+    private static final ThreadPoolExecutor requestExecutor = boundedPool("query-request", new SynchronousQueue<>());
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private static final List<OfflineCatalog> offlineCatalogs = new ArrayList<>();
+
+    static {
+        ServiceLoader.load(OfflineCatalog.class).forEach(offlineCatalogs::add);
+    }
+
+    private static ThreadPoolExecutor boundedPool(String name, BlockingQueue<Runnable> queue) {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_QUERY_THREADS, MAX_QUERY_THREADS,
+                                                                   60, TimeUnit.SECONDS, queue, runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     @Autowired
     private PersistenceManager persistenceManager;
@@ -78,10 +119,30 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
     private final Map<Short, QueryListener> queryListeners;
 
     public DownloadServiceImpl() {
-        querySiteDataSources = new HashMap<>();
-        dwnSiteDataSources = new HashMap<>();
+        queryComponents = new DataSourceComponentPool();
+        downloadComponents = new DataSourceComponentPool();
+        segmentedDownloads = new ConcurrentHashMap<>();
         queryListeners = new HashMap<>();
         Messaging.subscribe(this, DataSourceTopic.PRODUCT_PROGRESS.value());
+        scheduleProgressPublication(1000);
+    }
+
+    /**
+     * The progress messages are coalesced by the registry of downloads in progress and published periodically,
+     * every <code>downloader.progress.interval</code> milliseconds.
+     */
+    private void scheduleProgressPublication(long delay) {
+        scheduler.schedule(() -> {
+            long next = 1000;
+            try {
+                downloadsInProgress.publish(Config.getAsDouble(ConfigurationKeys.DOWNLOADER_PROGRESS_THRESHOLD, 1.0));
+                next = Math.max(100, Config.getAsInteger(ConfigurationKeys.DOWNLOADER_PROGRESS_INTERVAL, 1000));
+            } catch (Exception e) {
+                logger.warning(String.format("Cannot publish the download progress [%s]", e.getMessage()));
+            } finally {
+                scheduleProgressPublication(next);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -103,64 +164,75 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
     public long count(short siteId, Query queryObject, DataSourceConfiguration configuration) throws ParseException {
         long count = 0;
         if (queryObject != null) {
-            final Satellite satellite = configuration.getSatellite();
-            final DataSourceComponent dataSourceComponent = getDataSourceComponent(siteId, queryObject.getUser(), queryObject.getPassword(),
+            final DataSourceComponent dataSourceComponent = leaseDataSourceComponent(siteId, queryObject.getUser(), queryObject.getPassword(),
                     configuration, false);
             if (dataSourceComponent == null) {
                 return count;
             }
-            List<Query> subQueries = null;
             try {
-                subQueries = queryObject.splitByParameter(CommonParameterNames.TILE);
-            } catch (ConversionException e) {
-                logger.warning("Cannot create subqueries. Reason: " + e.getMessage());
-            }
-            if (subQueries == null) {
-                subQueries = new ArrayList<>();
-                subQueries.add(queryObject);
-            }
-            final Map<String, DataSourceParameter> parameterDescriptorMap =
-                    DataSourceManager.getInstance().getSupportedParameters(satellite.name(),
-                                                                           configuration.getDataSourceName());
-            for (Query subQuery : subQueries) {
-                DataQuery query = dataSourceComponent.createQuery();
-                Map<String, Object> paramValues = subQuery.getValues();
-                for (Map.Entry<String, Object> entry : paramValues.entrySet()) {
-                    final DataSourceParameter descriptor = parameterDescriptorMap.get(entry.getKey());
-                    if (descriptor == null) {
-                        throw new QueryException(String.format("Parameter [%s] not supported by data source '%s' for sensor '%s'",
-                                                               entry.getKey(),
-                                                               configuration.getDataSourceName(),
-                                                               configuration.getSatellite().name()));
-                    }
-                    final Class type = descriptor.getType();
-                    Object value = entry.getValue();
-                    final QueryParameter queryParameter;
-                    if (value != null && value.getClass().isArray()) {
-                        queryParameter = query.createParameter(entry.getKey(),
-                                                               type,
-                                                               Date.class.isAssignableFrom(type) ?
-                                                                       formatter.parse(String.valueOf(Array.get(value, 0)))
-                                                                       : Array.get(value, 0),
-                                                               Date.class.isAssignableFrom(type) ?
-                                                                       formatter.parse(String.valueOf(Array.get(value, 1)))
-                                                                       : Array.get(value, 1));
-                    } else {
-                        queryParameter = query.createParameter(entry.getKey(),
-                                                               type,
-                                                               Date.class.isAssignableFrom(type) ?
-                                                                       formatter.parse(String.valueOf(entry.getValue()))
-                                                                       : entry.getValue());
-                    }
-                    query.addParameter(queryParameter);
-                }
-                count += query.getCount();
+                count = countProducts(dataSourceComponent, queryObject, configuration);
+            } finally {
+                queryComponents.release(dataSourceComponent);
             }
             estimatedProductCount.put(siteId, count);
         }
         return count;
     }
 
+    private long countProducts(DataSourceComponent dataSourceComponent, Query queryObject,
+                               DataSourceConfiguration configuration) throws ParseException {
+        long count = 0;
+        final Satellite satellite = configuration.getSatellite();
+        List<Query> subQueries = null;
+        try {
+            subQueries = queryObject.splitByParameter(CommonParameterNames.TILE);
+        } catch (ConversionException e) {
+            logger.warning("Cannot create subqueries. Reason: " + e.getMessage());
+        }
+        if (subQueries == null) {
+            subQueries = new ArrayList<>();
+            subQueries.add(queryObject);
+        }
+        final Map<String, DataSourceParameter> parameterDescriptorMap =
+                DataSourceManager.getInstance().getSupportedParameters(satellite.name(),
+                                                                       configuration.getDataSourceName());
+        for (Query subQuery : subQueries) {
+            DataQuery query = dataSourceComponent.createQuery();
+            Map<String, Object> paramValues = subQuery.getValues();
+            for (Map.Entry<String, Object> entry : paramValues.entrySet()) {
+                final DataSourceParameter descriptor = parameterDescriptorMap.get(entry.getKey());
+                if (descriptor == null) {
+                    throw new QueryException(String.format("Parameter [%s] not supported by data source '%s' for sensor '%s'",
+                                                           entry.getKey(),
+                                                           configuration.getDataSourceName(),
+                                                           configuration.getSatellite().name()));
+                }
+                final Class type = descriptor.getType();
+                Object value = entry.getValue();
+                final QueryParameter queryParameter;
+                if (value != null && value.getClass().isArray()) {
+                    queryParameter = query.createParameter(entry.getKey(),
+                                                           type,
+                                                           Date.class.isAssignableFrom(type) ?
+                                                                   formatter.parse(String.valueOf(Array.get(value, 0)))
+                                                                   : Array.get(value, 0),
+                                                           Date.class.isAssignableFrom(type) ?
+                                                                   formatter.parse(String.valueOf(Array.get(value, 1)))
+                                                                   : Array.get(value, 1));
+                } else {
+                    queryParameter = query.createParameter(entry.getKey(),
+                                                           type,
+                                                           Date.class.isAssignableFrom(type) ?
+                                                                   formatter.parse(String.valueOf(entry.getValue()))
+                                                                   : entry.getValue());
+                }
+                query.addParameter(queryParameter);
+            }
+            count += query.getCount();
+        }
+        return count;
+    }
+
     @Override
     public long getCount(short siteId) {
         return estimatedProductCount.containsKey(siteId) ? estimatedProductCount.get(siteId) : 0;
@@ -188,8 +260,35 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
     @Override
     public List<EOProduct> query(short siteId, Query queryObject,
                                  DataSourceConfiguration configuration) throws ParseException {
-        List<EOProduct> results = null;
+        return doQuery(siteId, queryObject, configuration, Deadline.none(), null);
+    }
+
+    @Override
+    public void query(short siteId, Query queryObject, DataSourceConfiguration configuration,
+                      Deadline deadline, Consumer<List<EOProduct>> pageConsumer) throws ParseException {
+        if (pageConsumer == null) {
+            throw new IllegalArgumentException("[pageConsumer] null");
+        }
+        doQuery(siteId, queryObject, configuration, deadline != null ? deadline : Deadline.none(), pageConsumer);
+    }
+
+    /**
+     * Executes the query and either accumulates the results or, if a page consumer is given, passes them page by page.
+     */
+    private List<EOProduct> doQuery(short siteId, Query queryObject, DataSourceConfiguration configuration,
+                                    Deadline deadline, Consumer<List<EOProduct>> pageConsumer) throws ParseException {
+        final List<EOProduct> results = new ArrayList<>();
         if (queryObject != null) {
+            final List<EOProduct> offlineResults = queryOffline(siteId, queryObject, configuration);
+            if (offlineResults != null) {
+                offlineResults.sort(Comparator.comparing(EOProduct::getAcquisitionDate));
+                if (pageConsumer != null) {
+                    pageConsumer.accept(offlineResults);
+                } else {
+                    results.addAll(offlineResults);
+                }
+                return results;
+            }
             String user = queryObject.getUser();
             String pwd = queryObject.getPassword();
             if (user == null) {
@@ -198,7 +297,7 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
             if (pwd == null) {
                 pwd = configuration.getPassword();
             }
-            final DataSourceComponent dataSourceComponent = getDataSourceComponent(siteId, user, pwd, configuration, false);
+            final DataSourceComponent dataSourceComponent = leaseDataSourceComponent(siteId, user, pwd, configuration, false);
             if (dataSourceComponent == null) {
                 return null;
             }
@@ -217,107 +316,154 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
                     subQueries = new ArrayList<>();
                     subQueries.add(queryObject);
                 }
-                results = new ArrayList<>();
-                int queryIdx = 1;
                 final QueryListener queryListener = this.queryListeners.get(siteId);
+                final QueryResultCache cache = getQueryCache();
+                final Map<String, EOProduct> cachedProducts = new LinkedHashMap<>();
+                // The data queries are built on the calling thread, since the date formatter is not thread-safe
+                final List<SubQuery> queries = new ArrayList<>();
+                int queryIdx = 1;
                 for (Query subQuery : subQueries) {
-                    final DataQuery query = dataSourceComponent.createQuery();
-                    query.setQueryDelay(Config.getAsInteger(ConfigurationKeys.DOWNLOADER_QUERY_DELAY, 0));
-                    query.setPageSize(DEFAULT_PRODUCTS_PER_PAGE_NO);
-                    final Map<String, Object> paramValues = subQuery.getValues();
-                    for (Map.Entry<String, Object> entry : paramValues.entrySet()) {
-                        final DataSourceParameter descriptor = parameterDescriptorMap.get(entry.getKey());
-                        if (descriptor == null) {
-                            throw new QueryException(String.format("Parameter [%s] not supported by data source '%s' for sensor '%s'",
-                                                                   entry.getKey(),
-                                                                   configuration.getDataSourceName(),
-                                                                   configuration.getSatellite().name()));
+                    final Tuple<LocalDateTime, LocalDateTime> window;
+                    if (cache != null && !subQuery.hasParameter(CommonParameterNames.PRODUCT)
+                            && (window = QueryResultCache.windowOf(subQuery)) != null) {
+                        // Only the parts of the window not covered by the cache are queried remotely
+                        final String key = QueryResultCache.keyOf(configuration.getDataSourceName(), satellite, subQuery);
+                        // The query of a single tile is executed (and cached) for the whole tile, the products not
+                        // intersecting the footprint of this query being discarded afterwards
+                        final boolean tileQuery = QueryResultCache.isTileQuery(subQuery);
+                        final PreparedGeometry footprint = tileQuery ? QueryResultCache.footprintOf(subQuery) : null;
+                        final Tuple<List<EOProduct>, List<Tuple<LocalDateTime, LocalDateTime>>> cached =
+                                cache.lookup(key, window.getKeyOne(), window.getKeyTwo());
+                        QueryResultCache.intersecting(cached.getKeyOne(), footprint)
+                                        .forEach(p -> cachedProducts.putIfAbsent(p.getName(), p));
+                        final List<Tuple<LocalDateTime, LocalDateTime>> gaps = cached.getKeyTwo();
+                        if (gaps.isEmpty() && queryListener != null) {
+                            queryListener.onCompleted(satellite, subQuery);
                         }
-                        final Class type = descriptor.getType();
-                        Object value = entry.getValue();
-                        final QueryParameter queryParameter;
-                        if (value != null && (value.getClass().isArray())) {
-                            queryParameter = query.createParameter(entry.getKey(),
-                                                                   type,
-                                                                   Date.class.isAssignableFrom(type) ?
-                                                                           formatter.parse(String.valueOf(Array.get(value, 0)))
-                                                                           : Array.get(value, 0),
-                                                                   Date.class.isAssignableFrom(type) ?
-                                                                           formatter.parse(String.valueOf(Array.get(value, 1)))
-                                                                           : Array.get(value, 1));
-                            if (CommonParameterNames.START_DATE.equals(descriptor.getName())) {
-                                queryParameter.setValue(queryParameter.getMinValue());
-                            } else if (CommonParameterNames.END_DATE.equals(descriptor.getName())) {
-                                queryParameter.setValue(queryParameter.getMaxValue());
-                            }
-                        } else if (value != null && List.class.isAssignableFrom(value.getClass())) {
-                            List<?> list = (List<?>) value;
-                            queryParameter = query.createParameter(entry.getKey(),
-                                    type,
-                                    Date.class.isAssignableFrom(type) ?
-                                                                           formatter.parse(String.valueOf(list.get(0)))
-                                            : list.get(0),
-                                    Date.class.isAssignableFrom(type) ?
-                                                                           formatter.parse(String.valueOf(list.get(1)))
-                                            : list.get(1));
-                            if (CommonParameterNames.START_DATE.equals(descriptor.getName())) {
-                                queryParameter.setValue(queryParameter.getMinValue());
-                            } else if (CommonParameterNames.END_DATE.equals(descriptor.getName())) {
-                                queryParameter.setValue(queryParameter.getMaxValue());
-                            }
-                        } else {
-                            queryParameter = query.createParameter(entry.getKey(),
-                                                                   type,
-                                                                   Date.class.isAssignableFrom(type) ?
-                                                                           formatter.parse(String.valueOf(entry.getValue()))
-                                                                           : entry.getValue());
+                        for (Tuple<LocalDateTime, LocalDateTime> gap : gaps) {
+                            final Query gapQuery = QueryResultCache.withWindow(subQuery, gap.getKeyOne(), gap.getKeyTwo());
+                            final Query remoteQuery = tileQuery ? QueryResultCache.withoutFootprint(gapQuery) : gapQuery;
+                            queries.add(new SubQuery(queryIdx++, gapQuery,
+                                                     createDataQuery(dataSourceComponent, remoteQuery, parameterDescriptorMap, configuration),
+                                                     key, gap, footprint));
                         }
-                        query.addParameter(queryParameter);
+                    } else {
+                        queries.add(new SubQuery(queryIdx++, subQuery,
+                                                 createDataQuery(dataSourceComponent, subQuery, parameterDescriptorMap, configuration),
+                                                 null, null, null));
                     }
-                    int page = 1;
-                    int currentCount;
-                    do {
-                        query.setPageNumber(page);
-                        logger.fine(String.format("Querying page #%d (query %d of %d) for {site id=%d,satellite=%s}",
-                                                  page, queryIdx, subQueries.size(), siteId, satellite.friendlyName()));
-                        try {
-                            List<EOProduct> products = query.execute();
-                            logger.fine(String.format("Page #%d (query %d of %d) for {site id=%d,satellite=%s} returned %d results",
-                                    page, queryIdx, subQueries.size(), siteId, satellite.friendlyName(), products.size()));
-                            results.addAll(products);
-                            currentCount = products.size();
-                            page++;
-                        } catch (Throwable e) {
-                            if (queryListener != null) {
-                                queryListener.onFailed(satellite, subQuery);
-                            }
-                            throw e;
+                }
+                if (cache != null) {
+                    logger.fine(String.format("Query cache returned %d products for {site id=%d,satellite=%s}, %d sub-queries remain to be executed",
+                                              cachedProducts.size(), siteId, satellite.friendlyName(), queries.size()));
+                }
+                // A product is passed only once, even if returned both by the cache and by the query of a gap
+                // (or by several sub-queries)
+                final Set<String> passed = ConcurrentHashMap.newKeySet();
+                final Consumer<List<EOProduct>> pageHandler;
+                if (pageConsumer != null) {
+                    pageHandler = page -> {
+                        final List<EOProduct> sorted = distinct(page, passed);
+                        if (!sorted.isEmpty()) {
+                            sorted.sort(Comparator.comparing(EOProduct::getAcquisitionDate));
+                            pageConsumer.accept(sorted);
+                        }
+                    };
+                } else {
+                    pageHandler = page -> {
+                        final List<EOProduct> distinct = distinct(page, passed);
+                        synchronized (results) {
+                            results.addAll(distinct);
                         }
-                    } while (currentCount > 0 && query.supportsPaging());
-                    queryIdx++;
-                    if (queryListener != null) {
-                        queryListener.onCompleted(satellite, subQuery);
+                    };
+                }
+                if (cachedProducts.size() > 0) {
+                    pageHandler.accept(new ArrayList<>(cachedProducts.values()));
+                }
+                // The throttle further limits the number of concurrent requests, based on the data source behaviour
+                final DataSourceThrottle throttle = DataSourceThrottle.get(configuration);
+                final int parallelism = Math.min(configuration.getMaxConnections(), queries.size());
+                if (parallelism > 1 && Config.getAsBoolean(ConfigurationKeys.DOWNLOADER_QUERY_PARALLEL, true)) {
+                    executeConcurrently(siteId, satellite, queries, parallelism, throttle, deadline, queryListener, pageHandler);
+                } else {
+                    for (SubQuery subQuery : queries) {
+                        executeSubQuery(siteId, satellite, subQuery, queries.size(), throttle, deadline, queryListener, pageHandler);
                     }
                 }
                 results.sort(Comparator.comparing(EOProduct::getAcquisitionDate));
             } finally {
-                querySiteDataSources.get(new Tuple<>(siteId, configuration.getSatellite())).remove(dataSourceComponent);
+                queryComponents.release(dataSourceComponent);
             }
         }
         return results;
     }
 
+    private static List<EOProduct> distinct(List<EOProduct> page, Set<String> passed) {
+        final List<EOProduct> distinct = new ArrayList<>(page.size());
+        for (EOProduct product : page) {
+            if (passed.add(product.getName())) {
+                distinct.add(product);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Answers the query from the local archive, if the data source does not fetch the products remotely and an offline
+     * catalog supports it. Returns <code>null</code> if the remote catalog has to be queried.
+     */
+    private List<EOProduct> queryOffline(short siteId, Query queryObject, DataSourceConfiguration configuration) {
+        if (offlineCatalogs.isEmpty() || isRemoteFetch(configuration)) {
+            return null;
+        }
+        for (OfflineCatalog catalog : offlineCatalogs) {
+            if (!catalog.supports(configuration)) {
+                continue;
+            }
+            try {
+                final List<EOProduct> products = catalog.query(queryObject, configuration);
+                if (products != null) {
+                    logger.fine(String.format("Offline catalog returned %d products for {site id=%d,satellite=%s}",
+                                              products.size(), siteId, configuration.getSatellite().friendlyName()));
+                    return new ArrayList<>(products);
+                }
+            } catch (Exception e) {
+                logger.warning(String.format("Offline catalog query failed for {site id=%d,satellite=%s}, the remote catalog will be used [%s]",
+                                             siteId, configuration.getSatellite().friendlyName(), e.getMessage()));
+            }
+        }
+        return null;
+    }
+
     @Override
     public List<EOProduct> download(short siteId, List<EOProduct> products, Set<String> tiles, String targetPath,
                                     DataSourceConfiguration configuration) {
+        return download(siteId, products, tiles, targetPath, configuration, Deadline.none());
+    }
+
+    @Override
+    public List<EOProduct> download(short siteId, List<EOProduct> products, Set<String> tiles, String targetPath,
+                                    DataSourceConfiguration configuration, Deadline deadline) {
         if (configuration == null) {
             throw new RuntimeException("Invalid datasource configuration");
         }
-        final DataSourceComponent dataSourceComponent = getDataSourceComponent(siteId, configuration, true);
+        final DataSourceComponent dataSourceComponent = leaseDataSourceComponent(siteId, configuration.getUser(),
+                                                                                 configuration.getPassword(), configuration, true);
         DataSourceComponent secondaryDataSourceComponent = null;
         if (dataSourceComponent == null) {
             throw new RuntimeException("Cannot create the datasource component for configuration: " + configuration.toString());
         }
+        final Map<String, Runnable> active = new ConcurrentHashMap<>();
+        active.put("primary", dataSourceComponent::cancel);
+        ScheduledFuture<?> deadlineTimer = null;
+        if (deadline != null && deadline.isBounded()) {
+            // When the time budget is exhausted, the active download is cancelled
+            deadlineTimer = scheduler.schedule(() -> {
+                logger.warning(String.format("Download for site %d exceeded its time budget and will be cancelled", siteId));
+                active.values().forEach(Runnable::run);
+                active.clear();
+            }, deadline.remaining(), TimeUnit.MILLISECONDS);
+        }
         try {
             final boolean hasSecondaryDS = configuration.getSecondaryDatasourceId() != null;
             String productType = products.get(0).getProductType();
@@ -328,81 +474,87 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
                 }
             }
             final String pType = productType;
+            final Site site = persistenceManager.getSiteById(siteId);
+            final String siteName = site != null ? site.getName() : null;
             products.forEach(p -> {
                 p.addAttribute("site", String.valueOf(siteId));
                 if (hasSecondaryDS) {
                     p.addAttribute("retry", "true");
                 }
                 p.setProductType(pType);
+                downloadsInProgress.register(p.getName(), siteId, siteName, configuration.getSatellite());
             });
-            products = dataSourceComponent.doFetch(products, tiles, targetPath,
-                                                   configuration.getLocalArchivePath(), configuration.getAdditionalSettings());
+            products = fetch(siteId, dataSourceComponent, products, tiles, targetPath, configuration, deadline, active);
             if (hasSecondaryDS) {
                 final Integer secondaryId = configuration.getSecondaryDatasourceId();
                 List<EOProduct> retriable = products.stream().filter(r -> r.getProductStatus() != ProductStatus.DOWNLOADED).collect(Collectors.toList());
                 retriable.forEach(r -> r.removeAttribute("retry"));
                 DataSourceConfiguration secondaryConfiguration = Config.getDownloadConfiguration(secondaryId.shortValue());
                 if (secondaryConfiguration != null) {
-                    secondaryDataSourceComponent = getDataSourceComponent(siteId, secondaryConfiguration, true);
+                    secondaryDataSourceComponent = leaseDataSourceComponent(siteId, secondaryConfiguration.getUser(),
+                                                                            secondaryConfiguration.getPassword(),
+                                                                            secondaryConfiguration, true);
                     if (secondaryDataSourceComponent == null) {
                         throw new RuntimeException("Cannot create the datasource component for configuration: " + configuration.toString());
                     }
-                    secondaryDataSourceComponent.doFetch(retriable, tiles, targetPath,
-                                                         secondaryConfiguration.getLocalArchivePath(), secondaryConfiguration.getAdditionalSettings());
+                    if (deadline != null && deadline.isExpired()) {
+                        throw new RuntimeException("Download time budget exceeded, the secondary datasource will not be used");
+                    }
+                    active.put("secondary", secondaryDataSourceComponent::cancel);
+                    fetch(siteId, secondaryDataSourceComponent, retriable, tiles, targetPath, secondaryConfiguration, deadline, active);
                 }
             }
             return products;
         } finally {
+            if (deadlineTimer != null) {
+                deadlineTimer.cancel(false);
+            }
             if (products != null) {
-                products.forEach(p -> downloadsInProgress.remove(p.getName()));
+                products.forEach(p -> downloadsInProgress.remove(p.getName(),
+                                                                 p.getProductStatus() != ProductStatus.DOWNLOADED));
             }
-            dwnSiteDataSources.get(new Tuple<>(siteId, configuration.getSatellite())).remove(dataSourceComponent);
+            downloadComponents.release(dataSourceComponent);
             if (secondaryDataSourceComponent != null) {
-                dwnSiteDataSources.get(new Tuple<>(siteId, configuration.getSatellite())).remove(secondaryDataSourceComponent);
+                downloadComponents.release(secondaryDataSourceComponent);
             }
         }
     }
 
     @Override
     public List<DownloadProgress> getDownloadsInProgress(short siteId) {
-        List<DownloadProgress> tasks = new ArrayList<>();
-        if (siteId > 0) {
-            dwnSiteDataSources.entrySet().stream()
-                    .filter(e -> siteId == e.getKey().getKeyOne())
-                    .map(Map.Entry::getValue).forEach(ldsc ->
-                        ldsc.forEach(dsc -> {
-                            if (dsc != null) {
-                                final EOProduct product = dsc.getCurrentProduct();
-                                if (product != null) {
-                                    tasks.add(downloadsInProgress.get(product.getName()));
-                                }
-                            }
-                        }));
-        } else {
-            tasks.addAll(downloadsInProgress.values());
-        }
-        return tasks;
+        return downloadsInProgress.getInProgress(siteId);
+    }
+
+    @Override
+    public List<ProgressEvent> getProgressEvents(short siteId, long after) {
+        return downloadsInProgress.getEvents(siteId, after);
+    }
+
+    @Override
+    public void addProgressListener(Consumer<List<ProgressEvent>> listener) {
+        downloadsInProgress.addListener(listener);
+    }
+
+    @Override
+    public void removeProgressListener(Consumer<List<ProgressEvent>> listener) {
+        downloadsInProgress.removeListener(listener);
+    }
+
+    @Override
+    public List<DownloadQueue.SiteState> getDownloadQueueState(short siteId) {
+        return DownloadQueue.getAll().stream()
+                .flatMap(q -> q.getSites().stream())
+                .filter(s -> siteId <= 0 || s.getSiteId() == siteId)
+                .collect(Collectors.toList());
     }
 
     @Override
     public void stop(short siteId) {
         if (siteId > 0) {
-            dwnSiteDataSources.entrySet().stream()
-                    .filter(e -> siteId == e.getKey().getKeyOne())
-                    .map(Map.Entry::getValue).forEach(ldsc ->
-                        ldsc.forEach(dsc -> {
-                          if (dsc != null) {
-                              dsc.cancel();
-                              final EOProduct product = dsc.getCurrentProduct();
-                              if (product != null) {
-                                  downloadsInProgress.remove(product.getName());
-                              }
-
-                          }
-                      }));
+            cancelDownloads(siteId, null);
             Config.setSetting(siteId, ConfigurationKeys.DOWNLOADER_ENABLED, "false");
         } else {
-            dwnSiteDataSources.values().forEach(ldsc -> ldsc.forEach(DataSourceComponent::cancel));
+            cancelDownloads((short) 0, null);
             Config.setSetting((short) 0, ConfigurationKeys.DOWNLOADER_ENABLED, "false");
             downloadsInProgress.clear();
         }
@@ -411,35 +563,7 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
     @Override
     public void stop(short siteId, short satelliteId) {
         Satellite satellite = new SatelliteConverter().convertToEntityAttribute(satelliteId);
-        if (siteId > 0) {
-            dwnSiteDataSources.entrySet().stream()
-                    .filter(e -> siteId == e.getKey().getKeyOne() && satellite.equals(e.getKey().getKeyTwo()))
-                    .map(Map.Entry::getValue).forEach(ldsc ->
-                        ldsc.forEach(dsc -> {
-                          if (dsc != null) {
-                              dsc.cancel();
-                              final EOProduct product = dsc.getCurrentProduct();
-                              if (product != null) {
-                                  downloadsInProgress.remove(product.getName());
-                              }
-                          }
-                      }));
-        } else {
-            dwnSiteDataSources.entrySet().stream()
-                    .filter(e -> satellite.equals(e.getKey().getKeyTwo()))
-                    .map(Map.Entry::getValue).forEach(ldsc ->
-                        ldsc.forEach(dsc -> {
-                              if (dsc != null) {
-                                  dsc.cancel();
-                                  final EOProduct product = dsc.getCurrentProduct();
-                                  if (product != null) {
-                                      downloadsInProgress.remove(product.getName());
-                                  }
-
-                              }
-                          }));
-        }
-        //dwnSiteDataSources.entrySet().removeIf(e -> siteId == e.getKey().getKeyOne() && satellite.equals(e.getKey().getKeyTwo()));
+        cancelDownloads(siteId, satellite);
         Config.setSetting(siteId,
                           String.format(ConfigurationKeys.DOWNLOADER_SENSOR_ENABLED,
                                   satellite.friendlyName().toLowerCase()),
@@ -464,19 +588,7 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
         if (!canForce) {
             return;
         }
-        dwnSiteDataSources.entrySet().stream()
-                .filter(e -> siteId == e.getKey().getKeyOne())
-                .map(Map.Entry::getValue).forEach(ldsc ->
-                                                          ldsc.forEach(dsc -> {
-                                                              if (dsc != null) {
-                                                                  dsc.cancel();
-                                                                  final EOProduct product = dsc.getCurrentProduct();
-                                                                  if (product != null) {
-                                                                      downloadsInProgress.remove(product.getName());
-                                                                  }
-
-                                                              }
-                                                          }));
+        cancelDownloads(siteId, null);
         for (Satellite satellite : satellites) {
             Config.setSetting(siteId, String.format(ConfigurationKeys.DOWNLOADER_SENSOR_FORCE_START,
                                                     satellite.friendlyName()), "true");
@@ -498,18 +610,7 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
         if (Config.getAsBoolean(siteId, configKey, false)) {
             return;
         }
-        dwnSiteDataSources.entrySet().stream()
-                .filter(e -> siteId == e.getKey().getKeyOne() && satellite.equals(e.getKey().getKeyTwo()))
-                .map(Map.Entry::getValue).forEach(ldsc ->
-                                                          ldsc.forEach(dsc -> {
-                                                              if (dsc != null) {
-                                                                  dsc.cancel();
-                                                                  final EOProduct product = dsc.getCurrentProduct();
-                                                                  if (product != null) {
-                                                                      downloadsInProgress.remove(product.getName());
-                                                                  }
-                                                              }
-                                                          }));
+        cancelDownloads(siteId, satellite);
         Config.setSetting(siteId, configKey, "true");
         start(siteId, satelliteId);
         sendCommand(Commands.DOWNLOADER_FORCE_START, job, siteId, (int) satelliteId);
@@ -517,43 +618,14 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
 
     @Override
     public void start(short siteId) {
-        if (siteId > 0) {
-            dwnSiteDataSources.entrySet().stream()
-                    .filter(e -> siteId == e.getKey().getKeyOne())
-                    .map(Map.Entry::getValue).forEach(ldsc ->
-                        ldsc.forEach(dsc -> {
-                        if (dsc != null) {
-                            dsc.resume();
-                        }
-                    }));
-        } else {
-            dwnSiteDataSources.values().forEach(ldsc -> ldsc.forEach(DataSourceComponent::resume));
-        }
+        downloadComponents.forEach(siteId, null, DataSourceComponent::resume);
         Config.setSetting(siteId, ConfigurationKeys.DOWNLOADER_ENABLED, "true");
     }
 
     @Override
     public void start(short siteId, short satelliteId) {
         Satellite satellite = EnumUtils.getEnumConstantByValue(Satellite.class, satelliteId);
-        if (siteId > 0) {
-            dwnSiteDataSources.entrySet().stream()
-                    .filter(e -> siteId == e.getKey().getKeyOne() && satellite.equals(e.getKey().getKeyTwo()))
-                    .map(Map.Entry::getValue).forEach(ldsc -> ldsc.forEach(dsc -> {
-                        if (dsc != null) {
-                            dsc.resume();
-                        }
-                    })
-            );
-        } else {
-            dwnSiteDataSources.entrySet().stream()
-                    .filter(e -> satellite.equals(e.getKey().getKeyTwo()))
-                    .map(Map.Entry::getValue).forEach(ldsc -> ldsc.forEach(dsc -> {
-                        if (dsc != null) {
-                            dsc.resume();
-                        }
-                    })
-            );
-        }
+        downloadComponents.forEach(siteId, satellite, DataSourceComponent::resume);
         Config.setSetting(siteId,
                           String.format(ConfigurationKeys.DOWNLOADER_SENSOR_ENABLED,
                                   satellite.friendlyName().toLowerCase()),
@@ -563,39 +635,281 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
     @Override
     protected void onMessageReceived(Message data) {
         String taskName;
-        Site site = null;
-        Satellite satellite = null;
-        Tuple<Site, Satellite> productInfo;
         if (data instanceof ActivityStartMessage) {
             taskName = ((ActivityStartMessage) data).getTaskName();
-            if ((productInfo = getProductInfo(taskName)) != null) {
-                site = productInfo.getKeyOne();
-                satellite = productInfo.getKeyTwo();
-            }
-            downloadsInProgress.put(taskName, new DownloadProgress(taskName, site, satellite, 0));
+            downloadsInProgress.started(taskName);
             logger.finest(String.format("Received start of download for %s", taskName));
         } else if (data instanceof ActivityEndMessage) {
             taskName = ((ActivityEndMessage) data).getTaskName();
-            downloadsInProgress.remove(taskName);
+            downloadsInProgress.finished(taskName);
             logger.finest(String.format("Received end of download for %s", taskName));
         } else if (data instanceof SubActivityProgressMessage) {
             SubActivityProgressMessage casted = (SubActivityProgressMessage) data;
             taskName = casted.getTaskName();
-            if (downloadsInProgress.containsKey(taskName)) {
-                downloadsInProgress.get(taskName).updateProgress(casted.getTaskProgress());
-            } else {
-                logger.warning(String.format("Received a subactivity progress message for %s, but it was not previously added. Message will be ignored.",
-                                             taskName));
-            }
+            downloadsInProgress.update(taskName, casted.getTaskProgress());
         } else if (data instanceof ActivityProgressMessage) {
             ActivityProgressMessage casted = (ActivityProgressMessage) data;
             taskName = casted.getTaskName();
-            if (downloadsInProgress.containsKey(taskName)) {
-                downloadsInProgress.get(taskName).updateProgress(casted.getProgress());
+            downloadsInProgress.update(taskName, casted.getProgress());
+        }
+    }
+
+    private DataQuery createDataQuery(DataSourceComponent dataSourceComponent, Query subQuery,
+                                      Map<String, DataSourceParameter> parameterDescriptorMap,
+                                      DataSourceConfiguration configuration) throws ParseException {
+        final DataQuery query = dataSourceComponent.createQuery();
+        query.setQueryDelay(Config.getAsInteger(ConfigurationKeys.DOWNLOADER_QUERY_DELAY, 0));
+        query.setPageSize(DEFAULT_PRODUCTS_PER_PAGE_NO);
+        final Map<String, Object> paramValues = subQuery.getValues();
+        for (Map.Entry<String, Object> entry : paramValues.entrySet()) {
+            final DataSourceParameter descriptor = parameterDescriptorMap.get(entry.getKey());
+            if (descriptor == null) {
+                throw new QueryException(String.format("Parameter [%s] not supported by data source '%s' for sensor '%s'",
+                                                       entry.getKey(),
+                                                       configuration.getDataSourceName(),
+                                                       configuration.getSatellite().name()));
+            }
+            final Class type = descriptor.getType();
+            Object value = entry.getValue();
+            final QueryParameter queryParameter;
+            if (value != null && (value.getClass().isArray())) {
+                queryParameter = query.createParameter(entry.getKey(),
+                                                       type,
+                                                       Date.class.isAssignableFrom(type) ?
+                                                               formatter.parse(String.valueOf(Array.get(value, 0)))
+                                                               : Array.get(value, 0),
+                                                       Date.class.isAssignableFrom(type) ?
+                                                               formatter.parse(String.valueOf(Array.get(value, 1)))
+                                                               : Array.get(value, 1));
+                if (CommonParameterNames.START_DATE.equals(descriptor.getName())) {
+                    queryParameter.setValue(queryParameter.getMinValue());
+                } else if (CommonParameterNames.END_DATE.equals(descriptor.getName())) {
+                    queryParameter.setValue(queryParameter.getMaxValue());
+                }
+            } else if (value != null && List.class.isAssignableFrom(value.getClass())) {
+                List<?> list = (List<?>) value;
+                queryParameter = query.createParameter(entry.getKey(),
+                        type,
+                        Date.class.isAssignableFrom(type) ?
+                                                               formatter.parse(String.valueOf(list.get(0)))
+                                : list.get(0),
+                        Date.class.isAssignableFrom(type) ?
+                                                               formatter.parse(String.valueOf(list.get(1)))
+                                : list.get(1));
+                if (CommonParameterNames.START_DATE.equals(descriptor.getName())) {
+                    queryParameter.setValue(queryParameter.getMinValue());
+                } else if (CommonParameterNames.END_DATE.equals(descriptor.getName())) {
+                    queryParameter.setValue(queryParameter.getMaxValue());
+                }
             } else {
-                logger.warning(String.format("Received a progress message for %s, but it was not previously added. Message will be ignored.",
-                                             taskName));
+                queryParameter = query.createParameter(entry.getKey(),
+                                                       type,
+                                                       Date.class.isAssignableFrom(type) ?
+                                                               formatter.parse(String.valueOf(entry.getValue()))
+                                                               : entry.getValue());
+            }
+            query.addParameter(queryParameter);
+        }
+        return query;
+    }
+
+    /**
+     * Executes all the pages of a sub-query, passing each page to the given handler,
+     * and notifies the listener about the outcome.
+     */
+    private void executeSubQuery(short siteId, Satellite satellite, SubQuery subQuery, int total,
+                                 DataSourceThrottle throttle, Deadline deadline, QueryListener queryListener,
+                                 Consumer<List<EOProduct>> pageHandler) {
+        final DataQuery query = subQuery.dataQuery;
+        final List<EOProduct> toCache = subQuery.cacheKey != null ? new ArrayList<>() : null;
+        int page = 1;
+        int currentCount;
+        do {
+            query.setPageNumber(page);
+            logger.fine(String.format("Querying page #%d (query %d of %d) for {site id=%d,satellite=%s}",
+                                      page, subQuery.index, total, siteId, satellite.friendlyName()));
+            try {
+                List<EOProduct> products = executePage(query, throttle, deadline);
+                logger.fine(String.format("Page #%d (query %d of %d) for {site id=%d,satellite=%s} returned %d results",
+                        page, subQuery.index, total, siteId, satellite.friendlyName(), products.size()));
+                currentCount = products.size();
+                if (currentCount > 0) {
+                    if (toCache != null) {
+                        toCache.addAll(products);
+                    }
+                    products = QueryResultCache.intersecting(products, subQuery.footprint);
+                    if (!products.isEmpty()) {
+                        pageHandler.accept(products);
+                    }
+                }
+                page++;
+            } catch (Throwable e) {
+                if (queryListener != null) {
+                    queryListener.onFailed(satellite, subQuery.query);
+                }
+                throw e;
+            }
+        } while (currentCount > 0 && query.supportsPaging());
+        if (toCache != null && this.queryCache != null) {
+            this.queryCache.store(subQuery.cacheKey, subQuery.window.getKeyOne(), subQuery.window.getKeyTwo(), toCache);
+        }
+        if (queryListener != null) {
+            queryListener.onCompleted(satellite, subQuery.query);
+        }
+    }
+
+    /**
+     * Executes the current page of the query, within the limits imposed by the data source throttle.
+     * If the deadline bounds the request, the request is cancelled when it doesn't complete in time.
+     */
+    private List<EOProduct> executePage(DataQuery query, DataSourceThrottle throttle, Deadline deadline) {
+        if (deadline.isExpired()) {
+            throw new QueryException(String.format("Time budget exceeded before querying data source %s", throttle.getName()));
+        }
+        try {
+            if (!throttle.acquire()) {
+                throw new QueryException(String.format("Data source %s is currently unavailable", throttle.getName()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryException(String.format("Interrupted while waiting for data source %s", throttle.getName()));
+        }
+        final long start = System.currentTimeMillis();
+        final long timeout = deadline.nextRequestTimeout();
+        if (timeout == Long.MAX_VALUE) {
+            boolean success = false;
+            try {
+                final List<EOProduct> products = query.execute();
+                success = true;
+                return products;
+            } finally {
+                throttle.release(success, System.currentTimeMillis() - start);
+            }
+        }
+        // The slot of the data source is released only when the request actually ends: a request that timed out may
+        // still be running (the blocking call is not always interruptible), and it still loads the data source until then
+        final AtomicBoolean started = new AtomicBoolean();
+        final Future<List<EOProduct>> future;
+        try {
+            future = requestExecutor.submit(() -> {
+                if (started.getAndSet(true)) {
+                    // cancelled before starting, the slot was already released
+                    return Collections.emptyList();
+                }
+                boolean success = false;
+                try {
+                    final List<EOProduct> products = query.execute();
+                    success = true;
+                    return products;
+                } finally {
+                    throttle.release(success, System.currentTimeMillis() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throttle.release(false, System.currentTimeMillis() - start);
+            throw new QueryException(String.format("Too many pending requests, data source %s was not queried", throttle.getName()));
+        }
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandon(future, started, throttle, start);
+            throw new QueryException(String.format("Request to data source %s timed out after %d seconds",
+                                                   throttle.getName(), timeout / 1000));
+        } catch (InterruptedException e) {
+            abandon(future, started, throttle, start);
+            Thread.currentThread().interrupt();
+            throw new QueryException(String.format("Interrupted while querying data source %s", throttle.getName()));
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new QueryException(cause != null ? cause.getMessage() : e.getMessage());
+        }
+    }
+
+    private void abandon(Future<?> future, AtomicBoolean started, DataSourceThrottle throttle, long start) {
+        future.cancel(true);
+        if (!started.getAndSet(true)) {
+            throttle.release(false, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Returns the query results cache (created on first use) or <code>null</code> if caching is disabled.
+     */
+    private synchronized QueryResultCache getQueryCache() {
+        if (!Config.getAsBoolean(ConfigurationKeys.DOWNLOADER_QUERY_CACHE_ENABLED, true)) {
+            return null;
+        }
+        final int size = Config.getAsInteger(ConfigurationKeys.DOWNLOADER_QUERY_CACHE_SIZE, 1000);
+        final Duration timeToLive = Duration.ofMinutes(Config.getAsInteger(ConfigurationKeys.DOWNLOADER_QUERY_CACHE_TTL, 60));
+        final Duration latency = Duration.ofHours(Config.getAsInteger(ConfigurationKeys.DOWNLOADER_QUERY_CACHE_LATENCY, 24));
+        if (this.queryCache == null) {
+            final String location = Config.getProperty("query.cache.location");
+            this.queryCache = new QueryResultCache(size, timeToLive, latency,
+                                                   location != null && !location.trim().isEmpty() ? Paths.get(location) : null);
+        } else {
+            this.queryCache.configure(size, timeToLive, latency);
+        }
+        return this.queryCache;
+    }
+
+    /**
+     * Executes the sub-queries using at most <code>parallelism</code> concurrent workers.
+     * A failed sub-query doesn't stop the others; after all of them have finished, the first failure is re-thrown.
+     * The pages are de-duplicated by product name (a product may span several tiles) before being passed to the handler.
+     */
+    private void executeConcurrently(short siteId, Satellite satellite, List<SubQuery> queries, int parallelism,
+                                     DataSourceThrottle throttle, Deadline deadline, QueryListener queryListener,
+                                     Consumer<List<EOProduct>> pageHandler) {
+        final Set<String> names = ConcurrentHashMap.newKeySet();
+        final Consumer<List<EOProduct>> deduplicatingHandler = page -> {
+            final List<EOProduct> newProducts = page.stream()
+                    .filter(p -> names.add(p.getName()))
+                    .collect(Collectors.toList());
+            if (newProducts.size() > 0) {
+                pageHandler.accept(newProducts);
+            }
+        };
+        final Queue<SubQuery> pending = new ConcurrentLinkedQueue<>(queries);
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        final List<Future<?>> workers = new ArrayList<>();
+        logger.fine(String.format("Executing %d sub-queries for {site id=%d,satellite=%s} with %d workers",
+                                  queries.size(), siteId, satellite.friendlyName(), parallelism));
+        for (int i = 0; i < parallelism; i++) {
+            workers.add(subQueryExecutor.submit(() -> {
+                SubQuery subQuery;
+                while ((subQuery = pending.poll()) != null) {
+                    try {
+                        executeSubQuery(siteId, satellite, subQuery, queries.size(), throttle, deadline, queryListener,
+                                        deduplicatingHandler);
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
             }
+        } catch (InterruptedException e) {
+            pending.clear();
+            workers.forEach(w -> w.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new QueryException(String.format("Query for {site id=%d,satellite=%s} was interrupted",
+                                                   siteId, satellite.friendlyName()));
+        } catch (ExecutionException e) {
+            failures.add(e.getCause());
+        }
+        final Throwable failure = failures.peek();
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
         }
     }
 
@@ -613,60 +927,216 @@ public class DownloadServiceImpl extends Notifiable implements DownloadService {
         Messaging.send(SystemPrincipal.instance(), ProcessingTopic.COMMAND.value(), message);
     }
 
-    private Tuple<Site, Satellite> getProductInfo(String productName) {
-        //Key<Site, Satellite> info = infoCache.get(productName);
-        Tuple<Site, Satellite> info = null;
-        //if (info == null) {
-            for (Map.Entry<Tuple<Short, Satellite>, List<DataSourceComponent>> entry : dwnSiteDataSources.entrySet()) {
-                for (DataSourceComponent component : entry.getValue()) {
-                    EOProduct currentProduct = component.getCurrentProduct();
-                    if (currentProduct != null && currentProduct.getName().equals(productName)) {
-                        Tuple<Short, Satellite> key = entry.getKey();
-                        Site site = persistenceManager.getSiteById(key.getKeyOne());
-                        if (site != null) {
-                            info = new Tuple<>(site, key.getKeyTwo());
-                        }
-                        break;
-                    }
+    /**
+     * Fetches the products using the strategy of the data source configuration: either by the data source component,
+     * or, if the segmented strategy is selected, by parallel range requests (for the products having an HTTP location
+     * from which the server delivers a zip archive).
+     */
+    private List<EOProduct> fetch(short siteId, DataSourceComponent component, List<EOProduct> products, Set<String> tiles,
+                                  String targetPath, DataSourceConfiguration configuration, Deadline deadline,
+                                  Map<String, Runnable> active) {
+        if (!SegmentedDownload.isSelected(configuration.getAdditionalSettings()) || !isRemoteFetch(configuration)) {
+            return fetchByComponent(siteId, component, products, tiles, targetPath, configuration);
+        }
+        final List<EOProduct> others = new ArrayList<>();
+        for (EOProduct product : products) {
+            final String location = product.getLocation();
+            if (location == null || !location.toLowerCase().startsWith("http")) {
+                others.add(product);
+                continue;
+            }
+            final SegmentedDownload download;
+            try {
+                download = SegmentedDownload.create(new URL(location), Paths.get(targetPath, product.getName() + ".zip"),
+                                                    configuration.getUser(), configuration.getPassword(),
+                                                    configuration.getAdditionalSettings());
+                // other files need the processing (extraction, naming) done by the data source plugin
+                if (!download.isArchive()) {
+                    others.add(product);
+                    continue;
+                }
+            } catch (IOException e) {
+                logger.fine(String.format("Product %s will be fetched by the data source [%s]", product.getName(), e.getMessage()));
+                others.add(product);
+                continue;
+            }
+            if (this.productStatusListener != null && !this.productStatusListener.downloadStarted(product)) {
+                continue;
+            }
+            // the download is bound by the time budget of the request, or else by the timeout of a download action
+            download.setDeadline(System.currentTimeMillis() +
+                                 (deadline != null && deadline.isBounded()
+                                         ? deadline.remaining()
+                                         : TimeUnit.SECONDS.toMillis(Long.parseLong(Config.getSetting(ConfigurationKeys.DOWNLOADER_ACTION_TIMEOUT, "9000")))));
+            download.setProgressListener(progress -> downloadsInProgress.update(product.getName(), progress));
+            download.setBandwidth(BandwidthShaper.stream(configuration, siteId));
+            active.put(product.getName(), download::cancel);
+            segmentedDownloads.put(download, new Tuple<>(siteId, configuration.getSatellite()));
+            downloadsInProgress.started(product.getName());
+            try {
+                final Path file = download.execute();
+                product.setLocation(file.toUri().toString());
+                product.setProductStatus(ProductStatus.DOWNLOADED);
+                if (this.productStatusListener != null) {
+                    this.productStatusListener.downloadCompleted(product);
+                }
+            } catch (IOException e) {
+                logger.warning(String.format("Segmented download of %s failed [%s]", product.getName(), e.getMessage()));
+                product.setLocation(location);
+                product.setProductStatus(ProductStatus.FAILED);
+                if (this.productStatusListener != null) {
+                    this.productStatusListener.downloadFailed(product, e.getMessage());
+                }
+            } finally {
+                active.remove(product.getName());
+                segmentedDownloads.remove(download);
+            }
+        }
+        if (!others.isEmpty()) {
+            fetchByComponent(siteId, component, others, tiles, targetPath, configuration);
+        }
+        return products;
+    }
+
+    /**
+     * Fetches the products by the data source component. Since the component performs the transfer, the bandwidth
+     * is shaped by the approximate size of the products, settled after the fetch with their actual size.
+     */
+    private List<EOProduct> fetchByComponent(short siteId, DataSourceComponent component, List<EOProduct> products,
+                                             Set<String> tiles, String targetPath, DataSourceConfiguration configuration) {
+        final long acquired = acquireBandwidth(configuration, siteId, products);
+        List<EOProduct> results = null;
+        try {
+            results = component.doFetch(products, tiles, targetPath,
+                                        configuration.getLocalArchivePath(), configuration.getAdditionalSettings());
+            return results;
+        } finally {
+            releaseBandwidth(configuration, siteId, acquired, results != null ? results : products);
+        }
+    }
+
+    /**
+     * Waits for the bandwidth needed by the given products, if they are fetched from the remote data source
+     * (and not from a local archive).
+     * @return The number of bytes acquired
+     */
+    private long acquireBandwidth(DataSourceConfiguration configuration, short siteId, List<EOProduct> products) {
+        if (!isRemoteFetch(configuration)) {
+            return 0;
+        }
+        final long bytes = products.stream().mapToLong(EOProduct::getApproximateSize).filter(s -> s > 0).sum();
+        try {
+            BandwidthShaper.acquire(configuration, siteId, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Download interrupted while waiting for bandwidth");
+        }
+        return bytes;
+    }
+
+    /**
+     * Records the size of the fetched products, the difference to the acquired bandwidth being taken from (or given
+     * back to) the bandwidth buckets.
+     */
+    private void releaseBandwidth(DataSourceConfiguration configuration, short siteId, long acquired, List<EOProduct> products) {
+        if (isRemoteFetch(configuration)) {
+            BandwidthShaper.completed(configuration, siteId, acquired,
+                                      products.stream().filter(p -> p.getProductStatus() == ProductStatus.DOWNLOADED)
+                                              .mapToLong(this::sizeOnDisk).sum());
+        }
+    }
+
+    /**
+     * Returns the size of a fetched product (the size of its file or the total size of its folder).
+     * If it cannot be determined, the approximate size of the product is returned instead.
+     */
+    private long sizeOnDisk(EOProduct product) {
+        try {
+            final String location = product.getLocation();
+            final Path path = location.startsWith("file:") ? Paths.get(URI.create(location)) : Paths.get(location);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.walk(path)) {
+                    return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
                 }
             }
-        //}
-        return info;
+            return Files.size(path);
+        } catch (Exception e) {
+            return Math.max(0, product.getApproximateSize());
+        }
+    }
+
+    private boolean isRemoteFetch(DataSourceConfiguration configuration) {
+        final FetchMode fetchMode = configuration.getFetchMode();
+        return fetchMode != FetchMode.SYMLINK && fetchMode != FetchMode.COPY && fetchMode != FetchMode.CHECK;
+    }
+
+    /**
+     * Cancels the downloads of a site (of all sites if <code>siteId</code> is 0), optionally restricted to a satellite.
+     */
+    private void cancelDownloads(short siteId, Satellite satellite) {
+        downloadComponents.forEachLeased(siteId, satellite, this::cancel);
+        segmentedDownloads.forEach((download, key) -> {
+            if ((siteId <= 0 || siteId == key.getKeyOne()) && (satellite == null || satellite == key.getKeyTwo())) {
+                download.cancel();
+            }
+        });
     }
 
-    private DataSourceComponent getDataSourceComponent(short siteId, DataSourceConfiguration configuration, boolean isDwn) {
-        return getDataSourceComponent(siteId, configuration.getUser(), configuration.getPassword(), configuration, isDwn);
+    private void cancel(DataSourceComponent component) {
+        component.cancel();
+        final EOProduct product = component.getCurrentProduct();
+        if (product != null) {
+            downloadsInProgress.remove(product.getName(), true);
+        }
     }
 
-    private DataSourceComponent getDataSourceComponent(short siteId, String user, String password, DataSourceConfiguration configuration, boolean isDwn) {
+    /**
+     * Leases a component from the query or download pool. The component has to be released after use.
+     * Returns <code>null</code> if the downloader is disabled for the satellite of the configuration.
+     */
+    private DataSourceComponent leaseDataSourceComponent(short siteId, String user, String password,
+                                                         DataSourceConfiguration configuration, boolean isDwn) {
         final Satellite satellite = configuration.getSatellite();
         boolean dwnEnabled = Config.getAsBoolean(siteId, String.format(ConfigurationKeys.DOWNLOADER_SENSOR_ENABLED,
                                                                        satellite.friendlyName().toLowerCase()), true);
         if (!dwnEnabled) {
             return null;
         }
+        final DataSourceComponentPool pool = isDwn ? downloadComponents : queryComponents;
+        final DataSourceComponent dataSourceComponent =
+                pool.lease(new DataSourceComponentPool.Key(siteId, satellite, configuration.getDataSourceName(), user),
+                           configuration.getMaxConnections(),
+                           () -> {
+                               final DataSourceComponent component = new DataSourceComponent(satellite.name(),
+                                                                                             configuration.getDataSourceName());
+                               component.setUserCredentials(user, password);
+                               return component;
+                           });
+        if (isDwn) {
+            // the settings may have changed since the component was created
+            dataSourceComponent.setProductStatusListener(this.productStatusListener);
+            dataSourceComponent.setFetchMode(configuration.getFetchMode());
+            dataSourceComponent.setMaxRetries(configuration.getMaxRetries());
+        }
+        return dataSourceComponent;
+    }
 
-        final Map<Tuple<Short, Satellite>, List<DataSourceComponent>> siteDataSources = isDwn ? dwnSiteDataSources : querySiteDataSources;
-        synchronized (this.dwnSiteDataSources) {
-            final Tuple<Short, Satellite> key = new Tuple<>(siteId, satellite);
-            siteDataSources.computeIfAbsent(key, k -> new ArrayList<>());
-            final List<DataSourceComponent> dataSourceComponents = siteDataSources.get(key);
-            DataSourceComponent  dataSourceComponent = dataSourceComponents.stream()
-                                                            .filter(c -> c.getSensorName().equals(satellite.name()) &&
-                                                                         c.getDataSourceName().equals(configuration.getDataSourceName()) &&
-                                                                         (user == null ? c.getUserName() == null : user.equals(c.getUserName())))
-                                                            .findFirst().orElse(null);
-            if (dataSourceComponent == null) {
-                dataSourceComponent = new DataSourceComponent(satellite.name(), configuration.getDataSourceName());
-                siteDataSources.get(key).add(dataSourceComponent);
-                dataSourceComponent.setUserCredentials(user, password);
-                if (isDwn) {
-                    dataSourceComponent.setProductStatusListener(this.productStatusListener);
-                    dataSourceComponent.setFetchMode(configuration.getFetchMode());
-                    dataSourceComponent.setMaxRetries(configuration.getMaxRetries());
-                }
-            }
-            return dataSourceComponent;
+    private static final class SubQuery {
+        private final int index;
+        private final Query query;
+        private final DataQuery dataQuery;
+        private final String cacheKey;
+        private final Tuple<LocalDateTime, LocalDateTime> window;
+        private final PreparedGeometry footprint;
+
+        private SubQuery(int index, Query query, DataQuery dataQuery,
+                         String cacheKey, Tuple<LocalDateTime, LocalDateTime> window, PreparedGeometry footprint) {
+            this.index = index;
+            this.query = query;
+            this.dataQuery = dataQuery;
+            this.cacheKey = cacheKey;
+            this.window = window;
+            this.footprint = footprint;
         }
     }
 }
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.services.internal;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.esa.sen2agri.commons.Constants;
+import org.esa.sen2agri.entities.enums.Satellite;
+import org.esa.sen2agri.web.beans.Query;
+import ro.cs.tao.Tuple;
+import ro.cs.tao.datasource.param.CommonParameterNames;
+import ro.cs.tao.eodata.Polygon2D;
+import ro.cs.tao.utils.ExceptionUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only journal of the failed queries of a site.
+ * Each line of the journal is either a failure record (which also holds the query) or a completion record.
+ * The entries are keyed by satellite, the non-temporal query parameters and the time window.
+ * When the journal holds too many obsolete records, it is rewritten with only the pending entries.
+ * A failed entry is retried after an exponentially increasing delay, and due entries having overlapping windows
+ * are merged into a single query.
+ *
+ * @author Cosmin Cara
+ */
+class FailedQueryJournal {
+    static final String JOURNAL_FILE = "failed_queries.journal";
+    private static final String FAILED = "F";
+    private static final String COMPLETED = "C";
+    private static final Duration MAX_DELAY = Duration.ofHours(24);
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(Constants.FULL_DATE_FORMAT);
+    private static final Map<Path, FailedQueryJournal> journals = new HashMap<>();
+
+    private final Path file;
+    private final Map<String, Record> entries;
+    private final ObjectMapper objectMapper;
+    private final Logger logger;
+    private int recordCount;
+
+    /**
+     * Returns the journal located in the given folder. Legacy (one file per query) entries found in the folder
+     * are imported into the journal.
+     */
+    static FailedQueryJournal open(Path folder) {
+        synchronized (journals) {
+            return journals.computeIfAbsent(folder.toAbsolutePath(), FailedQueryJournal::new);
+        }
+    }
+
+    private FailedQueryJournal(Path folder) {
+        this.file = folder.resolve(JOURNAL_FILE);
+        this.entries = new LinkedHashMap<>();
+        this.objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.logger = Logger.getLogger(FailedQueryJournal.class.getName());
+        load();
+        importLegacyFiles(folder);
+    }
+
+    /**
+     * Records the failure of a query. Pending entries overlapping the window of the query are merged into
+     * a single entry, whose retry is delayed exponentially with the number of attempts.
+     * @param satellite The satellite
+     * @param query     The query
+     * @param baseDelay The delay before the first retry
+     */
+    synchronized void recordFailure(Satellite satellite, Query query, Duration baseDelay) {
+        final Record record = toRecord(satellite, query);
+        int attempts = 0;
+        final Iterator<Record> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Record existing = iterator.next();
+            if (existing.isSameQuery(record) && existing.overlaps(record)) {
+                attempts = Math.max(attempts, existing.attempts);
+                if (existing.start != null && existing.start.compareTo(record.start) < 0) {
+                    record.start = existing.start;
+                }
+                if (existing.end != null && existing.end.compareTo(record.end) > 0) {
+                    record.end = existing.end;
+                }
+                iterator.remove();
+                append(completion(existing));
+            }
+        }
+        record.attempts = attempts + 1;
+        long delay = baseDelay.toMillis() << Math.min(record.attempts - 1, 16);
+        if (delay <= 0 || delay > MAX_DELAY.toMillis()) {
+            delay = MAX_DELAY.toMillis();
+        }
+        record.nextAttempt = System.currentTimeMillis() + delay;
+        record.query = copyOf(query, record.start, record.end);
+        prepareForStorage(record.query);
+        this.entries.put(record.key(), record);
+        append(record);
+        compactIfNeeded();
+    }
+
+    /**
+     * Records the completion of a query. All the pending entries whose window is covered by the query
+     * window are removed.
+     */
+    synchronized void recordSuccess(Satellite satellite, Query query) {
+        final Record completed = toRecord(satellite, query);
+        final Iterator<Record> iterator = this.entries.values().iterator();
+        boolean changed = false;
+        while (iterator.hasNext()) {
+            final Record existing = iterator.next();
+            if (existing.isSameQuery(completed) && completed.covers(existing)) {
+                iterator.remove();
+                append(completion(existing));
+                changed = true;
+            }
+        }
+        if (changed) {
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Returns the queries of the given satellite that are due for retry.
+     * The due entries having the same parameters and overlapping (or adjacent) windows are merged.
+     */
+    synchronized List<Query> due(Satellite satellite) {
+        final long now = System.currentTimeMillis();
+        final Map<String, List<Record>> groups = this.entries.values().stream()
+                .filter(r -> r.satellite.equals(satellite.name()) && r.nextAttempt <= now)
+                .collect(Collectors.groupingBy(r -> r.parameters, LinkedHashMap::new, Collectors.toList()));
+        final List<Query> queries = new ArrayList<>();
+        for (List<Record> group : groups.values()) {
+            group.sort(Comparator.comparing(r -> r.start != null ? r.start : ""));
+            Record current = null;
+            LocalDateTime currentEnd = null;
+            for (Record record : group) {
+                if (record.start == null || record.end == null) {
+                    queries.add(restore(copyOf(record.query, null, null)));
+                    continue;
+                }
+                final LocalDateTime start = parse(record.start);
+                final LocalDateTime end = parse(record.end);
+                if (current != null && !start.isAfter(currentEnd.plusSeconds(1))) {
+                    if (end.isAfter(currentEnd)) {
+                        currentEnd = end;
+                    }
+                } else {
+                    if (current != null) {
+                        queries.add(restore(QueryResultCache.withWindow(current.query, parse(current.start), currentEnd)));
+                    }
+                    current = record;
+                    currentEnd = end;
+                }
+            }
+            if (current != null) {
+                queries.add(restore(QueryResultCache.withWindow(current.query, parse(current.start), currentEnd)));
+            }
+        }
+        return queries;
+    }
+
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    private Record toRecord(Satellite satellite, Query query) {
+        final Record record = new Record();
+        record.type = FAILED;
+        record.satellite = satellite.name();
+        record.parameters = QueryResultCache.parametersOf(query);
+        final Tuple<LocalDateTime, LocalDateTime> window = QueryResultCache.windowOf(query);
+        if (window != null) {
+            record.start = window.getKeyOne().format(formatter);
+            record.end = window.getKeyTwo().format(formatter);
+        }
+        return record;
+    }
+
+    private Record completion(Record record) {
+        final Record completion = new Record();
+        completion.type = COMPLETED;
+        completion.satellite = record.satellite;
+        completion.parameters = record.parameters;
+        completion.start = record.start;
+        completion.end = record.end;
+        return completion;
+    }
+
+    private void prepareForStorage(Query query) {
+        final Object footprint = query.getValues().get(CommonParameterNames.FOOTPRINT);
+        if (footprint instanceof Polygon2D) {
+            query.getValues().put(CommonParameterNames.FOOTPRINT, ((Polygon2D) footprint).toWKT());
+        }
+        query.setUser(null);
+        query.setPassword(null);
+    }
+
+    /**
+     * Converts back the parameters altered for storage.
+     */
+    private Query restore(Query query) {
+        query.getValues().computeIfPresent(CommonParameterNames.FOOTPRINT,
+                                           (k, v) -> v instanceof String ? Polygon2D.fromWKT((String) v) : v);
+        return query;
+    }
+
+    /**
+     * Creates a copy of the query, restricted to the given window (if any).
+     */
+    private Query copyOf(Query query, String start, String end) {
+        if (start != null && end != null) {
+            return QueryResultCache.withWindow(query, parse(start), parse(end));
+        }
+        final Query copy = new Query();
+        copy.setValues(new HashMap<>(query.getValues()));
+        return copy;
+    }
+
+    private LocalDateTime parse(String value) {
+        return value != null ? LocalDateTime.parse(value, formatter) : null;
+    }
+
+    private void load() {
+        if (!Files.exists(this.file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(this.file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                this.recordCount++;
+                try {
+                    final Record record = this.objectMapper.readerFor(Record.class).readValue(line);
+                    if (FAILED.equals(record.type)) {
+                        this.entries.put(record.key(), record);
+                    } else {
+                        this.entries.remove(record.key());
+                    }
+                } catch (IOException e) {
+                    // a partially written (last) line is ignored
+                    logger.warning(String.format("Invalid record in journal %s [%s]", this.file, e.getMessage()));
+                }
+            }
+        } catch (IOException e) {
+            logger.severe(ExceptionUtils.getStackTrace(logger, e));
+        }
+        compactIfNeeded();
+    }
+
+    private void importLegacyFiles(Path folder) {
+        final List<Path> files;
+        try (Stream<Path> stream = Files.list(folder)) {
+            files = stream.filter(f -> f.getFileName().toString().endsWith(".json")).collect(Collectors.toList());
+        } catch (IOException e) {
+            return;
+        }
+        int imported = 0;
+        for (Path legacy : files) {
+            try {
+                final String[] tokens = legacy.getFileName().toString().split("_");
+                if (tokens.length == 4) { // siteId_satellite_startDate_endDate.json
+                    final Query query = this.objectMapper.readerFor(Query.class).readValue(Files.readAllBytes(legacy));
+                    final Record record = toRecord(Satellite.valueOf(tokens[1]), query);
+                    record.attempts = 1;
+                    record.nextAttempt = Files.getLastModifiedTime(legacy).toMillis() + Duration.ofHours(1).toMillis();
+                    record.query = query;
+                    prepareForStorage(query);
+                    this.entries.put(record.key(), record);
+                    // the legacy file is kept until its query is in the journal
+                    if (append(record)) {
+                        Files.delete(legacy);
+                        imported++;
+                    }
+                }
+            } catch (Exception e) {
+                logger.warning(String.format("Cannot import failed query file %s [%s]", legacy, e.getMessage()));
+            }
+        }
+        if (imported > 0) {
+            logger.info(String.format("Imported %d failed query files into %s", imported, this.file));
+        }
+    }
+
+    /**
+     * Appends a record to the journal, returning <code>true</code> if it was written.
+     */
+    private boolean append(Record record) {
+        try (BufferedWriter writer = Files.newBufferedWriter(this.file, StandardCharsets.UTF_8,
+                                                             StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(this.objectMapper.writeValueAsString(record));
+            writer.newLine();
+            this.recordCount++;
+            return true;
+        } catch (IOException e) {
+            logger.severe(ExceptionUtils.getStackTrace(logger, e));
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the pending entries, if the obsolete records outnumber them.
+     */
+    private void compactIfNeeded() {
+        if (this.recordCount <= 2 * this.entries.size() + 64) {
+            return;
+        }
+        final Path temp = this.file.resolveSibling(JOURNAL_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Record record : this.entries.values()) {
+                writer.write(this.objectMapper.writeValueAsString(record));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            logger.severe(ExceptionUtils.getStackTrace(logger, e));
+            return;
+        }
+        try {
+            Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.fine(String.format("Journal %s compacted (%d records -> %d)",
+                                      this.file, this.recordCount, this.entries.size()));
+            this.recordCount = this.entries.size();
+        } catch (IOException e) {
+            logger.severe(ExceptionUtils.getStackTrace(logger, e));
+        }
+    }
+
+    /**
+     * A line of the journal. Public members, for (de)serialization.
+     */
+    public static class Record {
+        public String type;
+        public String satellite;
+        public String parameters;
+        public String start;
+        public String end;
+        public int attempts;
+        public long nextAttempt;
+        public Query query;
+
+        String key() {
+            return satellite + "|" + parameters + "|" + start + "|" + end;
+        }
+
+        boolean isSameQuery(Record other) {
+            return satellite.equals(other.satellite) && parameters.equals(other.parameters);
+        }
+
+        boolean overlaps(Record other) {
+            if (start == null || end == null || other.start == null || other.end == null) {
+                return Objects.equals(start, other.start) && Objects.equals(end, other.end);
+            }
+            return start.compareTo(other.end) <= 0 && other.start.compareTo(end) <= 0;
+        }
+
+        boolean covers(Record other) {
+            if (start == null || end == null || other.start == null || other.end == null) {
+                return Objects.equals(start, other.start) && Objects.equals(end, other.end);
+            }
+            return start.compareTo(other.start) <= 0 && end.compareTo(other.end) >= 0;
+        }
+    }
+}
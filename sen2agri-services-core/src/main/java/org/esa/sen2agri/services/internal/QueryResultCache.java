@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.services.internal;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.esa.sen2agri.commons.Constants;
+import org.esa.sen2agri.entities.enums.Satellite;
+import org.esa.sen2agri.web.beans.Query;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.io.WKTReader;
+import ro.cs.tao.Tuple;
+import ro.cs.tao.datasource.param.CommonParameterNames;
+import ro.cs.tao.eodata.EOProduct;
+import ro.cs.tao.eodata.Polygon2D;
+import ro.cs.tao.utils.ExceptionUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Cache of query results, keyed by data source, satellite and the non-temporal query parameters (tile, footprint,
+ * product type, etc.). The queries of a single tile are keyed without their footprint: they are executed for the whole
+ * tile, and their results are shared by all the sites covering the tile (each site keeping the products intersecting
+ * its footprint).
+ * For each key, the cache holds the time windows already queried, each with its own results. The overlapping or
+ * adjacent windows are merged, and only the most recent windows are kept (at most 50 per key).
+ * A lookup for a window returns the cached products and the parts of the window that are not (or no longer) covered,
+ * so that only these have to be queried remotely.
+ * The products of the recent acquisitions may still be published by the data source: the part of a window closer
+ * to the present than the ingestion latency is not cached, and is always queried remotely.
+ * If a location is given, each key is also persisted in its own file, hence the cache survives restarts.
+ *
+ * @author Cosmin Cara
+ */
+class QueryResultCache {
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(Constants.FULL_DATE_FORMAT);
+    private static final int MAX_WINDOWS = 50;
+    private final Map<String, CacheEntry> entries;
+    private final Path location;
+    private final ObjectMapper objectMapper;
+    private final Logger logger;
+    private volatile int maxEntries;
+    private volatile Duration timeToLive;
+    private volatile Duration latency;
+
+    QueryResultCache(int maxEntries, Duration timeToLive, Duration latency, Path location) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.latency = latency;
+        this.location = location;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > QueryResultCache.this.maxEntries;
+            }
+        };
+        this.objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.logger = Logger.getLogger(QueryResultCache.class.getName());
+    }
+
+    void configure(int maxEntries, Duration timeToLive, Duration latency) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.latency = latency;
+    }
+
+    /**
+     * Computes the cache key of a query. The date parameters are not part of the key.
+     */
+    static String keyOf(String dataSourceName, Satellite satellite, Query query) {
+        return dataSourceName + "|" + satellite.name() + parametersOf(query, !isTileQuery(query));
+    }
+
+    /**
+     * Returns a textual representation of the non-temporal parameters of a query.
+     */
+    static String parametersOf(Query query) {
+        return parametersOf(query, true);
+    }
+
+    private static String parametersOf(Query query, boolean withFootprint) {
+        final StringBuilder builder = new StringBuilder();
+        final Map<String, Object> values = new TreeMap<>(query.getValues());
+        values.remove(CommonParameterNames.START_DATE);
+        values.remove(CommonParameterNames.END_DATE);
+        if (!withFootprint) {
+            values.remove(CommonParameterNames.FOOTPRINT);
+        }
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            final Object value = entry.getValue();
+            final String stringValue;
+            if (value instanceof Polygon2D) {
+                stringValue = ((Polygon2D) value).toWKT();
+            } else if (value instanceof Object[]) {
+                stringValue = Arrays.toString((Object[]) value);
+            } else {
+                stringValue = String.valueOf(value);
+            }
+            builder.append("|").append(entry.getKey()).append("=").append(stringValue);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Checks if the query is restricted to a single tile.
+     */
+    static boolean isTileQuery(Query query) {
+        final Object tile = query.getValues().get(CommonParameterNames.TILE);
+        if (!(tile instanceof String)) {
+            return false;
+        }
+        final String value = ((String) tile).trim();
+        return !value.isEmpty() && !value.startsWith("[") && !value.contains(",");
+    }
+
+    /**
+     * Creates a copy of the query, without footprint.
+     */
+    static Query withoutFootprint(Query query) {
+        final Query copy = new Query();
+        copy.setUser(query.getUser());
+        copy.setPassword(query.getPassword());
+        final Map<String, Object> values = new HashMap<>(query.getValues());
+        values.remove(CommonParameterNames.FOOTPRINT);
+        copy.setValues(values);
+        return copy;
+    }
+
+    /**
+     * Returns the footprint of the query or <code>null</code> if the query has no (valid) footprint.
+     */
+    static PreparedGeometry footprintOf(Query query) {
+        final Object value = query.getValues().get(CommonParameterNames.FOOTPRINT);
+        if (value == null) {
+            return null;
+        }
+        try {
+            final String wkt = value instanceof Polygon2D ? ((Polygon2D) value).toWKT() : String.valueOf(value);
+            return PreparedGeometryFactory.prepare(new WKTReader().read(wkt));
+        } catch (Exception e) {
+            Logger.getLogger(QueryResultCache.class.getName())
+                    .warning(String.format("Invalid query footprint [%s]", e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Returns the products intersecting the given footprint. The products without a valid footprint are kept,
+     * they are checked by the caller.
+     */
+    static List<EOProduct> intersecting(List<EOProduct> products, PreparedGeometry footprint) {
+        if (footprint == null) {
+            return products;
+        }
+        final WKTReader reader = new WKTReader();
+        final List<EOProduct> results = new ArrayList<>(products.size());
+        for (EOProduct product : products) {
+            final String geometry = product.getGeometry();
+            try {
+                if (geometry == null || footprint.intersects(reader.read(geometry))) {
+                    results.add(product);
+                }
+            } catch (Exception e) {
+                results.add(product);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the time window of the query or <code>null</code> if the query is not bound in time.
+     */
+    static Tuple<LocalDateTime, LocalDateTime> windowOf(Query query) {
+        final Map<String, Object> values = query.getValues();
+        final String start = dateValue(values.get(CommonParameterNames.START_DATE), 0);
+        final String end = dateValue(values.get(CommonParameterNames.END_DATE), 1);
+        if (start == null || end == null) {
+            return null;
+        }
+        try {
+            return new Tuple<>(LocalDateTime.parse(start, formatter), LocalDateTime.parse(end, formatter));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a copy of the query, restricted to the given time window.
+     */
+    static Query withWindow(Query query, LocalDateTime start, LocalDateTime end) {
+        final Query copy = new Query();
+        copy.setUser(query.getUser());
+        copy.setPassword(query.getPassword());
+        final Map<String, Object> values = new HashMap<>(query.getValues());
+        final String startDate = start.format(formatter);
+        final String endDate = end.format(formatter);
+        // Some data sources expect the dates as intervals
+        if (isInterval(values.get(CommonParameterNames.START_DATE))) {
+            values.put(CommonParameterNames.START_DATE, new String[] { startDate, endDate });
+        } else {
+            values.put(CommonParameterNames.START_DATE, startDate);
+        }
+        if (isInterval(values.get(CommonParameterNames.END_DATE))) {
+            values.put(CommonParameterNames.END_DATE, new String[] { startDate, endDate });
+        } else {
+            values.put(CommonParameterNames.END_DATE, endDate);
+        }
+        copy.setValues(values);
+        return copy;
+    }
+
+    /**
+     * Looks up the given window.
+     * @param key   The query key
+     * @param start The start of the window
+     * @param end   The end of the window
+     * @return  A tuple of the cached products acquired in the window and of the (sorted) uncovered sub-windows
+     */
+    Tuple<List<EOProduct>, List<Tuple<LocalDateTime, LocalDateTime>>> lookup(String key, LocalDateTime start, LocalDateTime end) {
+        final List<EOProduct> products = new ArrayList<>();
+        final List<Tuple<LocalDateTime, LocalDateTime>> gaps = new ArrayList<>();
+        final CacheEntry entry = getEntry(key);
+        if (entry == null) {
+            gaps.add(new Tuple<>(start, end));
+            return new Tuple<>(products, gaps);
+        }
+        final Set<String> names = new HashSet<>();
+        final long startMillis = start.toInstant(ZoneOffset.UTC).toEpochMilli();
+        final long endMillis = end.toInstant(ZoneOffset.UTC).toEpochMilli();
+        LocalDateTime cursor = start;
+        synchronized (entry) {
+            entry.expire(this.timeToLive);
+            for (CachedWindow window : entry.windows) {
+                final LocalDateTime windowStart = LocalDateTime.parse(window.start, formatter);
+                final LocalDateTime windowEnd = LocalDateTime.parse(window.end, formatter);
+                if (windowEnd.isBefore(cursor) || windowStart.isAfter(end)) {
+                    continue;
+                }
+                if (windowStart.isAfter(cursor)) {
+                    gaps.add(new Tuple<>(cursor, windowStart.minusSeconds(1)));
+                }
+                if (windowEnd.isAfter(cursor) || windowEnd.isEqual(cursor)) {
+                    cursor = windowEnd.plusSeconds(1);
+                }
+                for (EOProduct product : window.products) {
+                    final Date date = product.getAcquisitionDate();
+                    if (date != null && date.getTime() >= startMillis && date.getTime() <= endMillis
+                            && names.add(product.getName())) {
+                        products.add(product);
+                    }
+                }
+            }
+        }
+        if (!cursor.isAfter(end)) {
+            gaps.add(new Tuple<>(cursor, end));
+        }
+        return new Tuple<>(products, gaps);
+    }
+
+    /**
+     * Records the results of a successful query for the given window. Only the part of the window older than the
+     * ingestion latency is recorded.
+     */
+    void store(String key, LocalDateTime start, LocalDateTime end, List<EOProduct> products) {
+        // the query windows are computed from the local clock
+        final LocalDateTime limit = LocalDateTime.now().minus(this.latency);
+        if (start.isAfter(limit)) {
+            return;
+        }
+        if (end.isAfter(limit)) {
+            final long limitMillis = limit.toInstant(ZoneOffset.UTC).toEpochMilli();
+            end = limit;
+            products = products.stream()
+                               .filter(p -> p.getAcquisitionDate() != null && p.getAcquisitionDate().getTime() <= limitMillis)
+                               .collect(Collectors.toList());
+        }
+        CacheEntry entry;
+        synchronized (this.entries) {
+            entry = getEntry(key);
+            if (entry == null) {
+                entry = new CacheEntry();
+                entry.key = key;
+                this.entries.put(key, entry);
+            }
+        }
+        final CachedWindow window = new CachedWindow();
+        window.start = start.format(formatter);
+        window.end = end.format(formatter);
+        window.created = System.currentTimeMillis();
+        window.products = new ArrayList<>(products);
+        synchronized (entry) {
+            entry.expire(this.timeToLive);
+            entry.windows.add(window);
+            entry.windows.sort(Comparator.comparing(w -> w.start));
+            entry.merge();
+            persist(entry);
+        }
+    }
+
+    void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    private CacheEntry getEntry(String key) {
+        synchronized (this.entries) {
+            CacheEntry entry = this.entries.get(key);
+            if (entry == null && this.location != null) {
+                entry = load(key);
+                if (entry != null) {
+                    this.entries.put(key, entry);
+                }
+            }
+            return entry;
+        }
+    }
+
+    private Path fileOf(String key) {
+        return this.location.resolve(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString() + ".json");
+    }
+
+    private CacheEntry load(String key) {
+        final Path file = fileOf(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            final CacheEntry entry = this.objectMapper.readerFor(CacheEntry.class).readValue(Files.readAllBytes(file));
+            // guard against (unlikely) name collisions
+            if (!key.equals(entry.key)) {
+                return null;
+            }
+            entry.expire(this.timeToLive);
+            if (entry.windows.isEmpty()) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+            return entry;
+        } catch (Exception e) {
+            logger.warning(String.format("Cannot read cached query results from '%s' [%s]", file, e.getMessage()));
+            return null;
+        }
+    }
+
+    private void persist(CacheEntry entry) {
+        if (this.location == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(this.location);
+            final Path file = fileOf(entry.key);
+            final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, this.objectMapper.writeValueAsBytes(entry));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            logger.warning(ExceptionUtils.getStackTrace(logger, e));
+        }
+    }
+
+    private static boolean isInterval(Object value) {
+        return value instanceof String[] || (value != null && List.class.isAssignableFrom(value.getClass()));
+    }
+
+    private static String dateValue(Object value, int index) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof String[]) {
+            return ((String[]) value)[index];
+        } else if (List.class.isAssignableFrom(value.getClass())) {
+            return String.valueOf(((List<?>) value).get(index));
+        } else {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * The cached windows of a query key. Public members, for (de)serialization.
+     */
+    public static class CacheEntry {
+        public String key;
+        public List<CachedWindow> windows = new ArrayList<>();
+
+        void expire(Duration timeToLive) {
+            final long limit = System.currentTimeMillis() - timeToLive.toMillis();
+            this.windows.removeIf(w -> w.created < limit);
+        }
+
+        /**
+         * Merges the overlapping or adjacent (sorted) windows and drops the oldest windows above MAX_WINDOWS.
+         * A merged window expires with the oldest of its parts.
+         */
+        void merge() {
+            final List<CachedWindow> merged = new ArrayList<>();
+            CachedWindow current = null;
+            LocalDateTime currentEnd = null;
+            for (CachedWindow window : this.windows) {
+                final LocalDateTime start = LocalDateTime.parse(window.start, formatter);
+                final LocalDateTime end = LocalDateTime.parse(window.end, formatter);
+                if (current != null && !start.isAfter(currentEnd.plusSeconds(1))) {
+                    final Set<String> names = new HashSet<>();
+                    current.products.forEach(p -> names.add(p.getName()));
+                    for (EOProduct product : window.products) {
+                        if (names.add(product.getName())) {
+                            current.products.add(product);
+                        }
+                    }
+                    if (end.isAfter(currentEnd)) {
+                        currentEnd = end;
+                        current.end = window.end;
+                    }
+                    current.created = Math.min(current.created, window.created);
+                } else {
+                    current = new CachedWindow();
+                    current.start = window.start;
+                    current.end = window.end;
+                    current.created = window.created;
+                    current.products = new ArrayList<>(window.products);
+                    currentEnd = end;
+                    merged.add(current);
+                }
+            }
+            if (merged.size() > MAX_WINDOWS) {
+                merged.sort(Comparator.comparingLong((CachedWindow w) -> w.created).reversed());
+                merged.subList(MAX_WINDOWS, merged.size()).clear();
+                merged.sort(Comparator.comparing(w -> w.start));
+            }
+            this.windows = merged;
+        }
+    }
+
+    public static class CachedWindow {
+        public String start;
+        public String end;
+        public long created;
+        public List<EOProduct> products;
+    }
+}
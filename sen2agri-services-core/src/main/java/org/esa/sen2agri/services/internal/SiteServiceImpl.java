@@ -15,6 +15,7 @@
  */
 package org.esa.sen2agri.services.internal;
 
+import org.esa.sen2agri.commons.SiteGeometry;
 import org.esa.sen2agri.db.PersistenceManager;
 import org.esa.sen2agri.entities.DownloadProduct;
 import org.esa.sen2agri.entities.HighLevelProduct;
@@ -94,6 +95,8 @@ public class SiteServiceImpl implements SiteService {
         }
 
         persistenceManager.deleteSite(siteId);
+        // the extents of the existing sites are refreshed when they change, but a deleted site is never looked up again
+        SiteGeometry.invalidate(siteId);
         //Config.siteDeleted(siteId);
         //scheduleManager.refresh();
     }
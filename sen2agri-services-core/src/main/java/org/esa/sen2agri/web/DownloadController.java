@@ -15,17 +15,24 @@
  */
 package org.esa.sen2agri.web;
 
+import org.esa.sen2agri.commons.BandwidthShaper;
+import org.esa.sen2agri.commons.DataSourceThrottle;
+import org.esa.sen2agri.commons.DownloadQueue;
 import org.esa.sen2agri.commons.DownloadProgress;
+import org.esa.sen2agri.commons.ProgressEvent;
 import org.esa.sen2agri.entities.enums.Satellite;
 import org.esa.sen2agri.services.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import ro.cs.tao.datasource.DataQuery;
 import ro.cs.tao.datasource.DataSourceComponent;
 import ro.cs.tao.datasource.param.CommonParameterNames;
@@ -35,6 +42,7 @@ import ro.cs.tao.eodata.Polygon2D;
 import ro.cs.tao.services.commons.ControllerBase;
 import ro.cs.tao.services.commons.ServiceResponse;
 
+import java.io.IOException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -42,6 +50,14 @@ import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * @author Cosmin Cara
@@ -49,6 +65,24 @@ import java.util.List;
 @Controller
 @RequestMapping("/downloader")
 public class DownloadController extends ControllerBase {
+    /** Duration (in milliseconds) of an event stream, after which the client has to reconnect */
+    private static final long EVENT_STREAM_TIMEOUT = 1800000L;
+    /** Number of events waiting to be sent to a client, above which the client is considered too slow and is closed */
+    private static final int MAX_PENDING_EVENTS = 1000;
+    private static final int EVENT_SENDERS = 8;
+    // the events are sent by these threads, so that a slow client doesn't delay the publisher of the events
+    private static final ThreadPoolExecutor eventSender;
+
+    static {
+        final AtomicInteger counter = new AtomicInteger();
+        eventSender = new ThreadPoolExecutor(EVENT_SENDERS, EVENT_SENDERS, 60, TimeUnit.SECONDS,
+                                             new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "event-sender-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        eventSender.allowCoreThreadTimeOut(true);
+    }
 
     @Autowired
     private DataSourceService dataSourceService;
@@ -71,6 +105,58 @@ public class DownloadController extends ControllerBase {
         return new ResponseEntity<>(tasks, HttpStatus.OK);
     }
 
+    /**
+     * Streams, as server-sent events, the changes of the downloads in progress: start, progress (when it changed by
+     * more than <code>downloader.progress.threshold</code>), completion or failure.
+     * The event identifiers are sequence numbers. A client that reconnects (with the Last-Event-ID header or the
+     * <code>after</code> parameter) receives the events it missed or, if these are no longer available,
+     * the downloads in progress at that moment.
+     * @param siteId    The site identifier (if 0, the events of all the sites are streamed)
+     * @param after     The identifier of the last event received by the client
+     */
+    @RequestMapping(value = "/events", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamProgress(@RequestParam(name = "siteId", required = false, defaultValue = "0") short siteId,
+                                     @RequestParam(name = "after", required = false) Long after,
+                                     @RequestHeader(name = "Last-Event-ID", required = false) Long lastEventId) {
+        final ProgressSubscriber subscriber = new ProgressSubscriber(siteId);
+        final long cursor = lastEventId != null ? lastEventId : after != null ? after : -1;
+        subscriber.emitter.onCompletion(() -> downloadService.removeProgressListener(subscriber));
+        subscriber.emitter.onTimeout(() -> downloadService.removeProgressListener(subscriber));
+        subscriber.emitter.onError(e -> downloadService.removeProgressListener(subscriber));
+        synchronized (subscriber) {
+            // the new events are sent only after the missed ones
+            downloadService.addProgressListener(subscriber);
+            subscriber.enqueue(downloadService.getProgressEvents(siteId, cursor), true);
+        }
+        return subscriber.emitter;
+    }
+
+    /**
+     * Returns the state of the request controllers of the remote data sources.
+     */
+    @RequestMapping(value = "/throttle", method = RequestMethod.GET, produces = "application/json")
+    public ResponseEntity<List<DataSourceThrottle>> getThrottleState() {
+        return new ResponseEntity<>(DataSourceThrottle.getAll(), HttpStatus.OK);
+    }
+
+    /**
+     * Returns the configured and achieved bandwidth (in MB/s), globally, for each data source and for each site.
+     */
+    @RequestMapping(value = "/bandwidth", method = RequestMethod.GET, produces = "application/json")
+    public ResponseEntity<List<BandwidthShaper>> getBandwidthState() {
+        return new ResponseEntity<>(BandwidthShaper.getAll(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/queue", method = RequestMethod.GET, produces = "application/json")
+    public ResponseEntity<List<DownloadQueue>> getQueueState() {
+        return new ResponseEntity<>(DownloadQueue.getAll(), HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/queue/{id}", method = RequestMethod.GET, produces = "application/json")
+    public ResponseEntity<List<DownloadQueue.SiteState>> getQueueState(@PathVariable("id") short siteId) {
+        return new ResponseEntity<>(downloadService.getDownloadQueueState(siteId), HttpStatus.OK);
+    }
+
     @RequestMapping(value = "/query", method = RequestMethod.GET, produces = "application/json")
     public ResponseEntity<?> query(@RequestParam("satellite") String satellite,
                                    @RequestParam("dataSource") String dataSource,
@@ -261,4 +347,81 @@ public class DownloadController extends ControllerBase {
         scheduleManager.refresh();
         return new ResponseEntity<>("Start message sent", HttpStatus.OK);
     }
+
+    /**
+     * Client of the event stream. The events are queued by the publisher and sent by one of the event sender threads;
+     * a client that doesn't keep up (having more than MAX_PENDING_EVENTS events waiting) is closed, so that it
+     * reconnects and receives the events it missed.
+     */
+    private class ProgressSubscriber implements Consumer<List<ProgressEvent>> {
+        private final short siteId;
+        private final SseEmitter emitter;
+        private final BlockingQueue<ProgressEvent> pending;
+        private final AtomicBoolean sending;
+        private volatile boolean closed;
+        private long lastQueued = -1;
+
+        ProgressSubscriber(short siteId) {
+            this.siteId = siteId;
+            this.emitter = new SseEmitter(EVENT_STREAM_TIMEOUT);
+            this.pending = new ArrayBlockingQueue<>(MAX_PENDING_EVENTS);
+            this.sending = new AtomicBoolean();
+        }
+
+        @Override
+        public synchronized void accept(List<ProgressEvent> events) {
+            enqueue(events, false);
+        }
+
+        private synchronized void enqueue(List<ProgressEvent> events, boolean replay) {
+            if (this.closed) {
+                return;
+            }
+            for (ProgressEvent event : events) {
+                if ((this.siteId > 0 && event.getSiteId() != this.siteId) ||
+                        (!replay && event.getSequence() <= this.lastQueued)) {
+                    continue;
+                }
+                if (!this.pending.offer(event)) {
+                    close(new IOException(String.format("Client too slow, more than %d events were pending",
+                                                         MAX_PENDING_EVENTS)));
+                    return;
+                }
+                this.lastQueued = Math.max(this.lastQueued, event.getSequence());
+            }
+            if (!this.pending.isEmpty() && this.sending.compareAndSet(false, true)) {
+                eventSender.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                do {
+                    ProgressEvent event;
+                    while (!this.closed && (event = this.pending.poll()) != null) {
+                        this.emitter.send(SseEmitter.event()
+                                                  .id(String.valueOf(event.getSequence()))
+                                                  .name(event.getType().name().toLowerCase())
+                                                  .data(event, MediaType.APPLICATION_JSON));
+                    }
+                    this.sending.set(false);
+                    // the events queued after the last poll, but before the flag was reset, are also sent here
+                } while (!this.closed && !this.pending.isEmpty() && this.sending.compareAndSet(false, true));
+            } catch (IOException | IllegalStateException e) {
+                // the client went away
+                this.sending.set(false);
+                close(e);
+            }
+        }
+
+        private synchronized void close(Exception e) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.pending.clear();
+            downloadService.removeProgressListener(this);
+            this.emitter.completeWithError(e);
+        }
+    }
 }
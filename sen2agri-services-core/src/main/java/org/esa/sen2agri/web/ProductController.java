@@ -18,6 +18,7 @@ package org.esa.sen2agri.web;
 import com.google.common.net.HttpHeaders;
 import org.apache.commons.io.FileUtils;
 import org.esa.sen2agri.commons.Config;
+import org.esa.sen2agri.commons.SiteGeometry;
 import org.esa.sen2agri.db.ConfigurationKeys;
 import org.esa.sen2agri.db.Constants;
 import org.esa.sen2agri.db.PersistenceManager;
@@ -28,7 +29,6 @@ import org.esa.sen2agri.services.DataSourceService;
 import org.esa.sen2agri.services.DownloadService;
 import org.esa.sen2agri.services.ProductDownloadListener;
 import org.esa.sen2agri.services.ProductTypesService;
-import org.locationtech.jts.geom.Geometry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -322,7 +322,7 @@ public class ProductController extends ControllerBase {
                 DataSourceConfiguration configuration = Config.getDownloadConfiguration(site, satellite);
                 Path downloadPath = Paths.get(configuration.getDownloadPath()).resolve(site.getShortName());
                 final GeometryAdapter adapter = new GeometryAdapter();
-                final Geometry siteExtent = adapter.marshal(site.getExtent());
+                final SiteGeometry siteExtent = SiteGeometry.of(site);
                 for (Path folder : folders) {
                     try {
                         //if (Files.isDirectory(folder) && !folder.equals(sourcePath)) {
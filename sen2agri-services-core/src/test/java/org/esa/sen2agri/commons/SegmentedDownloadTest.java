@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018 CS ROMANIA
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.sen2agri.commons;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link SegmentedDownload} against an embedded HTTP server, which may or may not support byte ranges.
+ *
+ * @author Cosmin Cara
+ */
+public class SegmentedDownloadTest {
+    /** The file is split in four equal segments, two in each half */
+    private static final int LENGTH = 2 * 1024 * 1024;
+    private static final int SEGMENTS = 4;
+
+    private enum Mode {
+        /** Byte ranges are supported */
+        RANGES,
+        /** Byte ranges are ignored, the whole file is sent */
+        NO_RANGES,
+        /** The ranges in the second half of the file fail */
+        FAIL_SECOND_HALF,
+        /** The ranges are announced (and sent) shorter than requested, the stream ending without error */
+        TRUNCATED
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[LENGTH];
+    private final AtomicLong served = new AtomicLong();
+    private volatile Mode mode;
+    private HttpServer server;
+    private URL url;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(this.content);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/product.zip", this::handle);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+        this.url = new URL("http://localhost:" + this.server.getAddress().getPort() + "/product.zip");
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void downloadsInSegments() throws IOException {
+        this.mode = Mode.RANGES;
+        final Path target = this.folder.getRoot().toPath().resolve("product.zip");
+        newDownload(target).execute();
+        assertArrayEquals(this.content, Files.readAllBytes(target));
+        assertFalse(Files.exists(stateOf(target)));
+    }
+
+    @Test
+    public void resumesFailedDownload() throws IOException {
+        final Path target = this.folder.getRoot().toPath().resolve("product.zip");
+        this.mode = Mode.FAIL_SECOND_HALF;
+        try {
+            newDownload(target).execute();
+            fail("The download should have failed");
+        } catch (IOException expected) {
+            assertTrue(Files.exists(stateOf(target)));
+        }
+        this.mode = Mode.RANGES;
+        this.served.set(0);
+        newDownload(target).execute();
+        assertArrayEquals(this.content, Files.readAllBytes(target));
+        assertFalse(Files.exists(stateOf(target)));
+        // only the missing segments (and the probe byte) are fetched again
+        assertTrue("Bytes fetched again: " + this.served.get(), this.served.get() <= LENGTH / 2 + 1);
+    }
+
+    @Test
+    public void detectsTruncatedSegments() throws IOException {
+        final Path target = this.folder.getRoot().toPath().resolve("product.zip");
+        this.mode = Mode.TRUNCATED;
+        try {
+            newDownload(target).execute();
+            fail("A truncated download should fail");
+        } catch (IOException expected) {
+            // the partial transfer is kept for resuming
+            assertTrue(Files.exists(stateOf(target)));
+        }
+        this.mode = Mode.RANGES;
+        newDownload(target).execute();
+        assertArrayEquals(this.content, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void downloadsAsSingleStreamWithoutRanges() throws IOException {
+        this.mode = Mode.NO_RANGES;
+        final Path target = this.folder.getRoot().toPath().resolve("product.zip");
+        newDownload(target).execute();
+        assertArrayEquals(this.content, Files.readAllBytes(target));
+        assertFalse(Files.exists(stateOf(target)));
+    }
+
+    private SegmentedDownload newDownload(Path target) {
+        final SegmentedDownload download = new SegmentedDownload(this.url, target, null, SEGMENTS, 0);
+        download.setTimeouts(5, 5);
+        return download;
+    }
+
+    private static Path stateOf(Path target) {
+        return target.resolveSibling(target.getFileName() + ".parts");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null || this.mode == Mode.NO_RANGES) {
+                send(exchange, 200, 0, LENGTH);
+                return;
+            }
+            final String[] bounds = range.substring(range.indexOf('=') + 1).split("-");
+            final int from = Integer.parseInt(bounds[0].trim());
+            final int to = bounds.length > 1 && !bounds[1].trim().isEmpty()
+                    ? Math.min(Integer.parseInt(bounds[1].trim()), LENGTH - 1) : LENGTH - 1;
+            if (this.mode == Mode.FAIL_SECOND_HALF && from >= LENGTH / 2) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            final int count = to - from + 1;
+            final int sent = this.mode == Mode.TRUNCATED && count > 1 ? count / 2 : count;
+            exchange.getResponseHeaders().add("Content-Range", String.format("bytes %d-%d/%d", from, to, LENGTH));
+            send(exchange, 206, from, sent);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void send(HttpExchange exchange, int code, int from, int count) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/zip");
+        exchange.sendResponseHeaders(code, count);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(this.content, from, count);
+        }
+        this.served.addAndGet(count);
+    }
+}